@@ -52,7 +52,7 @@ export class PlantListService {
      * @returns {Observable<R>} - the received Observable Plant collection
      */
     public getPlantsFromServer(): Observable<Plant[]> {
-        return this.http.request(this.URL + "plants").map(res => res.json());
+        return this.http.request(this.URL + "plants?fields=catalog").map(res => res.json());
     }
 
     /**
@@ -4,6 +4,8 @@ import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
 import org.apache.poi.openxml4j.exceptions.NotOfficeXmlFileException;
 import org.bson.Document;
+import spark.Request;
+import spark.Response;
 import spark.Route;
 import spark.utils.IOUtils;
 import com.mongodb.util.JSON;
@@ -15,12 +17,16 @@ import umm3601.digitalDisplayGarden.Authentication.UnauthorizedUserException;
 
 import java.awt.image.RenderedImage;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.UUID;
+import java.util.function.Function;
 
 import static spark.Spark.*;
 
@@ -45,6 +51,44 @@ public class Server {
 
     public static int serverPort;
 
+    /* Whether to refuse to start when a hot query would scan its whole collection */
+    private static boolean requireIndexes = false;
+
+    /* Whether visitor telemetry is written behind the request in batches */
+    private static boolean telemetryWriteBehind = true;
+
+    private static int telemetryBatchSize = 500;
+
+    private static long telemetryFlushMillis = 1000;
+
+    /* Whether text responses are sent gzipped or deflated to clients that accept it */
+    private static boolean compressResponses = true;
+
+    private static int compressionMinBytes = 1024;
+
+    /* The cookie holding a visitor's anonymous token, used to count unique visitors */
+    private static final String VISITOR_COOKIE = "ddgVisitor";
+
+    private static final int VISITOR_COOKIE_MAX_AGE = 365 * 24 * 60 * 60;
+
+    /* Rendered visitor catalog responses, see serveCached */
+    private static final ResponseCache responseCache = new ResponseCache();
+
+    // null when compressResponses is off
+    private static ResponseCompressor responseCompressor;
+
+    private static final String[] NO_PARAMS = {};
+
+    /* How long the admin charts are cached, see cachedChart */
+    private static long chartCacheSeconds = 30;
+
+    private static ChartCache chartCache;
+
+    /* How often the trending plants are saved, and whether visitors may see them too, see TrendingPlants */
+    private static long trendingSnapshotSeconds = 300;
+
+    private static boolean trendingForVisitors = false;
+
     private static String excelTempDir = "/tmp/digital-display-garden";
 
     public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
@@ -69,10 +113,58 @@ public class Server {
         MongoClient client = new MongoClient();
         database = client.getDatabase(databaseName);
 
+        IndexManager indexManager = new IndexManager(database);
+        indexManager.ensureIndexes();
+        List<String> collectionScans = indexManager.verifyHotQueries();
+        if (!collectionScans.isEmpty()) {
+            System.err.println("***************************************************************");
+            System.err.println("These queries would scan their entire collection:");
+            for (String scan : collectionScans) {
+                System.err.println("    " + scan);
+            }
+            System.err.println("***************************************************************");
+            if (requireIndexes) {
+                System.err.println("Refusing to start because requireIndexes is set in the config file");
+                System.exit(1);
+            }
+        }
+
+        //Older databases kept plant visits and ratings in the plant documents
+        int migratedPlants = new PlantEventStore(database).migrateFromPlantMetadata();
+        if (migratedPlants > 0) {
+            System.out.println("Moved the visits and ratings of " + migratedPlants + " plants to plantEvents");
+            //The moved visits went into buckets that the chart state may have counted already
+            ChartState.reset(database);
+        }
+        int countedPlants = FeedbackCounters.backfill(database, true);
+        if (countedPlants > 0) {
+            System.out.println("Computed the like, dislike and comment counters of " + countedPlants + " plants");
+        }
+        int countedBeds = QRScanCounters.backfill(database, true);
+        if (countedBeds > 0) {
+            System.out.println("Computed the QR scan counters of " + countedBeds + " beds");
+        }
+        int rolledUpVisits = VisitRollups.backfill(database, true);
+        if (rolledUpVisits > 0) {
+            System.out.println("Counted " + rolledUpVisits + " plant visits for the visit charts");
+        }
+
         PlantController plantController = new PlantController(database);
         Photos photos = new Photos(database.getCollection("plants"), plantController);
         GardenCharts chartMaker = new GardenCharts(database);
+        chartCache = new ChartCache(chartCacheSeconds * 1000);
         BedController bedController = new BedController(database);
+        if (telemetryWriteBehind) {
+            TelemetryWriter telemetryWriter = new TelemetryWriter(telemetryBatchSize * 20, Math.max(1, telemetryBatchSize), Math.max(1, telemetryFlushMillis));
+            plantController.setTelemetryWriter(telemetryWriter);
+            bedController.setTelemetryWriter(telemetryWriter);
+            // Write whatever is still queued before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> telemetryWriter.shutdown(30 * 1000)));
+        }
+        TrendingPlants trendingPlants = TrendingPlants.of(database);
+        trendingPlants.startSnapshots(trendingSnapshotSeconds * 1000);
+        // Save the trending scores that changed since the last snapshot before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(trendingPlants::shutdown));
         Auth auth = new Auth(clientId, clientSecret, callbackURL);
 
         options("/*", (request, response) -> {
@@ -95,6 +187,12 @@ public class Server {
             response.header("Access-Control-Allow-Origin", PUBLIC_URL);
         });
 
+        if (compressResponses) {
+            // One idle Deflater of each kind per core is plenty, more are made under bursts
+            responseCompressor = new ResponseCompressor(compressionMinBytes, 6, Runtime.getRuntime().availableProcessors());
+            after(responseCompressor::compress);
+        }
+
 
         // Redirects for the "home" page
         redirect.get("", "/");
@@ -203,8 +301,16 @@ public class Server {
 
         // Return all plants
         get("api/plants", (req, res) -> {
-            res.type("application/json");
-            return plantController.listPlants(req.queryMap().toMap(), getLiveUploadId());
+            RequestContext context = getLiveContext();
+            Map<String, String[]> queryParams = req.queryMap().toMap();
+            if (PlantController.isCatalogOnly(queryParams))
+                return serveCached(req, res, "api/plants", PlantController.LIST_PARAMS, out -> plantController.writePlants(queryParams, context, out));
+
+            //The plants' counters change with every visitor, so stream them fresh one at a time
+            Writer out = jsonResponseWriter(req, res);
+            plantController.writePlants(queryParams, context, out);
+            out.close();
+            return res;
         });
 
         //Get a plant by plantId
@@ -215,10 +321,14 @@ public class Server {
             String bed = req.params("bed");
             String isVisitor = req.queryParams("visitor");
 
+            RequestContext context = getLiveContext();
+
             if(isVisitor == null)
-                plant = plantController.getPlantByPlantID(id, bed, false, getLiveUploadId());
+                plant = plantController.getPlantByPlantID(id, bed, false, context, visitorToken(req, res));
+            else if("false".equals(isVisitor))
+                plant = plantController.getPlantByPlantID(id, bed, true, context);
             else
-                plant = plantController.getPlantByPlantID(id, bed, "false".equals(isVisitor), getLiveUploadId());
+                plant = plantController.getPlantByPlantID(id, bed, false, context, visitorToken(req, res));
 
             return plant;
         });
@@ -237,26 +347,34 @@ public class Server {
             res.type("application/json");
             String id = req.params("plantID");
             String bed = req.params("bed");
-            return plantController.getPlantFeedbackByPlantIdJSON(id, bed, getLiveUploadId());
+            return plantController.getPlantFeedbackByPlantIdJSON(id, bed, getLiveContext());
         });
 
         //List all Beds
         get("api/gardenLocations", (req, res) -> {
-            res.type("application/json");
-            return plantController.getGardenLocationsJSON(getLiveUploadId());
+            RequestContext context = getLiveContext();
+            return serveCached(req, res, "api/gardenLocations", NO_PARAMS, out -> out.write(String.valueOf(plantController.getGardenLocationsJSON(context))));
         });
 
+        //The plants visitors liked, commented on and looked at the most lately, if the config allows it
+        if (trendingForVisitors) {
+            get("api/trending", (req, res) -> {
+                res.type("application/json");
+                return trendingPlants.getTopJSON(getLiveUploadId(), trendingCount(req));
+            });
+        }
+
         //List all Common Names
         get("api/commonNames", (req, res) -> {
-            res.type("application/json");
-            return plantController.getCommonNamesJSON(getLiveUploadId());
+            RequestContext context = getLiveContext();
+            return serveCached(req, res, "api/commonNames", NO_PARAMS, out -> plantController.writeCommonNames(context, out));
         });
 
         //Post req to rate a plant
         post("api/plant/rate", (req, res) -> {
             System.out.println("api/plant/rate " + req.body());
             res.type("application/json");
-            return plantController.addFlowerRating(req.body(),getLiveUploadId());
+            return plantController.addFlowerRating(req.body(), getLiveContext());
         });
 
 
@@ -265,7 +383,7 @@ public class Server {
             res.type("application/json");
             String body = req.body();
             //Increment bedCount
-            bedController.addBedVisit(body, getLiveUploadId());
+            bedController.addBedVisit(body, getLiveUploadId(), visitorToken(req, res));
             return true;
         });
 
@@ -276,14 +394,14 @@ public class Server {
 
             //Increment bedCount
             //Increment qrForBedCount
-            bedController.addBedQRVisit(body, getLiveUploadId());
+            bedController.addBedQRVisit(body, getLiveUploadId(), visitorToken(req, res));
             return true;
         });
 
         //Posting a comment
         post("api/plant/leaveComment", (req, res) -> {
             res.type("application/json");
-            return plantController.storePlantComment(req.body(), getLiveUploadId());
+            return plantController.storePlantComment(req.body(), getLiveContext());
         });
 
         /*///////////////////////////////////////////////////////////////////
@@ -363,9 +481,12 @@ public class Server {
 
                     ExcelParser parser = new ExcelParser(part.getInputStream(), database);
 
-                    String oldUploadId = getLiveUploadId();
+                    //Read the liveUploadId from the database, not the cache, since we are about to replace it
+                    String oldUploadId = LiveUploadIdCache.of(database).refresh();
                     String newUploadId = ExcelParser.generateNewUploadId();
                     String[][] excelFile = parser.parseExcel();
+                    //The patch copies the old upload's counters and then removes it, so write its queued telemetry first
+                    plantController.flushTelemetry();
                     parser.patchDatabase(excelFile, oldUploadId, newUploadId);
 
                     return JSON.serialize(newUploadId);
@@ -543,7 +664,8 @@ public class Server {
                 halt(403);
             }
             res.type("application/json");
-            return chartMaker.getPlantViewsPerHour(getLiveUploadId());
+            ChartRange range = chartRange(req);
+            return cachedChart("viewsPerHour?" + range, uploadId -> chartMaker.getPlantViewsPerHour(uploadId, range));
         });
 
         //Get the data to put in the plant metadata map
@@ -553,7 +675,7 @@ public class Server {
                 halt(403);
             }
             res.type("application/json");
-            return chartMaker.getBedMetadataForMap(plantController, getLiveUploadId());
+            return cachedChart("plantMetadataMap", uploadId -> chartMaker.getBedMetadataForMap(plantController, uploadId));
         });
 
         //Get the data to put in the plant comboChart
@@ -564,7 +686,8 @@ public class Server {
                 halt(403);
             }
             res.type("application/json");
-            return chartMaker.getComboChart(getLiveUploadId());
+            ChartRange range = chartRange(req);
+            return cachedChart("comboChart?" + range, uploadId -> chartMaker.getComboChart(uploadId, range));
         });
 
         get("api/admin/charts/plantMetadataBubbleMap", (req, res) -> {
@@ -573,7 +696,7 @@ public class Server {
                 halt(403);
             }
             res.type("application/json");
-            return chartMaker.getBedMetadataForBubbleMap(plantController, bedController, getLiveUploadId());
+            return cachedChart("plantMetadataBubbleMap", uploadId -> chartMaker.getBedMetadataForBubbleMap(plantController, bedController, uploadId));
         });
 
         get("api/admin/charts/top20Likes", (req, res) -> {
@@ -583,7 +706,7 @@ public class Server {
             }
             res.type("application/json");
             String type = "likes";
-            return chartMaker.top20Charts(plantController, getLiveUploadId(), type);
+            return cachedChart("top20Likes", uploadId -> chartMaker.top20Charts(plantController, uploadId, type));
         });
 
         get("api/admin/charts/top20disLikes", (req, res) -> {
@@ -593,7 +716,7 @@ public class Server {
             }
             res.type("application/json");
             String type = "dislikes";
-            return chartMaker.top20Charts(plantController, getLiveUploadId(), type);
+            return cachedChart("top20disLikes", uploadId -> chartMaker.top20Charts(plantController, uploadId, type));
         });
 
         get("api/admin/charts/top20Comments", (req, res) -> {
@@ -603,9 +726,66 @@ public class Server {
             }
             res.type("application/json");
             String type = "comments";
-            return chartMaker.top20Charts(plantController, getLiveUploadId(), type);
+            return cachedChart("top20Comments", uploadId -> chartMaker.top20Charts(plantController, uploadId, type));
+        });
+
+        //QR scans of each bed by hour of the day
+        get("api/admin/charts/qrScanHeatmap", (req, res) -> {
+            String cookie = req.cookie("ddg");
+            if(!auth.authorized(cookie)) {
+                halt(403);
+            }
+            res.type("application/json");
+            return cachedChart("qrScanHeatmap", uploadId -> chartMaker.getQRScanHeatmap(uploadId));
         });
 
+        //Every chart above in one response, for the dashboard
+        get("api/admin/charts/dashboard", (req, res) -> {
+            String cookie = req.cookie("ddg");
+            if(!auth.authorized(cookie)) {
+                halt(403);
+            }
+            res.type("application/json");
+            ChartRange range = chartRange(req);
+            return cachedChart("dashboard?" + range, uploadId -> chartMaker.getDashboard(uploadId, range));
+        });
+
+        //Visits per hour, day or week over a range of days
+        get("api/admin/charts/visitsOverTime", (req, res) -> {
+            String cookie = req.cookie("ddg");
+            if(!auth.authorized(cookie)) {
+                halt(403);
+            }
+            res.type("application/json");
+            ChartRange range = chartRange(req);
+            try {
+                return cachedChart("visitsOverTime?" + range, uploadId -> chartMaker.getVisitsOverTime(uploadId, range));
+            } catch (IllegalArgumentException e) {
+                halt(400, JSON.serialize(new Document("message", e.getMessage())));
+                return ""; // not reached
+            }
+        });
+
+        //The plants with the most visits, ratings and comments lately, see TrendingPlants.
+        //Not cached since the scores change with every visit but the data version doesn't.
+        get("api/admin/charts/trending", (req, res) -> {
+            String cookie = req.cookie("ddg");
+            if(!auth.authorized(cookie)) {
+                halt(403);
+            }
+            res.type("application/json");
+            return trendingPlants.getTopJSON(getLiveUploadId(), trendingCount(req));
+        });
+
+        //How often the charts above came from the chart cache
+        get("api/admin/charts/cacheStats", (req, res) -> {
+            String cookie = req.cookie("ddg");
+            if(!auth.authorized(cookie)) {
+                halt(403);
+            }
+            res.type("application/json");
+            return chartCache.getStatsJSON();
+        });
 
         //Host the aerial image of the Garden
         get("api/admin/gardenPicture", (req, res) -> {
@@ -676,6 +856,17 @@ public class Server {
             {
                 TimeZone.setDefault(TimeZone.getTimeZone(timezone));
             }
+            LiveUploadIdCache.setRefreshInterval(readOptionalNumber(props, "liveUploadIdRefreshSeconds", 30) * 1000);
+            telemetryWriteBehind = Boolean.parseBoolean(props.getProperty("telemetryWriteBehind", "true"));
+            telemetryBatchSize = (int) readOptionalNumber(props, "telemetryBatchSize", 500);
+            telemetryFlushMillis = readOptionalNumber(props, "telemetryFlushMillis", 1000);
+            compressResponses = Boolean.parseBoolean(props.getProperty("compressResponses", "true"));
+            compressionMinBytes = (int) readOptionalNumber(props, "compressionMinBytes", 1024);
+            chartCacheSeconds = readOptionalNumber(props, "chartCacheSeconds", 30);
+            TrendingPlants.setHalfLife(Math.max(1, readOptionalNumber(props, "trendingHalfLifeHours", 72)) * 60 * 60 * 1000);
+            trendingSnapshotSeconds = readOptionalNumber(props, "trendingSnapshotSeconds", 300);
+            trendingForVisitors = Boolean.parseBoolean(props.getProperty("trendingForVisitors", "false"));
+            requireIndexes = Boolean.parseBoolean(props.getProperty("requireIndexes", "false"));
             databaseName = props.getProperty("databaseName");
             if (null == databaseName) {
                 System.err.println("Failed reading config.properties file");
@@ -713,8 +904,145 @@ public class Server {
         }
     }
 
+    /**
+     * Reads an optional non-negative whole number from the config file, exiting if it isn't one.
+     */
+    private static long readOptionalNumber(Properties props, String name, long defaultValue) {
+        String value = props.getProperty(name);
+        if (null == value)
+            return defaultValue;
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number < 0)
+                throw new NumberFormatException();
+            return number;
+        }
+        catch(NumberFormatException nfe)
+        {
+            System.err.println("Failed reading config.properties file");
+            System.err.println("Reason: The " + name + " was not a valid number(" + value + ")");
+            System.exit(1);
+            return defaultValue; // not reached
+        }
+    }
+
+    /**
+     * Serves a visitor catalog response from the responseCache, rendering it first if it isn't cached.
+     * Answers 304 when the client already has it, and sends it gzipped when the client accepts gzip.
+     * @param routeParams the query params the route reads, see ResponseCache.key
+     * @return res, for the route to return
+     */
+    private static Response serveCached(Request req, Response res, String route, String[] routeParams, ResponseCache.Renderer renderer) throws IOException {
+        String key = ResponseCache.key(route, req.queryMap().toMap(), routeParams, getLiveUploadId(), DataVersion.get(database));
+        ResponseCache.Entry entry = responseCache.get(key, renderer);
+
+        boolean gzip = ResponseCompressor.accepts(req.headers("Accept-Encoding"), ResponseCompressor.GZIP);
+        String etag = gzip ? entry.gzippedEtag : entry.etag;
+
+        res.type("application/json");
+        res.header("ETag", etag);
+        res.header("Vary", "Accept-Encoding");
+        if (ResponseCache.matches(req.headers("If-None-Match"), etag)) {
+            res.status(304);
+            res.raw().flushBuffer();
+            return res;
+        }
+
+        byte[] body = entry.body;
+        if (gzip) {
+            res.header("Content-Encoding", "gzip");
+            body = entry.gzipped;
+        }
+        res.raw().setContentLength(body.length);
+        res.raw().getOutputStream().write(body);
+        res.raw().getOutputStream().flush();
+        return res;
+    }
+
+    /**
+     * A Writer on the response body, for routes that write their JSON while reading it from the database
+     * instead of returning it as a String. It compresses the JSON when the client accepts it, since the
+     * after filter can't. Close it when done and return res from the route.
+     */
+    private static Writer jsonResponseWriter(Request req, Response res) throws IOException {
+        res.type("application/json");
+        OutputStream body = responseCompressor == null
+                ? res.raw().getOutputStream()
+                : responseCompressor.open(req.headers("Accept-Encoding"), res.raw());
+        return new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * An admin chart of the liveUploadId from the chartCache, computing it first if it isn't cached.
+     * Concurrent requests for the same chart share one computation.
+     * @param chart the chart's route under api/admin/charts
+     * @param computation computes the chart for an uploadId
+     * @return the chart's JSON
+     */
+    private static String cachedChart(String chart, Function<String, String> computation) {
+        String uploadId = getLiveUploadId();
+        String key = ChartCache.key(chart, uploadId, DataVersion.get(database));
+        return chartCache.get(key, () -> computation.apply(uploadId));
+    }
+
+    /**
+     * The count query param of a trending request, 20 when it's missing.
+     * Halts with 400 when it isn't a number from 1 to TrendingPlants.DEFAULT_CAPACITY.
+     */
+    private static int trendingCount(Request req) {
+        String count = req.queryParams("count");
+        if (count == null || count.isEmpty())
+            return 20;
+        try {
+            int n = Integer.parseInt(count);
+            if (n >= 1 && n <= TrendingPlants.DEFAULT_CAPACITY)
+                return n;
+        } catch (NumberFormatException e) {
+            //Same as out of range
+        }
+        halt(400, JSON.serialize(new Document("message",
+                "count must be a number from 1 to " + TrendingPlants.DEFAULT_CAPACITY + ", not " + count)));
+        return 0; // not reached
+    }
+
+    /**
+     * The from, to and granularity query params of a chart request, see ChartRange.
+     * Halts with 400 and a message when they aren't valid.
+     */
+    private static ChartRange chartRange(Request req) {
+        try {
+            return ChartRange.parse(req.queryParams("from"), req.queryParams("to"), req.queryParams("granularity"));
+        } catch (IllegalArgumentException e) {
+            halt(400, JSON.serialize(new Document("message", e.getMessage())));
+            return null; // not reached
+        }
+    }
+
+    /**
+     * The visitor's anonymous token, from the ddgVisitor cookie. Visitors without one are given a new
+     * random token. It only tells a returning browser apart from a new one, and is not tied to anything else.
+     * @return
+     */
+    private static String visitorToken(Request req, Response res) {
+        String token = req.cookie(VISITOR_COOKIE);
+        if (token == null || token.isEmpty()) {
+            token = UUID.randomUUID().toString();
+            res.cookie("/", VISITOR_COOKIE, token, VISITOR_COOKIE_MAX_AGE, false, true);
+        }
+        return token;
+    }
+
     public static String getLiveUploadId()
     {
-        return ExcelParser.getLiveUploadId(database);
+        return LiveUploadIdCache.of(database).get();
+    }
+
+    /**
+     * Validates the liveUploadId once for the current request.
+     * @return the request's context, or null if the liveUploadId isn't valid
+     */
+    public static RequestContext getLiveContext()
+    {
+        return RequestContext.forLiveUpload(database);
     }
 }
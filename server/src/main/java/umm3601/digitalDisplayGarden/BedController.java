@@ -2,6 +2,7 @@ package umm3601.digitalDisplayGarden;
 
 
 import com.mongodb.client.*;
+import com.mongodb.client.model.UpdateOneModel;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
@@ -20,8 +21,63 @@ public class BedController {
 
     private final MongoCollection<Document> bedCollection;
 
+    private final VisitorSketches visitorSketches;
+
+    private final BedRegistry bedRegistry;
+
+    /* When set, bed visits are queued here instead of written on the request thread */
+    private TelemetryWriter telemetryWriter;
+
     public BedController(MongoDatabase database) throws IOException {
         bedCollection = database.getCollection("beds");
+        visitorSketches = new VisitorSketches(database);
+        bedRegistry = BedRegistry.of(database);
+    }
+
+    /**
+     * Queue bed visits and QR scans in the given TelemetryWriter instead of writing them
+     * to the database immediately. Pass null to go back to writing immediately.
+     * @param telemetryWriter
+     */
+    public void setTelemetryWriter(TelemetryWriter telemetryWriter) {
+        this.telemetryWriter = telemetryWriter;
+    }
+
+    /**
+     * Updates one bed, through the TelemetryWriter if there is one and it isn't full.
+     * An update is only queued for a bed the BedRegistry knows, since whether it matches isn't known until it is written.
+     * @return true if the update was queued or matched a bed
+     */
+    private boolean recordTelemetry(String gardenLocation, String uploadId, Bson update) {
+        if (telemetryWriter != null) {
+            if (!bedRegistry.contains(uploadId, gardenLocation))
+                return false;
+            if (telemetryWriter.enqueue(bedCollection, bedFilter(gardenLocation, uploadId), update))
+                return true;
+        }
+        return bedCollection.updateOne(bedFilter(gardenLocation, uploadId), update).getMatchedCount() > 0;
+    }
+
+    /**
+     * Counts a visitor in the bed's unique visitor sketch, through the TelemetryWriter if there is one and it isn't full.
+     * Nothing is counted for visitors without a token. Only call it once recordTelemetry found the bed.
+     */
+    private void recordVisitor(String gardenLocation, String uploadId, String visitorToken) {
+        if (visitorToken == null)
+            return;
+        UpdateOneModel<Document> write = VisitorSketches.visitWrite(uploadId, VisitorSketches.KIND_BED, null, gardenLocation, visitorToken, new Date());
+        if (telemetryWriter == null || !telemetryWriter.enqueue(visitorSketches.getCollection(), write))
+            visitorSketches.record(write);
+    }
+
+    /**
+     * The estimated number of unique visitors of a bed, whether they came by QR code or not.
+     * @param gardenLocation
+     * @param uploadId
+     * @return
+     */
+    public long getUniqueVisitors(String gardenLocation, String uploadId) {
+        return visitorSketches.getUniqueVisitors(uploadId, VisitorSketches.KIND_BED, null, gardenLocation);
     }
 
     /**
@@ -33,68 +89,99 @@ public class BedController {
      */
     public boolean incrementBedMetadata(String gardenLocation, String field, String uploadId) {
 
-        Document searchDocument = new Document();
-
-        searchDocument.append("gardenLocation", gardenLocation);
-        searchDocument.append("uploadId", uploadId);
-
         Bson updateDocument = inc("metadata." + field, 1);
 
-        return null != bedCollection.findOneAndUpdate(searchDocument, updateDocument);
+        return recordTelemetry(gardenLocation, uploadId, updateDocument);
     }
 
     /**
      * When a user views a web page a Bed page a Bed Visit is added.
-     * By that we mean that bed's pageViews field is incremented and a new {visit : ObjectId()} is added to visits
+     * By that we mean that bed's pageViews field is incremented and a new {visit : Date} is added to visits,
+     * both in one update.
      * @param gardenLocation
      * @param uploadId
      * @return
      */
     public boolean addBedVisit(String gardenLocation, String uploadId) {
+        return addBedVisit(gardenLocation, uploadId, null);
+    }
 
-        Document filterDoc = new Document();
-        filterDoc.append("gardenLocation", gardenLocation);
-        filterDoc.append("uploadId", uploadId);
+    /**
+     * Same as addBedVisit(String, String), and also counts the visitor in the bed's unique visitor sketch
+     * if the bed exists.
+     * @param gardenLocation
+     * @param uploadId
+     * @param visitorToken the visitor's anonymous token, null to not count unique visitors
+     * @return
+     */
+    public boolean addBedVisit(String gardenLocation, String uploadId, String visitorToken) {
 
         Document visit = new Document();
         visit.append("visit", new Date());
 
-        incrementBedMetadata(gardenLocation, "pageViews", uploadId);
+        Bson updateDocument = combine(
+                inc("metadata.pageViews", 1),
+                push("metadata.bedVisits", visit));
 
-        return null != bedCollection.findOneAndUpdate(filterDoc, push("metadata.bedVisits", visit));
+        if (!recordTelemetry(gardenLocation, uploadId, updateDocument))
+            return false;
+        recordVisitor(gardenLocation, uploadId, visitorToken);
+        return true;
     }
 
     /**
      * When a user scans a QR code, that QR code brings them to a page that sends a POST request
      * to the server whose body contains which gardenLocation was visited via QR Code.
      *
-     * This function is responsible for incrementing qrScans and adding a {scan : ObjectId()} to metadata.qrVisits
+     * This function is responsible for incrementing pageViews, qrScans and the scan's hour in
+     * qrScansByHour (see QRScanCounters), and adding a {visit : Date} to metadata.bedVisits and
+     * a {scan : Date} to metadata.qrVisits. All five happen in one update, so a scan is either
+     * recorded completely or not at all.
      *
      * @param gardenLocation
      * @param uploadId
      * @return
      */
     public boolean addBedQRVisit(String gardenLocation, String uploadId) {
+        return addBedQRVisit(gardenLocation, uploadId, null);
+    }
 
-        Document filterDoc = new Document();
-        filterDoc.append("gardenLocation", gardenLocation);
-        filterDoc.append("uploadId", uploadId);
+    /**
+     * Same as addBedQRVisit(String, String), and also counts the visitor in the bed's unique visitor sketch
+     * if the bed exists.
+     * @param gardenLocation
+     * @param uploadId
+     * @param visitorToken the visitor's anonymous token, null to not count unique visitors
+     * @return
+     */
+    public boolean addBedQRVisit(String gardenLocation, String uploadId, String visitorToken) {
+
+        Date now = new Date();
 
         Document visit = new Document();
-        visit.append("visit", new Date());
+        visit.append("visit", now);
 
         Document scan = new Document();
-        scan.append("scan", new Date());
+        scan.append("scan", now);
 
-        incrementBedMetadata(gardenLocation, "pageViews", uploadId);
-        incrementBedMetadata(gardenLocation, "qrScans", uploadId);
+        Bson updateDocument = combine(
+                inc("metadata.pageViews", 1),
+                inc("metadata.qrScans", 1),
+                QRScanCounters.scanIncrement(now),
+                push("metadata.bedVisits", visit),
+                push("metadata.qrVisits", scan));
 
-        Document a = bedCollection.findOneAndUpdate(filterDoc, push("metadata.bedVisits", visit));
-        if(a == null)
+        if (!recordTelemetry(gardenLocation, uploadId, updateDocument))
             return false;
-        Document b = bedCollection.findOneAndUpdate(filterDoc, push("metadata.qrVisits", scan));
+        recordVisitor(gardenLocation, uploadId, visitorToken);
+        return true;
+    }
 
-        return null != b;
+    private static Document bedFilter(String gardenLocation, String uploadId) {
+        Document filterDoc = new Document();
+        filterDoc.append("gardenLocation", gardenLocation);
+        filterDoc.append("uploadId", uploadId);
+        return filterDoc;
     }
 
     /**
@@ -0,0 +1,120 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoDatabase;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * An in-memory set of the gardenLocations of each upload's beds, so that a bed visit queued
+ * in a TelemetryWriter can be checked against the beds before anything is written for it.
+ *
+ * An upload's beds are loaded the first time one of them is looked up. A gardenLocation that
+ * isn't known causes a reload of the upload's beds at most once per refresh interval, in case
+ * it was imported since. ExcelParser.clearUpload (used by patchDatabase) and
+ * PlantController.deleteUploadID forget the beds of the upload they remove.
+ */
+public class BedRegistry {
+
+    /* One registry per database name */
+    private static final Map<String, BedRegistry> registries = new ConcurrentHashMap<>();
+
+    /* Minimum time between two reloads of an upload caused by looking up an unknown gardenLocation */
+    private static volatile long refreshIntervalMillis = 30 * 1000;
+
+    private final MongoDatabase database;
+
+    private final Map<String, UploadBeds> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * The gardenLocations of one upload and when they were read.
+     */
+    private static class UploadBeds {
+        final Set<String> gardenLocations;
+        final long loaded;
+
+        UploadBeds(Set<String> gardenLocations, long loaded) {
+            this.gardenLocations = gardenLocations;
+            this.loaded = loaded;
+        }
+    }
+
+    private BedRegistry(MongoDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Get the registry for the given database, creating it if needed.
+     * @param database
+     * @return
+     */
+    public static BedRegistry of(MongoDatabase database) {
+        return registries.computeIfAbsent(database.getName(), name -> new BedRegistry(database));
+    }
+
+    /**
+     * Sets the minimum time (in milliseconds) between reloads caused by unknown gardenLocations.
+     * @param millis
+     */
+    public static void setRefreshInterval(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Refresh interval cannot be negative: " + millis);
+        refreshIntervalMillis = millis;
+    }
+
+    /**
+     * Checks whether an upload has a bed at gardenLocation, without going to the database unless
+     * the upload's beds haven't been loaded or the bed is unknown and they are stale.
+     * @param uploadId
+     * @param gardenLocation
+     * @return
+     */
+    public boolean contains(String uploadId, String gardenLocation) {
+        if (uploadId == null || gardenLocation == null)
+            return false;
+        UploadBeds beds = uploads.get(uploadId);
+        if (beds == null)
+            beds = reload(uploadId);
+        if (beds.gardenLocations.contains(gardenLocation))
+            return true;
+
+        if (System.currentTimeMillis() - beds.loaded >= refreshIntervalMillis)
+            return reload(uploadId).gardenLocations.contains(gardenLocation);
+        return false;
+    }
+
+    /**
+     * Rereads the gardenLocations of an upload's beds.
+     * @param uploadId
+     * @return
+     */
+    private UploadBeds reload(String uploadId) {
+        Set<String> gardenLocations = new HashSet<>();
+        for (String gardenLocation : database.getCollection("beds")
+                .distinct("gardenLocation", eq("uploadId", uploadId), String.class)) {
+            gardenLocations.add(gardenLocation);
+        }
+        UploadBeds beds = new UploadBeds(gardenLocations, System.currentTimeMillis());
+        uploads.put(uploadId, beds);
+        return beds;
+    }
+
+    /**
+     * Records that the beds of this uploadId have been removed from the database.
+     * @param uploadId
+     */
+    public void forget(String uploadId) {
+        uploads.remove(uploadId);
+    }
+
+    /**
+     * Forgets the beds of every upload, so they are read again when next looked up.
+     */
+    public void clear() {
+        uploads.clear();
+    }
+}
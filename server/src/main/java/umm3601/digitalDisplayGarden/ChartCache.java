@@ -0,0 +1,167 @@
+package umm3601.digitalDisplayGarden;
+
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the JSON of the admin charts for a short while, so that admins opening the
+ * dashboard at the same time don't each compute the same GardenCharts results.
+ *
+ * Entries are keyed by chart, uploadId and DataVersion, and are used for ttlMillis after
+ * they were computed. The charts also change with every visit and rating, which don't
+ * bump the DataVersion, so the TTL is how stale a chart can be.
+ *
+ * Requests for a chart that is being computed wait for that computation instead of
+ * starting their own (single-flight), even with a TTL of 0. A computation that fails
+ * isn't cached: the requests waiting for it get the same exception, and the next
+ * request computes the chart again.
+ */
+public class ChartCache {
+
+    /**
+     * A chart being computed, or computed at computedAt.
+     */
+    private static class Entry {
+        final CompletableFuture<String> chart = new CompletableFuture<>();
+        volatile long computedAt;
+
+        boolean isFresh(long now, long ttlMillis) {
+            return chart.isDone() && !chart.isCompletedExceptionally() && now - computedAt < ttlMillis;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final long ttlMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param ttlMillis how long a computed chart is used, 0 to only share computations that are running
+     */
+    public ChartCache(long ttlMillis) {
+        if (ttlMillis < 0)
+            throw new IllegalArgumentException("TTL cannot be negative: " + ttlMillis);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * The key of a chart.
+     * @param chart the chart's name, like its route
+     * @param uploadId
+     * @param dataVersion DataVersion.get() when the chart is requested
+     * @return
+     */
+    public static String key(String chart, String uploadId, long dataVersion) {
+        return chart + "|" + uploadId + "|" + dataVersion;
+    }
+
+    /**
+     * Get a chart, computing it if it isn't cached or has expired, or waiting for
+     * the computation another request already started.
+     * @param key from ChartCache.key
+     * @param computation computes the chart's JSON
+     * @return
+     */
+    public String get(String key, Supplier<String> computation) {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (!entry.chart.isDone()) {
+                    coalesced.incrementAndGet();
+                    return await(entry);
+                }
+                if (entry.isFresh(System.currentTimeMillis(), ttlMillis)) {
+                    hits.incrementAndGet();
+                    return entry.chart.join();
+                }
+                entries.remove(key, entry);
+                continue;
+            }
+
+            Entry computing = new Entry();
+            if (entries.putIfAbsent(key, computing) != null)
+                continue;
+            misses.incrementAndGet();
+            removeExpired();
+            try {
+                String chart = computation.get();
+                computing.computedAt = System.currentTimeMillis();
+                computing.chart.complete(chart);
+                return chart;
+            } catch (RuntimeException | Error e) {
+                entries.remove(key, computing);
+                computing.chart.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits for another request's computation and returns its chart, or throws its exception.
+     */
+    private static String await(Entry entry) {
+        try {
+            return entry.chart.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a chart", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops the computed charts that have expired, like the ones of older DataVersions.
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        entries.entrySet().removeIf(entry -> entry.getValue().chart.isDone() && !entry.getValue().isFresh(now, ttlMillis));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * How many requests waited for a computation another request had started.
+     * @return
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * The counters and the number of entries as JSON, for the admin.
+     * @return
+     */
+    public String getStatsJSON() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("ttlMillis", ttlMillis);
+        stats.addProperty("entries", entries.size());
+        stats.addProperty("hits", getHits());
+        stats.addProperty("misses", getMisses());
+        stats.addProperty("coalesced", getCoalesced());
+        return stats.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package umm3601.digitalDisplayGarden;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+/**
+ * The time window and granularity of the visit charts, from the from, to and granularity
+ * query params of the api/admin/charts routes.
+ *
+ * from and to are days as "yyyy-MM-dd" in the server's time zone, and both are included.
+ * Either may be left out for no limit on that side. The granularity is one of "hour",
+ * "day" (the default) or "week", where weeks start on Sunday like Date.getDay().
+ */
+public class ChartRange {
+
+    public static final String HOUR = "hour";
+
+    public static final String DAY = "day";
+
+    public static final String WEEK = "week";
+
+    /* No limits, and days */
+    public static final ChartRange ALL_TIME = new ChartRange(null, null, DAY);
+
+    private final LocalDate from;
+
+    private final LocalDate to;
+
+    private final String granularity;
+
+    private ChartRange(LocalDate from, LocalDate to, String granularity) {
+        this.from = from;
+        this.to = to;
+        this.granularity = granularity;
+    }
+
+    /**
+     * The range of a request's query params.
+     * @param from may be null or empty
+     * @param to may be null or empty
+     * @param granularity may be null or empty
+     * @return
+     * @throws IllegalArgumentException if a param isn't valid, with a message for the admin
+     */
+    public static ChartRange parse(String from, String to, String granularity) {
+        LocalDate fromDay = parseDay("from", from);
+        LocalDate toDay = parseDay("to", to);
+        if (fromDay != null && toDay != null && fromDay.isAfter(toDay))
+            throw new IllegalArgumentException("from (" + from + ") is after to (" + to + ")");
+
+        if (granularity == null || granularity.isEmpty())
+            granularity = DAY;
+        if (!HOUR.equals(granularity) && !DAY.equals(granularity) && !WEEK.equals(granularity))
+            throw new IllegalArgumentException("granularity must be hour, day or week, not " + granularity);
+        return new ChartRange(fromDay, toDay, granularity);
+    }
+
+    private static LocalDate parseDay(String name, String day) {
+        if (day == null || day.isEmpty())
+            return null;
+        try {
+            return LocalDate.parse(day);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(name + " must be a day like 2017-04-13, not " + day);
+        }
+    }
+
+    /**
+     * Whether the range has no limits, so the charts may count every visit.
+     * @return
+     */
+    public boolean isAllTime() {
+        return from == null && to == null;
+    }
+
+    /**
+     * The first day, null for no limit.
+     * @return
+     */
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    /**
+     * The last day, null for no limit.
+     * @return
+     */
+    public LocalDate getTo() {
+        return to;
+    }
+
+    /**
+     * The first day as a VisitRollups day, null for no limit.
+     * @return
+     */
+    public String getFromDay() {
+        return from == null ? null : from.toString();
+    }
+
+    /**
+     * The last day as a VisitRollups day, null for no limit.
+     * @return
+     */
+    public String getToDay() {
+        return to == null ? null : to.toString();
+    }
+
+    /**
+     * The start of the first day in the server's time zone, null for no limit.
+     * @return
+     */
+    public Date getStart() {
+        return from == null ? null : Date.from(from.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * The end of the last day (the start of the day after) in the server's time zone, null for no limit.
+     * @return
+     */
+    public Date getEnd() {
+        return to == null ? null : Date.from(to.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    public String getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * Tells ranges apart in ChartCache keys.
+     * @return
+     */
+    @Override
+    public String toString() {
+        return (from == null ? "" : from.toString()) + ".." + (to == null ? "" : to.toString()) + "/" + granularity;
+    }
+}
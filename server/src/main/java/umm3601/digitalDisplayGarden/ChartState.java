@@ -0,0 +1,278 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Keeps the visit counts behind the views per hour charts up to date incrementally,
+ * so a chart refresh only reads the visit buckets recorded since the last one.
+ *
+ * The plantEvents visit buckets are per hour, so every visit in a bucket falls in the same
+ * local hour, day of the week and month (in time zones a whole number of hours off UTC),
+ * and a bucket is counted from its hour and count without reading its events.
+ * A bucket is closed once its hour ended
+ * more than settleMillis ago, which leaves time for visits queued in a TelemetryWriter.
+ * Every closed bucket before the high-water mark closedUntil is counted into the state,
+ * and a refresh counts the buckets that closed since then into it and moves the mark.
+ * The buckets that are still open are counted fresh on every refresh and not kept.
+ *
+ * The state is kept in memory and in the chartState collection, one document per upload:
+ * <code>
+ *     {
+ *         uploadId: String,
+ *         closedUntil: Date,
+ *         visitCount: number,
+ *         visits: [number, ...]   (int[hour][dayOfWeek][month] flattened, 24 * 7 * 12 of them)
+ *     }
+ * </code>
+ * so that a restart carries on from the mark instead of reading every visit again. Each refresh
+ * reads the saved mark and visit count to notice when another server moved on, or the upload was
+ * deleted or renamed, and reloads or starts over then.
+ * Visits written into a bucket after it closed, like the ones PlantEventStore.migrateFromPlantMetadata
+ * moves over from older databases, are only counted after reset().
+ */
+public class ChartState {
+
+    public static final long DEFAULT_SETTLE_MILLIS = 10 * 60 * 1000;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private static final int CELLS = 24 * 7 * 12;
+
+    private final MongoCollection<Document> stateCollection;
+
+    private final MongoCollection<Document> eventCollection;
+
+    private final long settleMillis;
+
+    private final Map<String, UploadState> states = new ConcurrentHashMap<>();
+
+    /* How many visit buckets refreshes read from plantEvents, for tests and logging */
+    private final AtomicLong bucketsRead = new AtomicLong();
+
+    /**
+     * The counts of one upload's closed buckets and the mark they go up to.
+     */
+    private static class UploadState {
+        long closedUntil = Long.MIN_VALUE;
+        long visitCount;
+        final int[][][] counts = new int[24][7][12];
+
+        void clear() {
+            closedUntil = Long.MIN_VALUE;
+            visitCount = 0;
+            for (int[][] hour : counts) {
+                for (int[] dayOfWeek : hour) {
+                    Arrays.fill(dayOfWeek, 0);
+                }
+            }
+        }
+    }
+
+    public ChartState(MongoDatabase database) {
+        this(database, DEFAULT_SETTLE_MILLIS);
+    }
+
+    public ChartState(MongoDatabase database, long settleMillis) {
+        stateCollection = database.getCollection("chartState");
+        eventCollection = database.getCollection("plantEvents");
+        this.settleMillis = settleMillis;
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return stateCollection;
+    }
+
+    /**
+     * The visits of an upload as int[hour][dayOfWeek][month], like VisitRollups.getVisitCounts.
+     * Only the buckets after the high-water mark are read, and only their hour and count. The returned array is a copy.
+     * @param uploadId
+     * @return
+     */
+    public int[][][] getVisitCounts(String uploadId) {
+        return getVisitCounts(uploadId, System.currentTimeMillis());
+    }
+
+    /**
+     * getVisitCounts as if it were now.
+     * @param uploadId
+     * @param now
+     * @return
+     */
+    public int[][][] getVisitCounts(String uploadId, long now) {
+        UploadState state = states.computeIfAbsent(uploadId, id -> new UploadState());
+        synchronized (state) {
+            checkSaved(uploadId, state);
+            long closeBefore = PlantEventStore.bucketHour(new Date(now - settleMillis)).getTime();
+
+            List<Bson> filter = new ArrayList<>();
+            filter.add(eq("uploadId", uploadId));
+            filter.add(eq("type", PlantEventStore.TYPE_VISIT));
+            if (state.closedUntil != Long.MIN_VALUE)
+                filter.add(gte("hour", new Date(state.closedUntil)));
+
+            //Counted apart and only added to the state once every bucket was read
+            VisitHistogram closed = new VisitHistogram();
+            VisitHistogram open = new VisitHistogram();
+            long newlyClosed = 0;
+            for (Document bucket : eventCollection.find(and(filter)).projection(fields(include("hour", "count")))) {
+                Date hour = bucket.getDate("hour");
+                if (hour == null)
+                    continue;
+                int count = (int) PlantEventStore.countOf(bucket, "count");
+                if (hour.getTime() < closeBefore) {
+                    closed.add(hour.getTime(), count);
+                    newlyClosed += count;
+                } else {
+                    open.add(hour.getTime(), count);
+                }
+                bucketsRead.incrementAndGet();
+            }
+
+            if (closeBefore > state.closedUntil) {
+                boolean firstTime = state.closedUntil == Long.MIN_VALUE;
+                add(state.counts, closed.getCounts());
+                state.closedUntil = closeBefore;
+                state.visitCount += newlyClosed;
+                //Without new visits the mark can stay behind in the database, reading from there finds nothing new
+                if (newlyClosed > 0 || firstTime)
+                    save(uploadId, state);
+            }
+
+            int[][][] counts = open.getCounts();
+            add(counts, state.counts);
+            return counts;
+        }
+    }
+
+    private static void add(int[][][] counts, int[][][] more) {
+        for (int hour = 0; hour < 24; hour++) {
+            for (int dayOfWeek = 0; dayOfWeek < 7; dayOfWeek++) {
+                for (int month = 0; month < 12; month++) {
+                    counts[hour][dayOfWeek][month] += more[hour][dayOfWeek][month];
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the state in memory agree with the saved one. It only differs when something else
+     * changed the saved state: another server advanced it, or the upload was deleted or renamed.
+     * The state in memory may be ahead of the saved mark by hours without visits, which aren't saved.
+     */
+    private void checkSaved(String uploadId, UploadState state) {
+        Document saved = stateCollection.find(eq("uploadId", uploadId))
+                .projection(fields(include("closedUntil", "visitCount"))).first();
+        if (saved == null) {
+            if (state.closedUntil != Long.MIN_VALUE)
+                state.clear();
+            return;
+        }
+        Date closedUntil = saved.getDate("closedUntil");
+        Number visitCount = saved.get("visitCount", Number.class);
+        if (closedUntil != null && visitCount != null
+                && closedUntil.getTime() <= state.closedUntil && visitCount.longValue() == state.visitCount)
+            return;
+        load(uploadId, state);
+    }
+
+    /**
+     * Reads the saved state of an upload into state, which is left empty if there is no valid saved state.
+     */
+    private void load(String uploadId, UploadState state) {
+        state.clear();
+        Document saved = stateCollection.find(eq("uploadId", uploadId)).first();
+        if (saved == null)
+            return;
+
+        Object visits = saved.get("visits");
+        Date closedUntil = saved.getDate("closedUntil");
+        Number visitCount = saved.get("visitCount", Number.class);
+        if (!(visits instanceof List) || ((List) visits).size() != CELLS || closedUntil == null || visitCount == null) {
+            System.err.println("Ignoring the malformed chart state of upload " + uploadId);
+            return;
+        }
+        int cell = 0;
+        for (int hour = 0; hour < 24; hour++) {
+            for (int dayOfWeek = 0; dayOfWeek < 7; dayOfWeek++) {
+                for (int month = 0; month < 12; month++) {
+                    state.counts[hour][dayOfWeek][month] = ((Number) ((List) visits).get(cell++)).intValue();
+                }
+            }
+        }
+        state.closedUntil = closedUntil.getTime();
+        state.visitCount = visitCount.longValue();
+    }
+
+    private void save(String uploadId, UploadState state) {
+        List<Integer> visits = new ArrayList<>(CELLS);
+        for (int hour = 0; hour < 24; hour++) {
+            for (int dayOfWeek = 0; dayOfWeek < 7; dayOfWeek++) {
+                for (int month = 0; month < 12; month++) {
+                    visits.add(state.counts[hour][dayOfWeek][month]);
+                }
+            }
+        }
+        stateCollection.updateOne(eq("uploadId", uploadId), combine(
+                set("closedUntil", new Date(state.closedUntil)),
+                set("visitCount", state.visitCount),
+                set("visits", visits)), new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * How many visit buckets refreshes have read from plantEvents so far.
+     * @return
+     */
+    public long getBucketsRead() {
+        return bucketsRead.get();
+    }
+
+    /**
+     * Moves the state of oldUploadId over to newUploadId, used when an upload is patched.
+     * @param oldUploadId
+     * @param newUploadId
+     */
+    public void renameUpload(String oldUploadId, String newUploadId) {
+        stateCollection.deleteMany(eq("uploadId", newUploadId));
+        stateCollection.updateMany(eq("uploadId", oldUploadId), set("uploadId", newUploadId));
+        states.remove(oldUploadId);
+        states.remove(newUploadId);
+    }
+
+    /**
+     * Deletes the state of an upload.
+     * @param uploadId
+     */
+    public void deleteUpload(String uploadId) {
+        stateCollection.deleteMany(eq("uploadId", uploadId));
+        states.remove(uploadId);
+    }
+
+    /**
+     * Deletes the state of every upload, so the next refreshes count every visit again.
+     * Needed after visits were written into buckets that had already closed.
+     * @param database
+     */
+    public static void reset(MongoDatabase database) {
+        database.getCollection("chartState").deleteMany(new Document());
+    }
+}
@@ -0,0 +1,52 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoDatabase;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter per database that goes up whenever the plant catalog changes
+ * (an upload is imported, patched or deleted, or a photo is saved).
+ *
+ * Anything cached from the catalog, like the ResponseCache, includes the version
+ * it was built from, so bumping the version makes all of it stale at once.
+ */
+public class DataVersion {
+
+    /* One counter per database name */
+    private static final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    private DataVersion() {
+    }
+
+    private static AtomicLong counter(String databaseName) {
+        return versions.computeIfAbsent(databaseName, name -> new AtomicLong());
+    }
+
+    /**
+     * The current version of the database's catalog.
+     * @param database
+     * @return
+     */
+    public static long get(MongoDatabase database) {
+        return counter(database.getName()).get();
+    }
+
+    /**
+     * Records that the database's catalog changed.
+     * @param database
+     */
+    public static void bump(MongoDatabase database) {
+        bump(database.getName());
+    }
+
+    /**
+     * Records that the catalog of the database with this name changed.
+     * @param databaseName
+     */
+    public static void bump(String databaseName) {
+        counter(databaseName).incrementAndGet();
+    }
+}
@@ -308,14 +308,16 @@ public class ExcelParser {
 
         Document emptyMetadataDoc = new Document();
         emptyMetadataDoc.append("pageViews", 0);
-        emptyMetadataDoc.append("visits", new BsonArray());
-        emptyMetadataDoc.append("ratings", new BsonArray());
+        emptyMetadataDoc.append("likeCount", 0);
+        emptyMetadataDoc.append("dislikeCount", 0);
+        emptyMetadataDoc.append("commentCount", 0);
 
         Document emptyMetadataBedDoc = new Document();
         emptyMetadataBedDoc.append("pageViews", 0);
         emptyMetadataBedDoc.append("qrScans", 0);
         emptyMetadataBedDoc.append("bedVisits", new BsonArray());
         emptyMetadataBedDoc.append("qrVisits", new BsonArray());
+        emptyMetadataBedDoc.append("qrScansByHour", QRScanCounters.empty());
 
 
 
@@ -354,7 +356,8 @@ public class ExcelParser {
             bedCollection.insertOne(bedDoc);
         }
 
-
+        UploadRegistry.of(database).register(uploadId);
+        DataVersion.bump(database);
     }
 
     /**
@@ -425,8 +428,17 @@ public class ExcelParser {
             bedCollection.findOneAndUpdate(newBedFilter,set("metadata", oldMetadata));
         }
 
+        //Visits and ratings live in plantEvents, unique visitors in visitorSketches, visit counts in visitRollups and chartState
+        //and trending scores in trendingSnapshots, keyed by uploadId
+        new PlantEventStore(database).renameUpload(oldUploadId, newUploadId);
+        new VisitorSketches(database).renameUpload(oldUploadId, newUploadId);
+        new VisitRollups(database).renameUpload(oldUploadId, newUploadId);
+        new ChartState(database).renameUpload(oldUploadId, newUploadId);
+        TrendingPlants.of(database).renameUpload(oldUploadId, newUploadId);
+
         clearUpload(oldUploadId, database);
         setLiveUploadId(newUploadId, database);
+        DataVersion.bump(database);
     }
 
 
@@ -467,6 +479,7 @@ public class ExcelParser {
 
     /**
      * Sets the liveUploadId within config collection to uploadId within the provided database.
+     * Also publishes it to the LiveUploadIdCache of that database.
      * @param uploadID
      * @param database
      */
@@ -474,6 +487,7 @@ public class ExcelParser {
         MongoCollection<Document> configCollection = database.getCollection("config");
         configCollection.deleteMany(exists("liveUploadId"));
         configCollection.insertOne(new Document().append("liveUploadId", uploadID));
+        LiveUploadIdCache.published(database, uploadID);
     }
 
     /**
@@ -518,6 +532,14 @@ public class ExcelParser {
         plantCollection.deleteMany(uploadIdFilter);
         commentCollection.deleteMany(uploadIdFilter);
         bedCollection.deleteMany(uploadIdFilter);
+        new PlantEventStore(database).deleteUpload(uploadId);
+        new VisitorSketches(database).deleteUpload(uploadId);
+        new VisitRollups(database).deleteUpload(uploadId);
+        new ChartState(database).deleteUpload(uploadId);
+        TrendingPlants.of(database).deleteUpload(uploadId);
+
+        UploadRegistry.of(database).unregister(uploadId);
+        BedRegistry.of(database).forget(uploadId);
     }
 
     /**
@@ -575,14 +597,14 @@ public class ExcelParser {
 
     /**
      * Checks whether the given uploadId is an uploadId that the system knows about.
-     * @param database the database to check within (in config collection)
+     * This is a lookup in the UploadRegistry of the database, not a database query.
+     * @param database the database to check within
      * @param uploadId the uploadId to check
      * @return
      */
     public static boolean isValidUploadId(MongoDatabase database, String uploadId)
     {
-        List<String> uploadIds = listUploadIds(database);
-        return uploadIds.contains(uploadId);
+        return UploadRegistry.of(database).contains(uploadId);
     }
 
 
@@ -0,0 +1,149 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * The like, dislike and comment counters kept in each plant's metadata.
+ *
+ * The counters are incremented whenever a rating or comment is stored, so reading
+ * a plant's feedback is a single lookup instead of counting its ratings and comments.
+ * backfill() recomputes them from plantEvents and the comments collection.
+ *
+ * A comment's counter is incremented before the comment is inserted and taken back if the
+ * insert fails, so a failed insert leaves it as it was. Only a crash between the two writes
+ * leaves a plant counting one comment too many, which only backfill(database, false) repairs.
+ */
+public class FeedbackCounters {
+
+    public static final String LIKE_COUNT = "metadata.likeCount";
+
+    public static final String DISLIKE_COUNT = "metadata.dislikeCount";
+
+    public static final String COMMENT_COUNT = "metadata.commentCount";
+
+    /**
+     * The update that counts one more like or dislike on a plant.
+     * @param like
+     * @return
+     */
+    public static Bson ratingIncrement(boolean like) {
+        return inc(like ? LIKE_COUNT : DISLIKE_COUNT, 1);
+    }
+
+    /**
+     * The update that counts one more comment on a plant.
+     * @return
+     */
+    public static Bson commentIncrement() {
+        return inc(COMMENT_COUNT, 1);
+    }
+
+    /**
+     * The update that takes back a commentIncrement() whose comment could not be stored.
+     * @return
+     */
+    public static Bson commentDecrement() {
+        return inc(COMMENT_COUNT, -1);
+    }
+
+    /**
+     * Reads the counters out of a plant (or its metadata projected with include(LIKE_COUNT, ...)).
+     * Counters that were never set count as 0.
+     * @param plant
+     * @return {likes, dislikes, comments}
+     */
+    public static long[] read(Document plant) {
+        Document metadata = plant == null ? null : (Document) plant.get("metadata");
+        if (metadata == null)
+            return new long[3];
+        return new long[] {
+                countOf(metadata, "likeCount"),
+                countOf(metadata, "dislikeCount"),
+                countOf(metadata, "commentCount")
+        };
+    }
+
+    private static long countOf(Document metadata, String field) {
+        Number count = metadata.get(field, Number.class);
+        return count == null ? 0 : count.longValue();
+    }
+
+    /**
+     * The projection that read() needs.
+     * @return
+     */
+    public static Bson projection() {
+        return include(LIKE_COUNT, DISLIKE_COUNT, COMMENT_COUNT);
+    }
+
+    /**
+     * Recomputes the counters of plants from the rating buckets in plantEvents and from the comments collection.
+     * @param database
+     * @param onlyMissing when true only plants that don't have counters yet are updated, otherwise every plant is
+     * @return the number of plants that were updated
+     */
+    public static int backfill(MongoDatabase database, boolean onlyMissing) {
+        MongoCollection<Document> plantCollection = database.getCollection("plants");
+
+        Bson plantFilter = onlyMissing
+                ? or(eq(LIKE_COUNT, null), eq(DISLIKE_COUNT, null), eq(COMMENT_COUNT, null))
+                : exists("_id");
+        if (plantCollection.find(plantFilter).first() == null)
+            return 0;
+
+        //Key every total by uploadId, id and gardenLocation
+        Map<List<String>, long[]> ratingTotals = new HashMap<>();
+        for (Document total : database.getCollection("plantEvents").aggregate(Arrays.asList(
+                Aggregates.match(eq("type", PlantEventStore.TYPE_RATING)),
+                Aggregates.group(new Document("uploadId", "$uploadId").append("id", "$id").append("gardenLocation", "$gardenLocation"),
+                        Accumulators.sum("likes", "$likes"),
+                        Accumulators.sum("dislikes", "$dislikes"))))) {
+            Document key = (Document) total.get("_id");
+            ratingTotals.put(Arrays.asList(key.getString("uploadId"), key.getString("id"), key.getString("gardenLocation")),
+                    new long[] {countOf(total, "likes"), countOf(total, "dislikes")});
+        }
+
+        Map<List<String>, Long> commentTotals = new HashMap<>();
+        for (Document total : database.getCollection("comments").aggregate(Arrays.asList(
+                Aggregates.group(new Document("uploadId", "$uploadId").append("id", "$commentOnPlant").append("gardenLocation", "$commentInBed"),
+                        Accumulators.sum("comments", 1))))) {
+            Document key = (Document) total.get("_id");
+            commentTotals.put(Arrays.asList(key.getString("uploadId"), key.getString("id"), key.getString("gardenLocation")),
+                    countOf(total, "comments"));
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for (Document plant : plantCollection.find(plantFilter).projection(include("uploadId", "id", "gardenLocation"))) {
+            List<String> key = Arrays.asList(plant.getString("uploadId"), plant.getString("id"), plant.getString("gardenLocation"));
+            long[] ratings = ratingTotals.getOrDefault(key, new long[2]);
+            writes.add(new UpdateOneModel<>(eq("_id", plant.get("_id")), combine(
+                    set(LIKE_COUNT, ratings[0]),
+                    set(DISLIKE_COUNT, ratings[1]),
+                    set(COMMENT_COUNT, commentTotals.getOrDefault(key, 0L)))));
+        }
+        if (!writes.isEmpty())
+            plantCollection.bulkWrite(writes);
+        return writes.size();
+    }
+}
@@ -40,14 +40,16 @@ public class FeedbackWriter {
                                 COL_PLANT_LIKES = 4,
                                 COL_PLANT_DISLIKES = 5,
                                 COL_PLANT_COMMENTS = 6,
-                                COL_PLANT_PAGEVIEWS = 7;
-    public static final int COL_PLANT_FIELDS = 8;
+                                COL_PLANT_PAGEVIEWS = 7,
+                                COL_PLANT_VISITORS = 8;
+    public static final int COL_PLANT_FIELDS = 9;
 
     //Bed Metadata Sheet Column Designations
     public static final int COL_BED_GRDNLOC = 0,
                             COL_BED_PAGEVIEWS = 1,
-                            COL_BED_QRSCANS = 2;
-    public static final int COL_BED_FIELDS = 3;
+                            COL_BED_QRSCANS = 2,
+                            COL_BED_VISITORS = 3;
+    public static final int COL_BED_FIELDS = 4;
 
     public static final int SHEET_COMMENTS = 0,
                             SHEET_METADATA = 1,
@@ -185,6 +187,13 @@ public class FeedbackWriter {
         cell.setCellValue("Views");
         cell.setCellStyle(styleCentered);
 
+        cell = row1.createCell(COL_PLANT_VISITORS);
+        cell.setCellValue("Unique");
+        cell.setCellStyle(styleCentered);
+        cell = row2.createCell(COL_PLANT_VISITORS);
+        cell.setCellValue("Visitors");
+        cell.setCellStyle(styleCentered);
+
         metadataSheet.setColumnWidth(COL_PLANT_PLANTID,1600);
         metadataSheet.setColumnWidth(COL_PLANT_GRDNLOC,1900);
         metadataSheet.setColumnWidth(COL_PLANT_COMMONNAME,3200);
@@ -192,7 +201,7 @@ public class FeedbackWriter {
         metadataSheet.createFreezePane(0, 2);
 
 
-        CellRangeAddress rangeAddress = CellRangeAddress.valueOf("A2:H1200");
+        CellRangeAddress rangeAddress = CellRangeAddress.valueOf("A2:I1200");
         metadataSheet.setAutoFilter(rangeAddress);
         metadataRowCount = 2;
     }
@@ -231,14 +240,22 @@ public class FeedbackWriter {
         cell.setCellValue("Scans");
         cell.setCellStyle(styleCentered);
 
+        cell = row1.createCell(COL_BED_VISITORS);
+        cell.setCellValue("Unique");
+        cell.setCellStyle(styleCentered);
+        cell = row2.createCell(COL_BED_VISITORS);
+        cell.setCellValue("Visitors");
+        cell.setCellStyle(styleCentered);
+
 
         bedmetadataSheet.setColumnWidth(COL_BED_GRDNLOC,7400);
         bedmetadataSheet.setColumnWidth(COL_BED_PAGEVIEWS,3200);
         bedmetadataSheet.setColumnWidth(COL_BED_QRSCANS,3200);
+        bedmetadataSheet.setColumnWidth(COL_BED_VISITORS,3200);
         bedmetadataSheet.createFreezePane(0, 2);
 
 
-        CellRangeAddress rangeAddress = CellRangeAddress.valueOf("A2:C1200");
+        CellRangeAddress rangeAddress = CellRangeAddress.valueOf("A2:D1200");
         bedmetadataSheet.setAutoFilter(rangeAddress);
         bedmetadataRowCount = 2;
     }
@@ -4,13 +4,26 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.mongodb.client.*;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import java.util.Iterator;
 
 
 import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class GardenCharts
 {
@@ -18,259 +31,319 @@ public class GardenCharts
     private final MongoCollection<Document> bedCollection;
     private final MongoCollection<Document> commentCollection;
     private final MongoCollection<Document> configCollection;
+    private final PlantEventStore eventStore;
+    private final VisitorSketches visitorSketches;
+    private final ChartState chartState;
+    private final VisitRollups visitRollups;
+
+    public static final int DEFAULT_TOP_CULTIVARS = 20;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    /* The most points a visits over time chart may have, a year of hours */
+    public static final int MAX_SERIES_POINTS = 366 * 24;
+
+    /* Computes the parts of the dashboard side by side, see getDashboard */
+    private static final ForkJoinPool dashboardPool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /* The plant counter each top cultivars chart sums, see FeedbackCounters */
+    private static final Map<String, String> TOP_CHART_COUNTERS = new HashMap<>();
+
+    static {
+        TOP_CHART_COUNTERS.put("likes", FeedbackCounters.LIKE_COUNT);
+        TOP_CHART_COUNTERS.put("dislikes", FeedbackCounters.DISLIKE_COUNT);
+        TOP_CHART_COUNTERS.put("comments", FeedbackCounters.COMMENT_COUNT);
+    }
 
     public GardenCharts(MongoDatabase database) throws IOException {
         plantCollection = database.getCollection("plants");
         bedCollection = database.getCollection("beds");
         commentCollection = database.getCollection("comments");
         configCollection = database.getCollection("config");
+        eventStore = new PlantEventStore(database);
+        visitorSketches = new VisitorSketches(database);
+        chartState = new ChartState(database);
+        visitRollups = new VisitRollups(database);
     }
 
+    /**
+     * The top DEFAULT_TOP_CULTIVARS cultivars by likes, dislikes or comments, see topCultivarsChart.
+     * @param plantController
+     * @param uploadID
+     * @param type "likes", "dislikes" or "comments"
+     * @return
+     */
     public String top20Charts(PlantController plantController, String uploadID, String type){
-        try{
-            String[] plantID = plantController.listPlantIDs(uploadID);
-            String[] cultivar = plantController.listCultivars(uploadID);
-            Map<String, Integer> result = new HashMap<>();
-            for (int i = 0; i < cultivar.length; i++) {
-
-                int likes = 0;
-                int dislikes = 0;
-                int comments = 0;
-                Document filter = new Document();
-                filter.append("uploadId", uploadID);
-                filter.append("id", plantID[i]);
-
-                FindIterable<Document> iter = plantCollection.find(filter);
-                for (Document plant : iter) {
-                    long[] feedback = plantController.getPlantFeedbackByPlantId(plant.getString("id"), plant.getString("gardenLocation"), uploadID);
-                    if (type.equals("likes")) {
-                        likes += feedback[PlantController.PLANT_FEEDBACK_LIKES];
-                    }
-                    if (type.equals("dislikes")) {
-                        dislikes += feedback[PlantController.PLANT_FEEDBACK_DISLIKES];
-                    }
-                    if (type.equals("comments")) {
-                        comments += feedback[PlantController.PLANT_FEEDBACK_COMMENTS];
-                    }
-
-                }
-
-                String key = cultivar[i];
-                if (type.equals("likes")) {
-                    Integer value = (Integer) likes;
-                    result.put(key, value);
-                }
-                if (type.equals("dislikes")) {
-                    Integer value = (Integer) dislikes;
-                    result.put(key, value);
-                }
-                if (type.equals("comments")) {
-                    Integer value = (Integer) comments;
-                    result.put(key, value);
-                }
+        return topCultivarsChart(uploadID, type, DEFAULT_TOP_CULTIVARS);
+    }
 
+    /**
+     * Form a JSON to pass to the client to render in a top cultivars bar chart.
+     *
+     * The likes, dislikes or comments of every plant are summed by cultivar in one aggregation
+     * over the plants' feedback counters, and the n largest are kept with a bounded min-heap.
+     * This returns an array of at most n entries, largest first and ties by cultivar name,
+     * {cultivarName : string, likes : number}
+     * where "likes" holds the count whatever the type. Cultivars with a count of 0 are left out,
+     * and if no cultivar has any the array is [{cultivarName : "", likes : 0}].
+     * @param uploadID
+     * @param type "likes", "dislikes" or "comments"
+     * @param n how many cultivars to return
+     * @return
+     */
+    public String topCultivarsChart(String uploadID, String type, int n){
+        String counter = TOP_CHART_COUNTERS.get(type);
+        Map<String, Integer> totals = new HashMap<>();
+
+        if (counter != null && n > 0) {
+            for (Document cultivar : plantCollection.aggregate(Arrays.asList(
+                    Aggregates.match(Filters.and(Filters.eq("uploadId", uploadID), Filters.ne("cultivar", null))),
+                    Aggregates.group("$cultivar", Accumulators.sum("total", "$" + counter)),
+                    Aggregates.match(Filters.gt("total", 0))
+            ))) {
+                if (cultivar.get("_id") instanceof String)
+                    totals.put(cultivar.getString("_id"), ((Number) cultivar.get("total")).intValue());
             }
+        }
+        return topCultivarsJSON(totals, n);
+    }
 
-            Map<String, Integer> finalMap = new HashMap<>();
-            finalMap = sortByValue(result);
-            JsonArray finalJsonArray = new JsonArray();
-            Set keyset = finalMap.keySet();
-            List<?> list = new ArrayList<>(keyset);
-            int count = 0;
-            if (finalMap.size() < 20){
-                for(int i = 0; i < finalMap.size(); i++) {
-                    JsonObject plantMetadata = new JsonObject();
-                    String cultivarName = "";
-                    int typeOfData = 0;
-                    cultivarName = (String) list.get(i);
-                    typeOfData = finalMap.get(cultivarName);
-                    if(typeOfData == 0){
-                        cultivarName = "";
-                        typeOfData = 0;
-                        plantMetadata.addProperty("cultivarName", cultivarName);
-                        plantMetadata.addProperty("likes", typeOfData);
-                        finalJsonArray.add(plantMetadata);
-                        return finalJsonArray.toString();
-                    }
-                    if (count == 0 && typeOfData == 0){
-                        cultivarName = "";
-                        typeOfData = 0;
-                        plantMetadata.addProperty("cultivarName", cultivarName);
-                        plantMetadata.addProperty("likes", typeOfData);
-                        finalJsonArray.add(plantMetadata);
-                        return finalJsonArray.toString();
-                    }
-                    plantMetadata.addProperty("cultivarName", cultivarName);
-                    plantMetadata.addProperty("likes", typeOfData);
-                    finalJsonArray.add(plantMetadata);
-                    count++;
-                }
-                return finalJsonArray.toString();
-            }
-            for(int i = 0; i < 20; i++) {
-                JsonObject plantMetadata = new JsonObject();
-                String cultivarName = "";
-                int typeOfData = 0;
-                cultivarName = (String) list.get(i);
-                typeOfData = finalMap.get(cultivarName);
-                if (count == 0 && typeOfData == 0){
-                    cultivarName = "";
-                    typeOfData = 0;
-                    plantMetadata.addProperty("cultivarName", cultivarName);
-                    plantMetadata.addProperty("likes", typeOfData);
-                    finalJsonArray.add(plantMetadata);
-                    return finalJsonArray.toString();
-                }
-                if(typeOfData == 0){
-                    return finalJsonArray.toString();
-                }
-                plantMetadata.addProperty("cultivarName", cultivarName);
-                plantMetadata.addProperty("likes", typeOfData);
-                finalJsonArray.add(plantMetadata);
-                count++;
+    /**
+     * The top cultivars chart of cultivar totals, as described in topCultivarsChart.
+     * @param totals count by cultivar, cultivars with a count of 0 or less are left out
+     * @param n
+     * @return
+     */
+    private String topCultivarsJSON(Map<String, Integer> totals, int n){
+        PriorityQueue<Map.Entry<String, Integer>> top = new PriorityQueue<>(Math.max(1, n), new RatingsComparator().reversed());
+        if (n > 0) {
+            for (Map.Entry<String, Integer> cultivar : totals.entrySet()) {
+                if (cultivar.getValue() <= 0)
+                    continue;
+                top.add(new AbstractMap.SimpleImmutableEntry<>(cultivar.getKey(), cultivar.getValue()));
+                //The head is the smallest of the cultivars kept so far
+                if (top.size() > n)
+                    top.poll();
             }
-            return finalJsonArray.toString();
+        }
+
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(top);
+        sorted.sort(new RatingsComparator());
 
+        JsonArray finalJsonArray = new JsonArray();
+        for (Map.Entry<String, Integer> cultivar : sorted) {
+            JsonObject plantMetadata = new JsonObject();
+            plantMetadata.addProperty("cultivarName", cultivar.getKey());
+            plantMetadata.addProperty("likes", cultivar.getValue());
+            finalJsonArray.add(plantMetadata);
         }
-        catch (Exception e){
-            e.printStackTrace();
-            throw e;
+        if (finalJsonArray.size() == 0) {
+            JsonObject plantMetadata = new JsonObject();
+            plantMetadata.addProperty("cultivarName", "");
+            plantMetadata.addProperty("likes", 0);
+            finalJsonArray.add(plantMetadata);
         }
+        return finalJsonArray.toString();
     }
 
 
 
     public String getPlantViewsPerHour(String uploadID) {
+        return getPlantViewsPerHour(uploadID, ChartRange.ALL_TIME);
+    }
+
+    /**
+     * The views per hour chart of the visits in a range of days.
+     * @param uploadID
+     * @param range
+     * @return
+     */
+    public String getPlantViewsPerHour(String uploadID, ChartRange range) {
 
         try {
-            Object[][] dataTable = new Object[24 + 1][2];
+            return viewsPerHourJSON(getVisitCounts(uploadID, range));
+        }
+        catch(Exception e)
+        {
+            e.printStackTrace();
+            throw e;
+        }
+    }
 
-            dataTable[0][0] = "Hour";
-            dataTable[0][1] = "Views";
+    /**
+     * The visits of an upload in a range of days as int[hour][dayOfWeek][month].
+     * Over all time only the visits since the last refresh are read, see ChartState. Otherwise
+     * only the VisitRollups of the days in the range are read, by their indexed day.
+     */
+    private int[][][] getVisitCounts(String uploadID, ChartRange range) {
+        if (range.isAllTime())
+            return chartState.getVisitCounts(uploadID);
+        return visitRollups.getVisitCounts(uploadID, range.getFromDay(), range.getToDay());
+    }
 
-            ArrayList<Date> dates = getDatesFromDB(uploadID);
-            System.out.println("DATES = " + dates);
-            ArrayList<Date>[] hoursOfDay = partitionByHour(dates);
+    /*
+    visits = int[hour][dayOfWeek][month], as from ChartState.getVisitCounts
+     */
+    private String viewsPerHourJSON(int[][][] visits) {
+        Object[][] dataTable = new Object[24 + 1][2];
 
-            int[][] viewsPerHourPerDayOfWeek = averageViewsPerDayOfWeek(hoursOfDay);
+        dataTable[0][0] = "Hour";
+        dataTable[0][1] = "Views";
 
-            int[] viewsPerHour = flaten_averageByHour(viewsPerHourPerDayOfWeek);
+        int[][] viewsPerHourPerDayOfWeek = averageViewsPerDayOfWeek(visits);
 
-            //printArray(viewsPerHour);
+        int[] viewsPerHour = flaten_averageByHour(viewsPerHourPerDayOfWeek);
 
-            int[] civilianTime = {12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
-            for (int i = 1; i < 24 + 1; i++) {
-                dataTable[i][0] = Integer.toString(civilianTime[i - 1]);
-                dataTable[i][1] = viewsPerHour[i - 1];
-            }
+        //printArray(viewsPerHour);
 
-            return makeJSON(dataTable);
-        }
-        catch(Exception e)
-        {
-            e.printStackTrace();
-            throw e;
+        int[] civilianTime = {12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+        for (int i = 1; i < 24 + 1; i++) {
+            dataTable[i][0] = Integer.toString(civilianTime[i - 1]);
+            dataTable[i][1] = viewsPerHour[i - 1];
         }
+
+        return makeJSON(dataTable);
     }
 
     public String getComboChart (String uploadID) {
+        return getComboChart(uploadID, ChartRange.ALL_TIME);
+    }
+
+    /**
+     * The combo chart of the visits in a range of days.
+     * @param uploadID
+     * @param range
+     * @return
+     */
+    public String getComboChart (String uploadID, ChartRange range) {
         try {
-            // This is the double array that will be sent to the client as a JSON Array
-            Object[][] dataTable = new Object[24 + 1][9];
+            return comboChartJSON(getVisitCounts(uploadID, range));
+        }
+        catch (Exception e){
+            e.printStackTrace();
+            throw e;
+        }
+    }
 
-            dataTable[0][0] = "Hour";
-            dataTable[0][1] = "Sunday";
-            dataTable[0][2] = "Monday";
-            dataTable[0][3] = "Tuesday";
-            dataTable[0][4] = "Wednesday";
-            dataTable[0][5] = "Thursday";
-            dataTable[0][6] = "Friday";
-            dataTable[0][7] = "Saturday";
-            dataTable[0][8] = "Average";
+    /*
+    visits = int[hour][dayOfWeek][month], as from ChartState.getVisitCounts
+     */
+    private String comboChartJSON(int[][][] visits) {
+        // This is the double array that will be sent to the client as a JSON Array
+        Object[][] dataTable = new Object[24 + 1][9];
 
-            /*
-            dates is an ArrayList that contains all the dates of the visits from the db.
-             */
-            ArrayList<Date> dates = getDatesFromDB(uploadID);
+        dataTable[0][0] = "Hour";
+        dataTable[0][1] = "Sunday";
+        dataTable[0][2] = "Monday";
+        dataTable[0][3] = "Tuesday";
+        dataTable[0][4] = "Wednesday";
+        dataTable[0][5] = "Thursday";
+        dataTable[0][6] = "Friday";
+        dataTable[0][7] = "Saturday";
+        dataTable[0][8] = "Average";
 
-            ArrayList<Date>[] hoursOfDay = partitionByHour(dates);
+        int[][] viewsPerHourPerDayOfWeek = averageViewsPerDayOfWeek(visits);
 
-            int[][] viewsPerHourPerDayOfWeek = averageViewsPerDayOfWeek(hoursOfDay);
+        int[] viewsPerHour = flaten_averageByHour(viewsPerHourPerDayOfWeek);
 
-            int[] viewsPerHour = flaten_averageByHour(viewsPerHourPerDayOfWeek);
 
+        //String[] civilianTimeString = {"12:00", "1:00", "2:00", "3:00", "4:00", "5:00", "6:00", "7:00", "8:00", "9:00", "10:00", "11:00", "12:00", "1:00", "2:00", "3:00", "4:00", "5:00", "6:00", "7:00", "8:00", "9:00", "10:00", "11:00"};
 
-            //String[] civilianTimeString = {"12:00", "1:00", "2:00", "3:00", "4:00", "5:00", "6:00", "7:00", "8:00", "9:00", "10:00", "11:00", "12:00", "1:00", "2:00", "3:00", "4:00", "5:00", "6:00", "7:00", "8:00", "9:00", "10:00", "11:00"};
+        int[] civilianTime = {12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+        for (int i = 1; i < 24 + 1; i++) {
+            //dataTable[i][0] = civilianTimeString[i - 1];
+            dataTable[i][0] = Integer.toString(civilianTime[i - 1]);
+            dataTable[i][8] = viewsPerHour[i - 1];
+        }
 
-            int[] civilianTime = {12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
-            for (int i = 1; i < 24 + 1; i++) {
-                //dataTable[i][0] = civilianTimeString[i - 1];
-                dataTable[i][0] = Integer.toString(civilianTime[i - 1]);
-                dataTable[i][8] = viewsPerHour[i - 1];
+        for(int i = 0; i < viewsPerHourPerDayOfWeek.length; i++){
+            for(int j = 0; j < viewsPerHourPerDayOfWeek[i].length; j++){
+                dataTable[i + 1][j + 1] = viewsPerHourPerDayOfWeek[i][j];
             }
+        }
 
-            for(int i = 0; i < viewsPerHourPerDayOfWeek.length; i++){
-                for(int j = 0; j < viewsPerHourPerDayOfWeek[i].length; j++){
-                    dataTable[i + 1][j + 1] = viewsPerHourPerDayOfWeek[i][j];
+        //System.out.println();
+        //print2DArray(dataTable);
+
+        return makeJSON(dataTable);
+    }
+
+    /**
+     * Form a JSON to pass to the client to render in a visits over time line chart.
+     *
+     * This returns a two dimensional array with a row for every hour, day or week of the range,
+     * [["Time", "Views"], [time : string, views : number], ...]
+     * where time is "yyyy-MM-dd HH:mm" for hours and "yyyy-MM-dd" of the day or the Sunday a week starts on.
+     * Hours come from the plantEvents hour buckets and days and weeks from the VisitRollups, reading
+     * only the buckets or days in the range. A side of the range without a limit starts or ends with the
+     * first or last visit.
+     * @param uploadID
+     * @param range
+     * @return
+     * @throws IllegalArgumentException if the chart would have more than MAX_SERIES_POINTS rows
+     */
+    public String getVisitsOverTime(String uploadID, ChartRange range) {
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[]{"Time", "Views"});
+
+        if (ChartRange.HOUR.equals(range.getGranularity())) {
+            SortedMap<Long, Integer> hours = eventStore.getHourlyVisitCounts(uploadID, range.getStart(), range.getEnd());
+            Date start = range.getStart() != null ? range.getStart() : hours.isEmpty() ? null : new Date(hours.firstKey());
+            Date end = range.getEnd() != null ? range.getEnd() : hours.isEmpty() ? null : new Date(hours.lastKey() + 1);
+            if (start != null && end != null) {
+                long first = PlantEventStore.bucketHour(start).getTime() + (start.equals(PlantEventStore.bucketHour(start)) ? 0 : HOUR_MILLIS);
+                checkSeriesPoints((end.getTime() - first + HOUR_MILLIS - 1) / HOUR_MILLIS);
+                DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+                for (long hour = first; hour < end.getTime(); hour += HOUR_MILLIS) {
+                    rows.add(new Object[]{format.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(hour), ZoneId.systemDefault())),
+                            hours.getOrDefault(hour, 0)});
                 }
             }
+        } else {
+            SortedMap<String, Integer> days = visitRollups.getDailyCounts(uploadID, range.getFromDay(), range.getToDay());
+            LocalDate first = range.getFrom() != null ? range.getFrom() : days.isEmpty() ? null : LocalDate.parse(days.firstKey());
+            LocalDate last = range.getTo() != null ? range.getTo() : days.isEmpty() ? null : LocalDate.parse(days.lastKey());
+            if (first != null && last != null) {
+                boolean weeks = ChartRange.WEEK.equals(range.getGranularity());
+                Map<LocalDate, Integer> views = new HashMap<>();
+                for (Map.Entry<String, Integer> day : days.entrySet()) {
+                    LocalDate date = LocalDate.parse(day.getKey());
+                    views.merge(weeks ? startOfWeek(date) : date, day.getValue(), Integer::sum);
+                }
+                if (weeks)
+                    first = startOfWeek(first);
+                checkSeriesPoints(ChronoUnit.DAYS.between(first, last) / (weeks ? 7 : 1) + 1);
+                for (LocalDate date = first; !date.isAfter(last); date = date.plusDays(weeks ? 7 : 1)) {
+                    rows.add(new Object[]{date.toString(), views.getOrDefault(date, 0)});
+                }
+            }
+        }
+        return makeJSON(rows.toArray(new Object[rows.size()][]));
+    }
 
-            //System.out.println();
-            //print2DArray(dataTable);
+    /* The Sunday that the week of a day starts on */
+    private static LocalDate startOfWeek(LocalDate day) {
+        return day.minusDays(day.getDayOfWeek().getValue() % 7);
+    }
 
-            return makeJSON(dataTable);
-        }
-        catch (Exception e){
-            e.printStackTrace();
-            throw e;
-        }
+    private static void checkSeriesPoints(long points) {
+        if (points > MAX_SERIES_POINTS)
+            throw new IllegalArgumentException("The chart would have " + points + " points, more than "
+                    + MAX_SERIES_POINTS + ". Choose a shorter range or a coarser granularity.");
     }
 
     /**
      * Form a JSON to pass to the client to render in the Google Maps Bed Metadata Map
      *
-     * This returns an array with an entry for each gardenLocation
+     * This returns an array with an entry for each gardenLocation, sorted according to the BedComparator
      * {gardenLocation : string, likes : number, dislikes : number, comments : number}
      * @param plantController
      * @param uploadID
      * @return
      */
     public String getBedMetadataForMap(PlantController plantController, String uploadID) {
-        // Count Flower likes
-        // Count flower dislikes
-        // Count flower comments
-
         try {
-
-
-            String[] bedNames = plantController.getGardenLocations(uploadID);
-            JsonArray out = new JsonArray();
-
-            for (int i = 0; i < bedNames.length; i++) {
-                int likes = 0;
-                int dislikes = 0;
-                int comments = 0;
-                JsonObject bed = new JsonObject();
-                Document filter = new Document();
-                filter.append("uploadId", uploadID);
-                filter.append("gardenLocation", bedNames[i]);
-
-                FindIterable<Document> iter = plantCollection.find(filter);
-                for (Document plant : iter) {
-                    long[] feedback = plantController.getPlantFeedbackByPlantId(plant.getString("id"), plant.getString("gardenLocation"), uploadID);
-
-                    likes += feedback[PlantController.PLANT_FEEDBACK_LIKES];
-                    dislikes += feedback[PlantController.PLANT_FEEDBACK_DISLIKES];
-                    comments += feedback[PlantController.PLANT_FEEDBACK_COMMENTS];
-                }
-                bed.addProperty("gardenLocation", bedNames[i]);
-                bed.addProperty("likes", likes);
-                bed.addProperty("dislikes", dislikes);
-                bed.addProperty("comments", comments);//TODO: could be refactored to include pageViews
-                out.add(bed);
-            }
-
-            return out.toString();
+            return bedMapJSON(getBedTotals(uploadID));
         }
         catch(Exception e)
         {
@@ -279,49 +352,166 @@ public class GardenCharts
         }
     }
 
+    /**
+     * The bed map of bed totals as from getBedTotals, as described in getBedMetadataForMap.
+     */
+    private String bedMapJSON(List<Document> bedTotals) {
+        JsonArray out = new JsonArray();
+        for (Document totals : bedTotals) {
+            JsonObject bed = new JsonObject();
+            bed.addProperty("gardenLocation", totals.getString("_id"));
+            bed.addProperty("likes", ((Number) totals.get("likes")).intValue());
+            bed.addProperty("dislikes", ((Number) totals.get("dislikes")).intValue());
+            bed.addProperty("comments", ((Number) totals.get("comments")).intValue());//TODO: could be refactored to include pageViews
+            out.add(bed);
+        }
+        return out.toString();
+    }
+
     /**
      * Form a JSON to pass to the client to render in the BubbleMap google chart.
      *
-     * This returns an array with an entry for each gardenLocation
-     * {gardenLocation : string, likes : number, pageViews : number}
-     * @param plantController in order to getGardenLocations and PlantFeedback to count likes
-     * @param bedController in order to get Page views for a bed
+     * This returns an array with an entry for each gardenLocation, sorted according to the BedComparator
+     * {gardenLocation : string, likes : number, pageViews : number, uniqueVisitors : number}
+     * @param plantController
+     * @param bedController
      * @param uploadID
      * @return
      */
     public String getBedMetadataForBubbleMap(PlantController plantController, BedController bedController, String uploadID) {
-        // Count Flower likes
-        // Count flower dislikes
-        // Count flower comments
+        try {
+            Map<String, Long> uniqueVisitors = visitorSketches.getUniqueVisitors(uploadID, VisitorSketches.KIND_BED);
+
+            //The beds of this upload only, by the uploadId_gardenLocation index
+            return bubbleMapJSON(getBedTotals(uploadID), getBedPageViews(getBeds(uploadID)), uniqueVisitors);
+        }
+        catch(Exception e)
+        {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * The bubble map of bed totals as from getBedTotals, as described in getBedMetadataForBubbleMap.
+     * @param bedTotals
+     * @param pageViews page views by gardenLocation
+     * @param uniqueVisitors unique visitors by VisitorSketches.key(null, gardenLocation)
+     * @return
+     */
+    private String bubbleMapJSON(List<Document> bedTotals, Map<String, Integer> pageViews, Map<String, Long> uniqueVisitors) {
+        JsonArray out = new JsonArray();
+        for (Document totals : bedTotals) {
+            String gardenLocation = totals.getString("_id");
+            JsonObject bed = new JsonObject();
+            bed.addProperty("gardenLocation", gardenLocation);
+            bed.addProperty("likes", ((Number) totals.get("likes")).intValue());
+            bed.addProperty("pageViews", pageViews.getOrDefault(gardenLocation, 0));
+            bed.addProperty("uniqueVisitors", uniqueVisitors.getOrDefault(VisitorSketches.key(null, gardenLocation), 0L));
+            out.add(bed);
+        }
+        return out.toString();
+    }
 
+    /**
+     * Form a JSON to pass to the client to render in the QR scan heatmap google chart,
+     * showing where visitors enter the garden and when.
+     *
+     * This returns a table with a row for each bed, sorted according to the BedComparator, and a column
+     * for each hour of the day in the server's time zone
+     * [["Bed", "0", "1", ..., "23"], [gardenLocation, scans from 0:00 to 0:59, ..., scans from 23:00 to 23:59], ...]
+     * The scans are read from the beds' QRScanCounters, not counted from their qrVisits.
+     * @param uploadID
+     * @return
+     */
+    public String getQRScanHeatmap(String uploadID) {
         try {
-            int pageViews;
-
-            String[] bedNames = plantController.getGardenLocations(uploadID);
-            JsonArray out = new JsonArray();
-
-            for (int i = 0; i < bedNames.length; i++) {
-                int likes = 0;
-                JsonObject bed = new JsonObject();
-                Document filter = new Document();
-                filter.append("uploadId", uploadID);
-                filter.append("gardenLocation", bedNames[i]);
-
-                FindIterable<Document> iter = plantCollection.find(filter);
-                for (Document plant : iter) {
-                    long[] feedback = plantController.getPlantFeedbackByPlantId(plant.getString("id"), plant.getString("gardenLocation"), uploadID);
-                    likes += feedback[PlantController.PLANT_FEEDBACK_LIKES];
-                }
+            return qrScanHeatmapJSON(getBeds(uploadID));
+        }
+        catch(Exception e)
+        {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * The QR scan heatmap of beds as from getBeds, as described in getQRScanHeatmap.
+     */
+    private String qrScanHeatmapJSON(List<Document> beds) {
+        Object[][] dataTable = new Object[beds.size() + 1][24 + 1];
 
-                pageViews = bedController.getPageViews(bedNames[i], uploadID);
+        dataTable[0][0] = "Bed";
+        for (int hour = 0; hour < 24; hour++) {
+            dataTable[0][hour + 1] = Integer.toString(hour);
+        }
 
-                bed.addProperty("gardenLocation", bedNames[i]);
-                bed.addProperty("likes", likes);
-                bed.addProperty("pageViews", pageViews);
-                out.add(bed);
+        for (int i = 0; i < beds.size(); i++) {
+            int[] scans = QRScanCounters.read(beds.get(i));
+            dataTable[i + 1][0] = beds.get(i).getString("gardenLocation");
+            for (int hour = 0; hour < 24; hour++) {
+                dataTable[i + 1][hour + 1] = scans[hour];
             }
+        }
+
+        return makeJSON(dataTable);
+    }
 
-            return out.toString();
+    /**
+     * Form a JSON with every admin chart, for the dashboard to render all at once.
+     *
+     * This returns an object with the chart of each api/admin/charts route, by route name
+     * {viewsPerHour, comboChart, plantMetadataMap, plantMetadataBubbleMap, qrScanHeatmap, top20Likes, top20disLikes, top20Comments}
+     * each the same as the route returns. The plants of the upload are read once, and their counters
+     * are summed by cultivar and by bed in parallel on the dashboardPool, while the visit counts, beds
+     * and unique visitors are read alongside. The charts are then formed in parallel.
+     * @param uploadID
+     * @return
+     */
+    public String getDashboard(String uploadID) {
+        return getDashboard(uploadID, ChartRange.ALL_TIME);
+    }
+
+    /**
+     * The dashboard with the visits of a range of days in its views per hour and combo charts.
+     * The other charts are the same for any range.
+     * @param uploadID
+     * @param range
+     * @return
+     */
+    public String getDashboard(String uploadID, ChartRange range) {
+        try {
+            ForkJoinTask<int[][][]> visits = dashboardPool.submit(() -> getVisitCounts(uploadID, range));
+            ForkJoinTask<List<Document>> beds = dashboardPool.submit(() -> getBeds(uploadID));
+            ForkJoinTask<Map<String, Long>> uniqueVisitors = dashboardPool.submit(
+                    () -> visitorSketches.getUniqueVisitors(uploadID, VisitorSketches.KIND_BED));
+
+            List<Document> plants = plantCollection.find(Filters.eq("uploadId", uploadID))
+                    .projection(Projections.include("cultivar", "gardenLocation",
+                            FeedbackCounters.LIKE_COUNT, FeedbackCounters.DISLIKE_COUNT, FeedbackCounters.COMMENT_COUNT))
+                    .into(new ArrayList<>());
+            PlantTotals totals = dashboardPool.submit(
+                    () -> plants.parallelStream().collect(PlantTotals::new, PlantTotals::add, PlantTotals::addAll)).join();
+            List<Document> bedTotals = totals.getBedTotals();
+
+            Map<String, ForkJoinTask<String>> charts = new LinkedHashMap<>();
+            charts.put("viewsPerHour", dashboardPool.submit(() -> viewsPerHourJSON(visits.join())));
+            charts.put("comboChart", dashboardPool.submit(() -> comboChartJSON(visits.join())));
+            charts.put("plantMetadataMap", dashboardPool.submit(() -> bedMapJSON(bedTotals)));
+            charts.put("plantMetadataBubbleMap", dashboardPool.submit(() -> bubbleMapJSON(bedTotals, getBedPageViews(beds.join()), uniqueVisitors.join())));
+            charts.put("qrScanHeatmap", dashboardPool.submit(() -> qrScanHeatmapJSON(beds.join())));
+            charts.put("top20Likes", dashboardPool.submit(() -> topCultivarsJSON(totals.getCultivarTotals(PlantTotals.LIKES), DEFAULT_TOP_CULTIVARS)));
+            charts.put("top20disLikes", dashboardPool.submit(() -> topCultivarsJSON(totals.getCultivarTotals(PlantTotals.DISLIKES), DEFAULT_TOP_CULTIVARS)));
+            charts.put("top20Comments", dashboardPool.submit(() -> topCultivarsJSON(totals.getCultivarTotals(PlantTotals.COMMENTS), DEFAULT_TOP_CULTIVARS)));
+
+            //The charts are JSON already, so they are put together as they are
+            StringBuilder dashboard = new StringBuilder("{");
+            for (Map.Entry<String, ForkJoinTask<String>> chart : charts.entrySet()) {
+                if (dashboard.length() > 1)
+                    dashboard.append(',');
+                dashboard.append('"').append(chart.getKey()).append("\":").append(chart.getValue().join());
+            }
+            return dashboard.append('}').toString();
         }
         catch(Exception e)
         {
@@ -330,6 +520,120 @@ public class GardenCharts
         }
     }
 
+    /**
+     * The beds of an upload with their gardenLocation, page views and QR scan counters,
+     * sorted according to the BedComparator.
+     */
+    private List<Document> getBeds(String uploadID) {
+        List<Document> beds = new ArrayList<>();
+        for (Document bed : bedCollection.find(Filters.eq("uploadId", uploadID))
+                .projection(Projections.include("gardenLocation", "metadata.pageViews", QRScanCounters.QR_SCANS_BY_HOUR))) {
+            if (bed.get("gardenLocation") instanceof String)
+                beds.add(bed);
+        }
+        BedComparator byBed = new BedComparator();
+        beds.sort((a, b) -> byBed.compare(a.getString("gardenLocation"), b.getString("gardenLocation")));
+        return beds;
+    }
+
+    /**
+     * The page views of beds as from getBeds, by gardenLocation.
+     */
+    private static Map<String, Integer> getBedPageViews(List<Document> beds) {
+        Map<String, Integer> pageViews = new HashMap<>();
+        for (Document bed : beds) {
+            Document metadata = (Document) bed.get("metadata");
+            if (metadata != null)
+                pageViews.put(bed.getString("gardenLocation"), metadata.getInteger("pageViews", 0));
+        }
+        return pageViews;
+    }
+
+    /**
+     * The like, dislike and comment counters of plants summed by cultivar and by gardenLocation,
+     * the same as the top cultivars charts and getBedTotals sum them.
+     */
+    private static class PlantTotals {
+        static final int LIKES = 0;
+        static final int DISLIKES = 1;
+        static final int COMMENTS = 2;
+
+        private final Map<String, int[]> byCultivar = new HashMap<>();
+        private final Map<String, int[]> byBed = new HashMap<>();
+
+        void add(Document plant) {
+            Document metadata = (Document) plant.get("metadata");
+            int[] counters = {
+                    counter(metadata, FeedbackCounters.LIKE_COUNT),
+                    counter(metadata, FeedbackCounters.DISLIKE_COUNT),
+                    counter(metadata, FeedbackCounters.COMMENT_COUNT)};
+            if (plant.get("cultivar") instanceof String)
+                add(byCultivar, plant.getString("cultivar"), counters);
+            if (plant.get("gardenLocation") instanceof String)
+                add(byBed, plant.getString("gardenLocation"), counters);
+        }
+
+        void addAll(PlantTotals other) {
+            other.byCultivar.forEach((cultivar, counters) -> add(byCultivar, cultivar, counters));
+            other.byBed.forEach((gardenLocation, counters) -> add(byBed, gardenLocation, counters));
+        }
+
+        private static void add(Map<String, int[]> totals, String key, int[] counters) {
+            int[] total = totals.computeIfAbsent(key, k -> new int[3]);
+            for (int i = 0; i < 3; i++) {
+                total[i] += counters[i];
+            }
+        }
+
+        /* A counter like FeedbackCounters.LIKE_COUNT, 0 if the plant doesn't have it */
+        private static int counter(Document metadata, String counter) {
+            Object value = metadata == null ? null : metadata.get(counter.substring("metadata.".length()));
+            return value instanceof Number ? ((Number) value).intValue() : 0;
+        }
+
+        Map<String, Integer> getCultivarTotals(int counter) {
+            Map<String, Integer> totals = new HashMap<>();
+            byCultivar.forEach((cultivar, counters) -> totals.put(cultivar, counters[counter]));
+            return totals;
+        }
+
+        /* In the form getBedTotals returns */
+        List<Document> getBedTotals() {
+            List<Document> totals = new ArrayList<>();
+            byBed.forEach((gardenLocation, counters) -> totals.add(new Document("_id", gardenLocation)
+                    .append("likes", counters[LIKES]).append("dislikes", counters[DISLIKES]).append("comments", counters[COMMENTS])));
+            sortByBed(totals);
+            return totals;
+        }
+    }
+
+    /**
+     * Sums the feedback counters of every plant of an upload by gardenLocation, in one aggregation.
+     * Each result is {_id : gardenLocation, likes, dislikes, comments}.
+     * @param uploadID
+     * @return the results sorted according to the BedComparator
+     */
+    private List<Document> getBedTotals(String uploadID) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(Filters.and(Filters.eq("uploadId", uploadID), Filters.ne("gardenLocation", null))));
+        pipeline.add(Aggregates.group("$gardenLocation",
+                Accumulators.sum("likes", "$" + FeedbackCounters.LIKE_COUNT),
+                Accumulators.sum("dislikes", "$" + FeedbackCounters.DISLIKE_COUNT),
+                Accumulators.sum("comments", "$" + FeedbackCounters.COMMENT_COUNT)));
+
+        List<Document> totals = plantCollection.aggregate(pipeline).into(new ArrayList<>());
+        sortByBed(totals);
+        return totals;
+    }
+
+    /**
+     * Sorts bed totals by their _id gardenLocation according to the BedComparator.
+     */
+    private static void sortByBed(List<Document> bedTotals) {
+        BedComparator byBed = new BedComparator();
+        bedTotals.sort((a, b) -> byBed.compare(a.getString("_id"), b.getString("_id")));
+    }
+
 
     /*
         ******************************** UTILITIES ************************************
@@ -390,27 +694,6 @@ public class GardenCharts
         }
     }
 
-    public void printPartitionByMonth(ArrayList<Date>[] in){
-        System.out.println("[");
-        for(int i = 0; i < in.length; i++){
-            System.out.println(in[i] + ",");
-        }
-        System.out.println("]");
-    }
-
-    public void printPartitionByDayOfWeek(ArrayList<Date>[][] in){
-        System.out.println("Partitioned by day of the week");
-        System.out.println("[");
-        for(int i = 0; i < in.length; i++){
-            for(int j = 0; j < in[i].length; j++) {
-                System.out.print(in[i][j]);
-                System.out.print("  |  ");
-            }
-            System.out.println();
-        }
-        System.out.println("]");
-    }
-
     public void print2DArray(int[][] in){
         System.out.println("Printing 2d array");
         for(int i = 0; i < in.length; i++){
@@ -437,29 +720,17 @@ public class GardenCharts
     }
 
     public ArrayList<Date> getDatesFromDB(String uploadID){
-        Document filter = new Document();
-        filter.put("uploadId", uploadID);
-
-        ArrayList<Date> dates = new ArrayList<Date>();
-
-        //Get all
-        FindIterable doc = plantCollection.find(filter);
-
-        Iterator iterator = doc.iterator();
-        while(iterator.hasNext()) {
-            Document result = (Document) iterator.next();
-
-            //Get metadata.rating array
-            List<Document> ratings = (List<Document>) ((Document) result.get("metadata")).get("visits");
-
-            for(int i = 0; i < ratings.size(); i++){
-                Document d = ratings.get(i);
-                if(!d.isEmpty())
-                    dates.add(((Date) d.get("visit")));
-            }
+        //Get all visits from the plantEvents buckets
+        return eventStore.getVisitDates(uploadID);
+    }
 
-        }
-        return  dates;
+    /*
+    Counts visit dates into int[hour][dayOfWeek][month] in one pass, see VisitHistogram
+     */
+    public int[][][] countVisits(Collection<Date> dates){
+        VisitHistogram histogram = new VisitHistogram();
+        histogram.addAll(dates);
+        return histogram.getCounts();
     }
 
     public int[] flaten_averageByHour(int[][] viewsByHourAndDayOfWeek){
@@ -480,125 +751,17 @@ public class GardenCharts
         return avgHour;
     }
 
-    public int[][] averageViewsPerDayOfWeek(ArrayList<Date>[] hoursOfDay){
-        int[][] viewsPerHourPerDayOfWeek = new int[24][7];
-
-        for(int i = 0; i < hoursOfDay.length; i++){
-            int[] views1DArray = new int[7];
-            if(hoursOfDay[i] != null) {
-                views1DArray = averageViewsPerDayOfWeekPerHour(hoursOfDay[i]);
-            }
-            viewsPerHourPerDayOfWeek[i] = views1DArray;
-        }
-        //print2DArray(viewsPerHourPerDayOfWeek);
-        return viewsPerHourPerDayOfWeek;
-    }
-
-    public int[] averageViewsPerDayOfWeekPerHour(ArrayList<Date> hoursOfDay){
-        int[] views1DArray = new int[7];
-
-        if(hoursOfDay != null) {
-            ArrayList<Date> specificHour = hoursOfDay;
-
-            ArrayList<Date>[][] threeDArray = partitionByDayOfWeek(partitionByMonth(specificHour));
-            int[][] views2dArray = flaten_viewsByDayAndMonth(threeDArray);
-            views1DArray = flaten_AverageByMonth(views2dArray);
-
-            //System.out.print("Hour " + i + " ");
-            //printArray(views1DArray);
-
-        }
-        return views1DArray;
-    }
-
-    public ArrayList<Date>[] partitionByHour(ArrayList<Date> dates){
-        ArrayList<Date>[] hoursOfDay = new ArrayList[24];
-
-        for(Date date : dates){
-            int hour = date.getHours();
-            ArrayList<Date> oneHour = new ArrayList<>();
-            if(hoursOfDay[hour] != null){
-                oneHour = hoursOfDay[hour];
-                oneHour.add(date);
-                hoursOfDay[hour] = oneHour;
-            }else {
-                oneHour.add(date);
-                hoursOfDay[hour] = oneHour;
-            }
-        }
-
-        return hoursOfDay;
-    }
-
-    public ArrayList<Date>[] partitionByMonth(ArrayList<Date> dates){
-        ArrayList<Date>[] months = new ArrayList[12];
-        for(Date date : dates){
-            int month = date.getMonth();
-            ArrayList<Date> datesInMonth;
-
-            if(months[month] != null){
-                datesInMonth = months[month];
-                datesInMonth.add(date);
-                months[month] = datesInMonth;
-            }else {
-                datesInMonth = new ArrayList<>();
-                datesInMonth.add(date);
-                months[month] = datesInMonth;
-            }
-        }
-        return months;
-    }
-
-    /*
-    ArrayList<Date>[dayOfWeek][month] = new int[7][12]
-     */
-    public ArrayList<Date>[][] partitionByDayOfWeek(ArrayList<Date>[] datesByMonth){
-        ArrayList<Date>[][] datesPerDayAndMonth = new ArrayList[7][12];
-
-        for(int i = 0; i < datesByMonth.length; i++){
-            if(datesByMonth[i] != null) {
-                for (Date date : datesByMonth[i]) {
-
-                    int dayOfWeek = date.getDay();
-                    int month = i;
-                    ArrayList<Date> dates;
-
-                    if (datesPerDayAndMonth[dayOfWeek][month] != null) {
-                        dates = datesPerDayAndMonth[dayOfWeek][month];
-                        dates.add(date);
-                        datesPerDayAndMonth[dayOfWeek][month] = dates;
-                    } else {
-                        dates = new ArrayList<>();
-                        dates.add(date);
-                        datesPerDayAndMonth[dayOfWeek][month] = dates;
-                    }
-                }
-            }
-        }
-
-        return datesPerDayAndMonth;
-    }
-
     /*
-    int[dayOfWeek][month] = new int[7][12]
+    visitsByHourDayOfWeekAndMonth = int[hour][dayOfWeek][month], as from VisitRollups.getVisitCounts or countVisits
      */
-    public int[][] flaten_viewsByDayAndMonth(ArrayList<Date>[][] dates){
-        int[][] viewsPerDayAndMonth = new int[7][12];
-
-        for(int i = 0; i < dates.length; i++){
-            if(dates[i] != null){
-                for(int j = 0; j < dates[i].length; j++){
-                    //System.out.println("for index " + i + ", dates[i].length is: " + dates[i].length);
-                    if(dates[i][j] != null){
-                        viewsPerDayAndMonth[i][j] = dates[i][j].size();
-                    }
-                }
-            }
+    public int[][] averageViewsPerDayOfWeek(int[][][] visitsByHourDayOfWeekAndMonth){
+        int[][] viewsPerHourPerDayOfWeek = new int[24][7];
+        for(int i = 0; i < visitsByHourDayOfWeekAndMonth.length; i++){
+            viewsPerHourPerDayOfWeek[i] = flaten_AverageByMonth(visitsByHourDayOfWeekAndMonth[i]);
         }
-        return viewsPerDayAndMonth;
+        return viewsPerHourPerDayOfWeek;
     }
 
-
     /*
     int[dayOfWeek][month] = new int[7][12]
      */
@@ -623,24 +786,17 @@ public class GardenCharts
         return averagePerDayOfWeek;
     }
 
-    private static Map<String, Integer> sortByValue(Map<String, Integer> unsortMap) {
-        List<Map.Entry<String, Integer>> list =
-                new LinkedList<Map.Entry<String, Integer>>(unsortMap.entrySet());
-
-        Collections.sort(list, new RatingsComparator());
-        Map<String, Integer> sortedMap = new LinkedHashMap<String, Integer>();
-        for (Map.Entry<String, Integer> entry : list) {
-            sortedMap.put(entry.getKey(), entry.getValue());
-        }
-
-        return sortedMap;
-    }
-
+    /**
+     * Orders cultivar counts largest first, and equal counts by cultivar name.
+     */
     public static class RatingsComparator implements Comparator<Map.Entry<String, Integer>>
     {
         public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2)
         {
-            return -(o1.getValue()).compareTo(o2.getValue());
+            int byValue = -(o1.getValue()).compareTo(o2.getValue());
+            if (byValue != 0)
+                return byValue;
+            return o1.getKey().compareTo(o2.getKey());
         }
     }
 
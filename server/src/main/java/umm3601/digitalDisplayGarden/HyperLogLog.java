@@ -0,0 +1,131 @@
+package umm3601.digitalDisplayGarden;
+
+import org.bson.Document;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Estimates how many distinct visitor tokens were seen, in fixed memory.
+ *
+ * Each token is hashed to 64 bits. The first PRECISION bits pick one of REGISTERS
+ * registers, and the register keeps the largest number of leading zeros (plus one)
+ * seen in the remaining bits. The estimate is within about 3% of the true count.
+ *
+ * Two sketches are merged by taking the larger value of every register, which is why
+ * a sketch can be stored as a map of register index to value and updated in Mongo
+ * with $max: concurrent updates and sketches of different days merge without reading.
+ */
+public class HyperLogLog {
+
+    public static final int PRECISION = 10;
+
+    public static final int REGISTERS = 1 << PRECISION;
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    /**
+     * Counts a visitor.
+     * @param token the visitor's anonymous token
+     */
+    public void add(String token) {
+        long hash = hash(token);
+        int index = registerIndex(hash);
+        int rank = registerValue(hash);
+        if (rank > registers[index])
+            registers[index] = (byte) rank;
+    }
+
+    /**
+     * Adds every visitor of another sketch to this one.
+     * @param other
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * Adds a sketch stored as a {index: value} Document, as written by VisitorSketches.
+     * @param stored may be null
+     */
+    public void merge(Document stored) {
+        if (stored == null)
+            return;
+        for (Map.Entry<String, Object> register : stored.entrySet()) {
+            int index = Integer.parseInt(register.getKey());
+            int value = ((Number) register.getValue()).intValue();
+            if (index >= 0 && index < REGISTERS && value > registers[index])
+                registers[index] = (byte) value;
+        }
+    }
+
+    /**
+     * The estimated number of distinct visitors.
+     * @return
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0)
+                zeros++;
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        //Few visitors leave most registers empty, and counting those is more accurate
+        if (estimate <= 2.5 * REGISTERS && zeros > 0)
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        return Math.round(estimate);
+    }
+
+    /**
+     * The non-empty registers as a {index: value} Document.
+     * @return
+     */
+    public Document toDocument() {
+        Document stored = new Document();
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != 0)
+                stored.append(Integer.toString(i), (int) registers[i]);
+        }
+        return stored;
+    }
+
+    /**
+     * A 64 bit hash of a token: FNV-1a over its UTF-8 bytes, then MurmurHash3's
+     * finalizer so that every bit depends on every byte.
+     */
+    public static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : token.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Which register a hash goes to.
+     */
+    public static int registerIndex(long hash) {
+        return (int) (hash >>> (64 - PRECISION));
+    }
+
+    /**
+     * The value a hash offers its register: the position of the first 1 bit after the index bits.
+     */
+    public static int registerValue(long hash) {
+        long rest = hash << PRECISION;
+        return Math.min(Long.numberOfLeadingZeros(rest), 64 - PRECISION) + 1;
+    }
+}
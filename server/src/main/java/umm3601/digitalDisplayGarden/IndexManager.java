@@ -0,0 +1,180 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Creates the indexes that the controllers' queries depend on and checks,
+ * using MongoDB's explain command, that those queries actually use them.
+ *
+ * Server.main calls ensureIndexes() and then verifyHotQueries() at startup.
+ */
+public class IndexManager {
+
+    private final MongoDatabase database;
+
+    /**
+     * An index that should exist: collection name, index name and key document.
+     */
+    private static class IndexSpec {
+        final String collection;
+        final String name;
+        final Document keys;
+
+        IndexSpec(String collection, String name, Document keys) {
+            this.collection = collection;
+            this.name = name;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * A query that runs on (almost) every request and must not scan its collection.
+     * The filter values are only examples, the query planner picks the same plan for any value.
+     */
+    private static class HotQuery {
+        final String description;
+        final String collection;
+        final Document filter;
+        final Document sort;
+
+        HotQuery(String description, String collection, Document filter, Document sort) {
+            this.description = description;
+            this.collection = collection;
+            this.filter = filter;
+            this.sort = sort;
+        }
+    }
+
+    private static final List<IndexSpec> INDEXES = new ArrayList<>();
+    private static final List<HotQuery> HOT_QUERIES = new ArrayList<>();
+
+    static {
+        //PlantController.getPlantByPlantID, incrementMetadata, addVisit, addFlowerRating, getPlantFeedbackByPlantId
+        INDEXES.add(new IndexSpec("plants", "uploadId_id_gardenLocation",
+                new Document("uploadId", 1).append("id", 1).append("gardenLocation", 1)));
+        //PlantController.listPlants and getGardenLocations, GardenCharts bed maps
+        INDEXES.add(new IndexSpec("plants", "uploadId_gardenLocation",
+                new Document("uploadId", 1).append("gardenLocation", 1)));
+        //PlantController.listPlants sorted and paged by commonName, cultivar and _id
+        INDEXES.add(new IndexSpec("plants", "uploadId_commonName_cultivar__id",
+                new Document("uploadId", 1).append("commonName", 1).append("cultivar", 1).append("_id", 1)));
+        //PlantController.writeToCommentSheet and ExcelParser patching read an upload's comments by this index's uploadId prefix
+        INDEXES.add(new IndexSpec("comments", "uploadId_commentOnPlant_commentInBed",
+                new Document("uploadId", 1).append("commentOnPlant", 1).append("commentInBed", 1)));
+        //PlantEventStore buckets, by plant and by upload
+        INDEXES.add(new IndexSpec("plantEvents", "uploadId_id_gardenLocation_type_hour",
+                new Document("uploadId", 1).append("id", 1).append("gardenLocation", 1).append("type", 1).append("hour", 1)));
+        INDEXES.add(new IndexSpec("plantEvents", "uploadId_type_hour",
+                new Document("uploadId", 1).append("type", 1).append("hour", 1)));
+        //VisitorSketches, one sketch per plant or bed and day
+        INDEXES.add(new IndexSpec("visitorSketches", "uploadId_kind_gardenLocation_id_day",
+                new Document("uploadId", 1).append("kind", 1).append("gardenLocation", 1).append("id", 1).append("day", 1)));
+        //VisitRollups, one document per upload and day
+        INDEXES.add(new IndexSpec("visitRollups", "uploadId_day",
+                new Document("uploadId", 1).append("day", 1)));
+        //ChartState, one document per upload
+        INDEXES.add(new IndexSpec("chartState", "uploadId",
+                new Document("uploadId", 1)));
+        //TrendingPlants, one snapshot per upload
+        INDEXES.add(new IndexSpec("trendingSnapshots", "uploadId",
+                new Document("uploadId", 1)));
+        //BedController
+        INDEXES.add(new IndexSpec("beds", "uploadId_gardenLocation",
+                new Document("uploadId", 1).append("gardenLocation", 1)));
+
+        HOT_QUERIES.add(new HotQuery("PlantController plant by id", "plants",
+                new Document("id", "16001.0").append("gardenLocation", "1S").append("uploadId", "uploadId"), null));
+        HOT_QUERIES.add(new HotQuery("PlantController listPlants", "plants",
+                new Document("uploadId", "uploadId"), new Document("commonName", 1).append("cultivar", 1).append("_id", 1)));
+        HOT_QUERIES.add(new HotQuery("PlantController comments of an upload", "comments",
+                new Document("uploadId", "uploadId"), null));
+        HOT_QUERIES.add(new HotQuery("PlantEventStore current bucket", "plantEvents",
+                new Document("uploadId", "uploadId").append("id", "16001.0").append("gardenLocation", "1S")
+                        .append("type", "visit").append("hour", new Date(0)), null));
+        HOT_QUERIES.add(new HotQuery("VisitorSketches today's sketch", "visitorSketches",
+                new Document("uploadId", "uploadId").append("kind", "plant").append("gardenLocation", "1S")
+                        .append("id", "16001.0").append("day", "2017-04-13"), null));
+        HOT_QUERIES.add(new HotQuery("VisitRollups today's rollup", "visitRollups",
+                new Document("uploadId", "uploadId").append("day", "2017-04-13"), null));
+        HOT_QUERIES.add(new HotQuery("ChartState visits since the mark", "plantEvents",
+                new Document("uploadId", "uploadId").append("type", "visit").append("hour", new Document("$gte", new Date(0))), null));
+        HOT_QUERIES.add(new HotQuery("VisitRollups days in a chart range", "visitRollups",
+                new Document("uploadId", "uploadId").append("day", new Document("$gte", "2017-04-01").append("$lte", "2017-04-13")), null));
+        HOT_QUERIES.add(new HotQuery("BedController bed by gardenLocation", "beds",
+                new Document("gardenLocation", "1S").append("uploadId", "uploadId"), null));
+        HOT_QUERIES.add(new HotQuery("GardenCharts plants by gardenLocation", "plants",
+                new Document("uploadId", "uploadId").append("gardenLocation", "1S"), null));
+    }
+
+    public IndexManager(MongoDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Creates every index that doesn't exist yet.
+     * Creating an index that already exists does nothing.
+     */
+    public void ensureIndexes() {
+        for (IndexSpec spec : INDEXES) {
+            database.getCollection(spec.collection).createIndex(spec.keys, new IndexOptions().name(spec.name));
+        }
+    }
+
+    /**
+     * Explains each hot query and returns a description of every one whose winning plan
+     * scans its whole collection. An empty list means every hot query uses an index.
+     *
+     * If the server can't explain a query, a warning is printed and that query is skipped.
+     * @return descriptions of the queries that would scan their collection
+     */
+    public List<String> verifyHotQueries() {
+        List<String> scans = new ArrayList<>();
+        for (HotQuery query : HOT_QUERIES) {
+            Document find = new Document("find", query.collection).append("filter", query.filter);
+            if (query.sort != null)
+                find.append("sort", query.sort);
+
+            try {
+                Document explained = database.runCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+                Document queryPlanner = (Document) explained.get("queryPlanner");
+                Document winningPlan = queryPlanner == null ? null : (Document) queryPlanner.get("winningPlan");
+                if (winningPlan == null) {
+                    System.err.println("[indexes] Could not read the query plan of \"" + query.description + "\"");
+                } else if (containsStage(winningPlan, "COLLSCAN")) {
+                    scans.add(query.description + " (" + query.collection + " " + query.filter.keySet() + ")");
+                } else {
+                    System.out.println("[indexes] " + query.description + " uses an index");
+                }
+            } catch (MongoException | ClassCastException e) {
+                System.err.println("[indexes] Could not explain \"" + query.description + "\": " + e.getMessage());
+            }
+        }
+        return scans;
+    }
+
+    /**
+     * Looks through a query plan and its input stages for a stage with the given name.
+     */
+    private static boolean containsStage(Document plan, String stage) {
+        if (stage.equals(plan.getString("stage")))
+            return true;
+        Object inputStage = plan.get("inputStage");
+        if (inputStage instanceof Document && containsStage((Document) inputStage, stage))
+            return true;
+        Object inputStages = plan.get("inputStages");
+        if (inputStages instanceof List) {
+            for (Object input : (List) inputStages) {
+                if (input instanceof Document && containsStage((Document) input, stage))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.util.JSON;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a JSON array one element at a time, so that a response can be written
+ * straight from a Mongo cursor without building the whole array in memory first.
+ *
+ * Each element is serialized with com.mongodb.util.JSON, and the separators match
+ * JSON.serialize of a whole list, so the output is the same as before.
+ */
+public class JsonArrayWriter {
+
+    private final Writer out;
+
+    private boolean empty = true;
+
+    /**
+     * Starts the array.
+     * @param out
+     * @throws IOException
+     */
+    public JsonArrayWriter(Writer out) throws IOException {
+        this.out = out;
+        out.write("[ ");
+    }
+
+    /**
+     * Writes the next element of the array.
+     * @param element a Document, String, Number, or anything else JSON.serialize accepts
+     * @throws IOException
+     */
+    public void write(Object element) throws IOException {
+        if (!empty)
+            out.write(" , ");
+        out.write(JSON.serialize(element));
+        empty = false;
+    }
+
+    /**
+     * Ends the array. This does not close the underlying Writer.
+     * @throws IOException
+     */
+    public void end() throws IOException {
+        out.write("]");
+    }
+
+    /**
+     * Writes everything a query returns as one array. The cursor is closed even if writing fails.
+     * @param elements
+     * @param out
+     * @throws IOException
+     */
+    public static void writeAll(MongoIterable<?> elements, Writer out) throws IOException {
+        JsonArrayWriter array = new JsonArrayWriter(out);
+        try (MongoCursor<?> cursor = elements.iterator()) {
+            while (cursor.hasNext()) {
+                array.write(cursor.next());
+            }
+        }
+        array.end();
+    }
+}
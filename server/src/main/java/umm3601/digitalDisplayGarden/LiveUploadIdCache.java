@@ -0,0 +1,104 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoDatabase;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the liveUploadId of a database in memory so that visitor requests
+ * don't have to query the config collection every time they need it.
+ *
+ * The cached value is replaced whenever ExcelParser.setLiveUploadId publishes a
+ * new liveUploadId (which populateDatabase and patchDatabase both do), and is
+ * re-read from the config collection once it is older than the refresh interval,
+ * in case another process changed it.
+ */
+public class LiveUploadIdCache {
+
+    /* One cache per database name, shared by everything that uses that database */
+    private static final Map<String, LiveUploadIdCache> caches = new ConcurrentHashMap<>();
+
+    /* How long a cached liveUploadId is trusted before it is re-read from the database */
+    private static volatile long refreshIntervalMillis = 30 * 1000;
+
+    private final MongoDatabase database;
+
+    private volatile String liveUploadId;
+
+    /* System.currentTimeMillis() of the last time liveUploadId was read or published, 0 if never */
+    private volatile long lastRefreshed;
+
+    private LiveUploadIdCache(MongoDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Get the cache for the given database, creating it if needed.
+     * @param database
+     * @return
+     */
+    public static LiveUploadIdCache of(MongoDatabase database) {
+        return caches.computeIfAbsent(database.getName(), name -> new LiveUploadIdCache(database));
+    }
+
+    /**
+     * Sets how long (in milliseconds) a cached liveUploadId is used before it is checked
+     * against the config collection again. A value of 0 means always check.
+     * @param millis
+     */
+    public static void setRefreshInterval(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Refresh interval cannot be negative: " + millis);
+        refreshIntervalMillis = millis;
+    }
+
+    /**
+     * The liveUploadId, read from memory unless it is stale.
+     * @return
+     */
+    public String get() {
+        if (System.currentTimeMillis() - lastRefreshed >= refreshIntervalMillis) {
+            refresh();
+        }
+        return liveUploadId;
+    }
+
+    /**
+     * Re-read the liveUploadId from the config collection.
+     * @return the liveUploadId that was read
+     */
+    public synchronized String refresh() {
+        liveUploadId = ExcelParser.getLiveUploadId(database);
+        lastRefreshed = System.currentTimeMillis();
+        return liveUploadId;
+    }
+
+    /**
+     * Called when a new liveUploadId has been written to the config collection by this process.
+     * @param uploadId
+     */
+    public synchronized void publish(String uploadId) {
+        liveUploadId = uploadId;
+        lastRefreshed = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget the cached value so that the next get() reads the config collection.
+     */
+    public synchronized void invalidate() {
+        lastRefreshed = 0;
+    }
+
+    /**
+     * Called by ExcelParser when it writes a liveUploadId, updates the cache of that database if there is one.
+     * @param database
+     * @param uploadId
+     */
+    static void published(MongoDatabase database, String uploadId) {
+        LiveUploadIdCache cache = caches.get(database.getName());
+        if (cache != null) {
+            cache.publish(uploadId);
+        }
+    }
+}
@@ -65,6 +65,7 @@ public class Photos {
             photoPath.append("photoPath", relPath);
 
             plantCollection.findOneAndUpdate(filterDoc,new Document("$set", photoPath));
+            DataVersion.bump(plantCollection.getNamespace().getDatabaseName());
         }
         catch (IOException ioe) {
             ioe.printStackTrace();
@@ -2,9 +2,12 @@ package umm3601.digitalDisplayGarden;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.mongodb.MongoException;
 import com.mongodb.client.*;
 import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.util.JSON;
 import org.bson.BsonInvalidOperationException;
 import org.bson.Document;
@@ -17,6 +20,10 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 
 import static com.mongodb.client.model.Filters.*;
@@ -42,6 +49,20 @@ public class PlantController {
 
     private final MongoDatabase db;
 
+    private final PlantEventStore eventStore;
+
+    private final VisitorSketches visitorSketches;
+
+    private final VisitRollups visitRollups;
+
+    private final TrendingPlants trendingPlants;
+
+    /* When set, visitor telemetry is queued here instead of written on the request thread */
+    private TelemetryWriter telemetryWriter;
+
+    /* The longest flushTelemetry waits for the queue */
+    private static final long TELEMETRY_FLUSH_TIMEOUT_MILLIS = 30 * 1000;
+
     public PlantController(MongoDatabase database) {
 
         plantCollection = database.getCollection("plants");
@@ -49,13 +70,80 @@ public class PlantController {
         configCollection = database.getCollection("config");
         bedCollection = database.getCollection("beds");
         db = database;
+        eventStore = new PlantEventStore(database);
+        visitorSketches = new VisitorSketches(database);
+        visitRollups = new VisitRollups(database);
+        trendingPlants = TrendingPlants.of(database);
+    }
+
+    /**
+     * Queue page views, visits and ratings in the given TelemetryWriter instead of writing them
+     * to the database immediately. Pass null to go back to writing immediately.
+     * @param telemetryWriter
+     */
+    public void setTelemetryWriter(TelemetryWriter telemetryWriter) {
+        this.telemetryWriter = telemetryWriter;
+    }
+
+    /**
+     * Waits until the telemetry queued so far has been written. Call this before an upload is renamed
+     * or deleted, or the queued updates of the old uploadId are written after it is gone: the plant
+     * and bed counters match nothing and are lost, and the event, rollup and visitor upserts create
+     * documents for an uploadId that nothing will ever remove.
+     * A request that validated its uploadId just before can still write after this, as without the queue.
+     */
+    public void flushTelemetry() {
+        if (telemetryWriter == null)
+            return;
+        try {
+            if (!telemetryWriter.awaitFlushed(TELEMETRY_FLUSH_TIMEOUT_MILLIS))
+                System.err.println("Telemetry was still being written after " + TELEMETRY_FLUSH_TIMEOUT_MILLIS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Updates one document, through the TelemetryWriter if there is one and it isn't full.
+     * A queued update counts as successful since whether it matches a document isn't known yet.
+     * @return true if the update was queued or matched a document
+     */
+    private boolean recordTelemetry(MongoCollection<Document> collection, Bson filter, Bson update) {
+        if (telemetryWriter != null && telemetryWriter.enqueue(collection, filter, update))
+            return true;
+        return null != collection.findOneAndUpdate(filter, update);
+    }
+
+    /**
+     * Records a visit or rating event, through the TelemetryWriter if there is one and it isn't full.
+     */
+    private void recordEvent(UpdateOneModel<Document> write) {
+        if (telemetryWriter == null || !telemetryWriter.enqueue(eventStore.getCollection(), write))
+            eventStore.record(write);
+    }
+
+    /**
+     * Counts a visit in the visit chart rollups, through the TelemetryWriter if there is one and it isn't full.
+     */
+    private void recordRollup(UpdateOneModel<Document> write) {
+        if (telemetryWriter == null || !telemetryWriter.enqueue(visitRollups.getCollection(), write))
+            visitRollups.record(write);
+    }
+
+    /**
+     * Records a unique visitor in a sketch, through the TelemetryWriter if there is one and it isn't full.
+     */
+    private void recordVisitor(UpdateOneModel<Document> write) {
+        if (telemetryWriter == null || !telemetryWriter.enqueue(visitorSketches.getCollection(), write))
+            visitorSketches.record(write);
     }
 
     /**
      * Finds a plant and atomically increments the specified field
      * in its metadata object. This method returns true if the plant was
      * found successfully (false otherwise), but there is no indication of
-     * whether the field was found.
+     * whether the field was found. When a TelemetryWriter is set the update is
+     * queued and true is returned without checking that the plant exists.
      *
      * @param plantID a ID number of a plant in the DB
      * @param field a field to be incremented in the metadata object of the plant
@@ -64,19 +152,39 @@ public class PlantController {
      * @throws com.mongodb.MongoCommandException when the id is valid and the field is empty
      */
     public boolean incrementMetadata(String plantID, String field, String uploadId) {
-        if (!ExcelParser.isValidUploadId(db, uploadId)) {
+        return incrementMetadata(plantID, field, RequestContext.forUploadId(db, uploadId));
+    }
+
+    /**
+     * Same as incrementMetadata(String, String, String) but for a request that already validated its uploadId.
+     * @param plantID a ID number of a plant in the DB
+     * @param field a field to be incremented in the metadata object of the plant
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return true if a plant was found
+     */
+    public boolean incrementMetadata(String plantID, String field, RequestContext context) {
+        if (context == null) {
             return false;
         }
 
         Document searchDocument = new Document();
         searchDocument.append("id", plantID);
-        searchDocument.append("uploadId", uploadId);
+        searchDocument.append("uploadId", context.uploadId);
 
         Bson updateDocument = inc("metadata." + field, 1);
 
-        return null != plantCollection.findOneAndUpdate(searchDocument, updateDocument);
+        return recordTelemetry(context.plantCollection, searchDocument, updateDocument);
     }
 
+    /* The fields the visitor's plant list needs, selected with fields=catalog */
+    public static final String[] CATALOG_FIELDS = {"id", "commonName", "cultivar", "gardenLocation", "photoPath"};
+
+    /* The query params listPlants reads */
+    public static final String[] LIST_PARAMS = {"gardenLocation", "commonName", "fields", "limit", "after"};
+
+    /* The most plants one page of listPlants can hold */
+    public static final int MAX_PAGE_SIZE = 500;
+
     /**
      * List all plants within the database, filtered by uploadId, gardenLocation and commonName
      * @param queryParams
@@ -84,13 +192,78 @@ public class PlantController {
      * @return
      */
     public String listPlants(Map<String, String[]> queryParams, String uploadId) {
+        return listPlants(queryParams, RequestContext.forUploadId(db, uploadId));
+    }
 
-        if (!ExcelParser.isValidUploadId(db, uploadId))
-            return "null";
+    /**
+     * List all plants within the request's dataset, filtered by gardenLocation and commonName,
+     * sorted by commonName, cultivar and _id.
+     *
+     * Optional query params:
+     * <code>
+     *     fields=a,b,c   only return these fields (and _id), fields=catalog returns CATALOG_FIELDS
+     *     limit=n        return one page of at most n (up to MAX_PAGE_SIZE) plants
+     *     after=cursor   return the page after the one that returned this cursor
+     * </code>
+     * With limit or after the result is a page instead of an array:
+     * <code>
+     *     {
+     *         plants: [ ... ],
+     *         next: String, the cursor of the next page, or null on the last page
+     *     }
+     * </code>
+     * A page always includes commonName and cultivar, since the cursor is made from them.
+     * @param queryParams
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return "null" if the uploadId or one of the optional params is invalid
+     */
+    public String listPlants(Map<String, String[]> queryParams, RequestContext context) {
+        StringWriter out = new StringWriter();
+        try {
+            writePlants(queryParams, context, out);
+        } catch (IOException e) {
+            //A StringWriter doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Whether listPlants with these params returns only catalog fields, that change when an upload
+     * is imported or patched and not when visitors view, rate or comment on a plant. Without fields,
+     * or with metadata among them, the plants include their page views and feedback counters.
+     * @param queryParams
+     * @return
+     */
+    public static boolean isCatalogOnly(Map<String, String[]> queryParams) {
+        if (!queryParams.containsKey("fields"))
+            return false;
+        for (String field : queryParams.get("fields")[0].split(",")) {
+            field = field.trim();
+            if (field.equals("metadata") || field.startsWith("metadata."))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as listPlants(Map, RequestContext), but writes the plants to out one at a time
+     * as they come from the database, instead of building the whole response first.
+     * @param queryParams
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @param out
+     * @throws IOException if writing to out fails
+     */
+    public void writePlants(Map<String, String[]> queryParams, RequestContext context, Writer out) throws IOException {
+
+        if (context == null) {
+            out.write("null");
+            return;
+        }
 
         //Create a filter based on query params
         Document filterDoc = new Document();
-        filterDoc.append("uploadId", uploadId);
+        filterDoc.append("uploadId", context.uploadId);
 
         if (queryParams.containsKey("gardenLocation")) {
             String location =(queryParams.get("gardenLocation")[0]);
@@ -103,10 +276,105 @@ public class PlantController {
             filterDoc = filterDoc.append("commonName", commonName);
         }
 
-        FindIterable<Document> matchingPlants = plantCollection.find(filterDoc);
-        matchingPlants.sort(Sorts.ascending("commonName", "cultivar"));
+        boolean paged = queryParams.containsKey("limit") || queryParams.containsKey("after");
+        int limit = MAX_PAGE_SIZE;
+        if (queryParams.containsKey("limit")) {
+            try {
+                limit = Math.min(Integer.parseInt(queryParams.get("limit")[0]), MAX_PAGE_SIZE);
+            } catch (NumberFormatException e) {
+                System.err.println("listPlants was passed an invalid limit " + queryParams.get("limit")[0]);
+                out.write("null");
+                return;
+            }
+            if (limit < 1) {
+                System.err.println("listPlants was passed an invalid limit " + limit);
+                out.write("null");
+                return;
+            }
+        }
+
+        Bson filter = filterDoc;
+        if (queryParams.containsKey("after")) {
+            Bson afterCursor = parseListCursor(queryParams.get("after")[0]);
+            if (afterCursor == null) {
+                System.err.println("listPlants was passed an invalid cursor " + queryParams.get("after")[0]);
+                out.write("null");
+                return;
+            }
+            filter = and(filterDoc, afterCursor);
+        }
 
-        return JSON.serialize(matchingPlants);
+        FindIterable<Document> matchingPlants = context.plantCollection.find(filter);
+        matchingPlants.sort(Sorts.ascending("commonName", "cultivar", "_id"));
+
+        if (queryParams.containsKey("fields")) {
+            List<String> fields = new ArrayList<>();
+            for (String field : queryParams.get("fields")[0].split(",")) {
+                if (field.trim().equals("catalog"))
+                    fields.addAll(Arrays.asList(CATALOG_FIELDS));
+                else if (!field.trim().isEmpty())
+                    fields.add(field.trim());
+            }
+            if (paged) {
+                fields.add("commonName");
+                fields.add("cultivar");
+            }
+            matchingPlants.projection(include(fields));
+        }
+
+        if (!paged) {
+            JsonArrayWriter.writeAll(matchingPlants, out);
+            return;
+        }
+
+        //Read one extra plant to know whether there is a next page
+        out.write("{ \"plants\" : ");
+        JsonArrayWriter plants = new JsonArrayWriter(out);
+        String next = null;
+        try (MongoCursor<Document> cursor = matchingPlants.limit(limit + 1).iterator()) {
+            Document last = null;
+            for (int written = 0; cursor.hasNext(); written++) {
+                Document plant = cursor.next();
+                if (written == limit) {
+                    next = makeListCursor(last);
+                    break;
+                }
+                plants.write(plant);
+                last = plant;
+            }
+        }
+        plants.end();
+        out.write(" , \"next\" : " + JSON.serialize(next) + "}");
+    }
+
+    /**
+     * The cursor for the page of listPlants that starts after this plant.
+     */
+    private static String makeListCursor(Document plant) {
+        Document position = new Document();
+        position.append("commonName", plant.getString("commonName"));
+        position.append("cultivar", plant.getString("cultivar"));
+        position.append("_id", plant.getObjectId("_id").toHexString());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The filter that selects plants sorted after the position stored in a cursor made by makeListCursor.
+     * @return null if the cursor isn't valid
+     */
+    private static Bson parseListCursor(String cursor) {
+        try {
+            Document position = Document.parse(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+            String commonName = position.getString("commonName");
+            String cultivar = position.getString("cultivar");
+            ObjectId id = new ObjectId(position.getString("_id"));
+            return or(
+                    gt("commonName", commonName),
+                    and(eq("commonName", commonName), gt("cultivar", cultivar)),
+                    and(eq("commonName", commonName), eq("cultivar", cultivar), gt("_id", id)));
+        } catch (IllegalArgumentException | ClassCastException | org.bson.json.JsonParseException e) {
+            return null;
+        }
     }
 
     /**
@@ -138,46 +406,70 @@ public class PlantController {
      * @return a string representation of a JSON value
      */
     public String getPlantByPlantID(String plantID, String gardenLocation, boolean admin, String uploadID) {
+        return getPlantByPlantID(plantID, gardenLocation, admin, RequestContext.forUploadId(db, uploadID));
+    }
 
-        if (!ExcelParser.isValidUploadId(db, uploadID)) {
+    /**
+     * Same as getPlantByPlantID(String, String, boolean, String) but for a request that already validated its uploadId.
+     * The uploadId is not validated again when the visit is recorded.
+     *
+     * @param plantID an ID number of a plant in the DB
+     * @param gardenLocation the location in the garden to find the plant in
+     * @param admin Whether the accessor was an admin or user. If not admin, increments viewer metadata
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return a string representation of a JSON value
+     */
+    public String getPlantByPlantID(String plantID, String gardenLocation, boolean admin, RequestContext context) {
+        return getPlantByPlantID(plantID, gardenLocation, admin, context, null);
+    }
+
+    /**
+     * Same as getPlantByPlantID(String, String, boolean, RequestContext), and also counts the visitor
+     * in the plant's unique visitor sketch.
+     *
+     * @param plantID an ID number of a plant in the DB
+     * @param gardenLocation the location in the garden to find the plant in
+     * @param admin Whether the accessor was an admin or user. If not admin, increments viewer metadata
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @param visitorToken the visitor's anonymous token, null to not count unique visitors
+     * @return a string representation of a JSON value
+     */
+    public String getPlantByPlantID(String plantID, String gardenLocation, boolean admin, RequestContext context, String visitorToken) {
+
+        if (context == null) {
             return "null";
         }
+        String uploadID = context.uploadId;
 
-        FindIterable<Document> jsonPlant;
-        String returnVal;
+        Bson filter = and(eq("id", plantID), eq("gardenLocation", gardenLocation), eq("uploadId", uploadID));
+        Bson visitorFields = fields(include("id", "commonName", "cultivar", "gardenLocation", "photoPath"));
+        Document plant;
         try {
-            jsonPlant = plantCollection.find(and(eq("id", plantID),
-                    eq("gardenLocation", gardenLocation),
-                    eq("uploadId", uploadID)))
-                    .projection(fields(include("id", "commonName", "cultivar", "gardenLocation", "photoPath")));
-
-            Iterator<Document> iterator = jsonPlant.iterator();
-
-            //When you get Plant by PlantId
-            //Increase the pageViews for that plant
-            //Add a visit to the plant
-            if (iterator.hasNext()) {
-                returnVal = iterator.next().toJson();
+            //A visitor's view is counted by the same call that reads the plant
+            if (admin) {
+                plant = context.plantCollection.find(filter).projection(visitorFields).first();
             } else {
-                System.err.println("Request for plant (id=" + plantID + ",gardenLocation=" + gardenLocation +",uploadId=" + uploadID +") that doesn't exist.");
-                returnVal = "null";
-                return returnVal;
+                plant = context.plantCollection.findOneAndUpdate(filter, inc("metadata.pageViews", 1),
+                        new FindOneAndUpdateOptions().projection(visitorFields));
             }
-
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
-            returnVal = "null";
-            return returnVal;
+            return "null";
         }
 
-        //returnVal is not null.
-        if(!admin) {
-            incrementMetadata(plantID, "pageViews", uploadID);
-            addVisit(plantID, gardenLocation, uploadID);
+        if (plant == null) {
+            System.err.println("Request for plant (id=" + plantID + ",gardenLocation=" + gardenLocation +",uploadId=" + uploadID +") that doesn't exist.");
+            return "null";
         }
 
-        return returnVal;
+        //The visit goes to plantEvents, through the TelemetryWriter when there is one
+        if (!admin) {
+            addVisit(plantID, gardenLocation, context);
+            if (visitorToken != null)
+                recordVisitor(VisitorSketches.visitWrite(uploadID, VisitorSketches.KIND_PLANT, plantID, gardenLocation, visitorToken, new Date()));
+        }
 
+        return plant.toJson();
     }
 
     public void getPlantPhoto(OutputStream outputStream, String plantId, String gardenLocation, String uploadID) {
@@ -226,41 +518,17 @@ public class PlantController {
      */
     public long[] getPlantFeedbackByPlantId(String plantID, String gardenLocation, String uploadID) {
 
-        Document filter = new Document();
-        filter.put("commentOnPlant", plantID);
-        filter.put("commentInBed", gardenLocation);
-        filter.put("uploadId", uploadID);
-        long comments = commentCollection.count(filter);
-        long likes = 0;
-        long dislikes = 0;
-
-
-        //Get a plant by plantID and location
-        FindIterable doc = plantCollection.find(new Document().append("id", plantID).append("gardenLocation", gardenLocation).append("uploadId", uploadID));
-
-        Iterator iterator = doc.iterator();
-        if(iterator.hasNext()) {
-            Document result = (Document) iterator.next();
-
-            //Get metadata.rating array
-            List<Document> ratings = (List<Document>) ((Document) result.get("metadata")).get("ratings");
+        //The counters are kept up to date in the plant's metadata, so this is a single lookup
+        Document plant = plantCollection.find(new Document().append("id", plantID).append("gardenLocation", gardenLocation).append("uploadId", uploadID))
+                .projection(FeedbackCounters.projection()).first();
+        if (plant == null)
+            return null;
 
-            //Loop through all of the entries within the array, counting like=true(like) and like=false(dislike)
-            for(Document rating : ratings)
-            {
-                if(rating.get("like").equals(true)) {
-                    likes++;
-                }
-                else if(rating.get("like").equals(false)) { // THIS IS IMPORTANT (do not delete)
-                    dislikes++;
-                }
-            }
-        }
-        else return null;
+        long[] counters = FeedbackCounters.read(plant);
         long[] out = new long[PLANT_FEEDBACK_FIELDS];
-        out[PLANT_FEEDBACK_LIKES] = likes;
-        out[PLANT_FEEDBACK_DISLIKES] = dislikes;
-        out[PLANT_FEEDBACK_COMMENTS] = comments;
+        out[PLANT_FEEDBACK_LIKES] = counters[0];
+        out[PLANT_FEEDBACK_DISLIKES] = counters[1];
+        out[PLANT_FEEDBACK_COMMENTS] = counters[2];
 
         return out;
     }
@@ -280,12 +548,23 @@ public class PlantController {
      */
 
     public String getPlantFeedbackByPlantIdJSON(String plantID, String gardenLocation, String uploadID) {
-        if (!ExcelParser.isValidUploadId(db, uploadID))
+        return getPlantFeedbackByPlantIdJSON(plantID, gardenLocation, RequestContext.forUploadId(db, uploadID));
+    }
+
+    /**
+     * Same as getPlantFeedbackByPlantIdJSON(String, String, String) but for a request that already validated its uploadId.
+     * @param plantID The plant to get feedback of
+     * @param gardenLocation
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return JSON for the number of comments, likes, and dislikes
+     */
+    public String getPlantFeedbackByPlantIdJSON(String plantID, String gardenLocation, RequestContext context) {
+        if (context == null)
             return "null";
         Document out = new Document();
 
         //Get feedback then package it in a JSON(BSON) Document
-        long[] metadataCount = getPlantFeedbackByPlantId(plantID, gardenLocation, uploadID);
+        long[] metadataCount = getPlantFeedbackByPlantId(plantID, gardenLocation, context.uploadId);
 
         if(metadataCount == null) //invalid gardenLocation or plantId
             return "null";
@@ -303,14 +582,24 @@ public class PlantController {
      * @return
      */
     public String[] getGardenLocations(String uploadID){
+        return getGardenLocations(RequestContext.forUploadId(db, uploadID));
+    }
+
+    /**
+     * Returns an array of Strings of all garden locations for the request's dataset
+     * sorted according to the BedComparator
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return
+     */
+    public String[] getGardenLocations(RequestContext context){
 
-        if (!ExcelParser.isValidUploadId(db, uploadID))
+        if (context == null)
             return null;
 
         //Get distinct gardenLocations for this uploadId
         Document filter = new Document();
-        filter.append("uploadId", uploadID);
-        DistinctIterable<String>  bedIterator = plantCollection.distinct("gardenLocation", filter, String.class);
+        filter.append("uploadId", context.uploadId);
+        DistinctIterable<String>  bedIterator = context.plantCollection.distinct("gardenLocation", filter, String.class);
         List<String> beds = new ArrayList<String>();
         for(String s : bedIterator)
         {
@@ -360,11 +649,15 @@ public class PlantController {
     }
 
     public JsonArray getGardenLocationsJSON(String uploadID){
-        if (!ExcelParser.isValidUploadId(db, uploadID))
+        return getGardenLocationsJSON(RequestContext.forUploadId(db, uploadID));
+    }
+
+    public JsonArray getGardenLocationsJSON(RequestContext context){
+        if (context == null)
             return new JsonArray();
 
         //Get garden locations and package them in a JsonArray
-        String[] beds = getGardenLocations(uploadID);
+        String[] beds = getGardenLocations(context);
         JsonArray out = new JsonArray();
         for(int i = 0; i < beds.length; i++)
         {
@@ -383,39 +676,76 @@ public class PlantController {
      * @return
      */
     public String getCommonNamesJSON(String uploadID){
-        if (!ExcelParser.isValidUploadId(db, uploadID))
-            return "null";
+        return getCommonNamesJSON(RequestContext.forUploadId(db, uploadID));
+    }
+
+    /**
+     * Get a json containing a list of commonNames of the request's dataset sorted by common name
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return
+     */
+    public String getCommonNamesJSON(RequestContext context){
+        StringWriter out = new StringWriter();
+        try {
+            writeCommonNames(context, out);
+        } catch (IOException e) {
+            //A StringWriter doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Same as getCommonNamesJSON(RequestContext), but writes the names to out as they come from the database.
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @param out
+     * @throws IOException if writing to out fails
+     */
+    public void writeCommonNames(RequestContext context, Writer out) throws IOException {
+        if (context == null) {
+            out.write("null");
+            return;
+        }
 
         AggregateIterable<Document> documents
-                = plantCollection.aggregate(
+                = context.plantCollection.aggregate(
                 Arrays.asList(
-                        Aggregates.match(eq("uploadId", uploadID)), //!! Order is important here
+                        Aggregates.match(eq("uploadId", context.uploadId)), //!! Order is important here
                         Aggregates.group("$commonName"),
                         Aggregates.sort(Sorts.ascending("commonName"))
                 ));
-        return JSON.serialize(documents);
+        JsonArrayWriter.writeAll(documents, out);
     }
 
     /**
      * Adds a flower visit to the database
-     * for a plant by this plantID for this uploadId
+     * for a plant by this plantID for this uploadId.
+     * This does not check that the plant exists, getPlantByPlantID only calls it for plants it found.
      * @param plantID
      * @param uploadId
      * @return
      */
     public boolean addVisit(String plantID, String gardenLocation, String uploadId) {
-        if (!ExcelParser.isValidUploadId(db, uploadId))
-            return false;
-        Document filterDoc = new Document();
-        filterDoc.append("id", plantID);
-        filterDoc.append("gardenLocation", gardenLocation);
-        filterDoc.append("uploadId", uploadId);
+        return addVisit(plantID, gardenLocation, RequestContext.forUploadId(db, uploadId));
+    }
 
-        //Add a {visit : Date} to the visits array
-        Document visit = new Document();
-        visit.append("visit", new Date());
+    /**
+     * Adds a flower visit to the database for a plant by this plantID in the request's dataset
+     * @param plantID
+     * @param gardenLocation
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return
+     */
+    public boolean addVisit(String plantID, String gardenLocation, RequestContext context) {
+        if (context == null)
+            return false;
 
-        return null != plantCollection.findOneAndUpdate(filterDoc, push("metadata.visits", visit));
+        //Add a {visit : Date} to this hour's visit bucket, and count it for the visit charts
+        Date now = new Date();
+        recordEvent(PlantEventStore.visitWrite(context.uploadId, plantID, gardenLocation, now));
+        recordRollup(VisitRollups.visitWrite(context.uploadId, now));
+        trendingPlants.record(context.uploadId, plantID, gardenLocation, TrendingPlants.VISIT_WEIGHT, now.getTime());
+        return true;
     }
 
     /**
@@ -436,13 +766,25 @@ public class PlantController {
      */
 
     public boolean storePlantComment(String json, String uploadID) {
+        return storePlantComment(json, RequestContext.forUploadId(db, uploadID));
+    }
+
+    /**
+     * Same as storePlantComment(String, String) but for a request that already validated its uploadId.
+     * @param json string representation of JSON object
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return true iff the comment was successfully submitted
+     */
+    public boolean storePlantComment(String json, RequestContext context) {
         Date now = new Date();
-        if (!ExcelParser.isValidUploadId(db, uploadID))
+        if (context == null)
             return false;
+        String uploadID = context.uploadId;
 
         try {
 
             Document toInsert = new Document();
+            Document plantDoc;
             Document parsedDocument = Document.parse(json);
 
             //If request contains plantId get the plant json by the plantId and current uploadID
@@ -450,13 +792,13 @@ public class PlantController {
             if (parsedDocument.containsKey("plantId") && parsedDocument.get("plantId") instanceof String
                     && parsedDocument.containsKey("gardenLocation") && parsedDocument.get("gardenLocation") instanceof String) {
 
-                FindIterable<Document> jsonPlant = plantCollection.find(and(eq("id",
+                FindIterable<Document> jsonPlant = context.plantCollection.find(and(eq("id",
                         parsedDocument.getString("plantId")), eq("gardenLocation", parsedDocument.getString("gardenLocation")), eq("uploadId", uploadID)));
 
                 Iterator<Document> iterator = jsonPlant.iterator();
 
                 if(iterator.hasNext()){
-                    Document plantDoc = iterator.next();
+                    plantDoc = iterator.next();
                     toInsert.put("commentOnPlant", plantDoc.getString("id"));
                     toInsert.put("commentInBed", plantDoc.getString("gardenLocation"));
                     toInsert.put("date", now);
@@ -479,7 +821,17 @@ public class PlantController {
 
             toInsert.append("uploadId", uploadID);
 
-            commentCollection.insertOne(toInsert);
+            //Count the comment first, so a failed insert can be taken back instead of leaving commentCount low
+            context.plantCollection.updateOne(eq("_id", plantDoc.get("_id")), FeedbackCounters.commentIncrement());
+            try {
+                context.commentCollection.insertOne(toInsert);
+            } catch (MongoException e) {
+                context.plantCollection.updateOne(eq("_id", plantDoc.get("_id")), FeedbackCounters.commentDecrement());
+                e.printStackTrace();
+                return false;
+            }
+            trendingPlants.record(uploadID, plantDoc.getString("id"), plantDoc.getString("gardenLocation"),
+                    TrendingPlants.COMMENT_WEIGHT, now.getTime());
 
         } catch (BsonInvalidOperationException e) {
             e.printStackTrace();
@@ -502,9 +854,22 @@ public class PlantController {
      * @return true iff the operation succeeded.
      */
     public boolean addFlowerRating(String plantId, String gardenLocation, boolean like, String uploadID) {
+        return addFlowerRating(plantId, gardenLocation, like, RequestContext.forUploadId(db, uploadID));
+    }
+
+    /**
+     * Same as addFlowerRating(String, String, boolean, String) but for a request that already validated its uploadId.
+     * @param plantId
+     * @param gardenLocation
+     * @param like true if this is a like, false if this is a dislike
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return true iff the operation succeeded.
+     */
+    public boolean addFlowerRating(String plantId, String gardenLocation, boolean like, RequestContext context) {
 
-        if (!ExcelParser.isValidUploadId(db, uploadID))
+        if (context == null)
             return false;
+        String uploadID = context.uploadId;
 
         //Get a plant by this plantId and uploadId
         Document filterDoc = new Document();
@@ -512,24 +877,22 @@ public class PlantController {
         filterDoc.append("gardenLocation", gardenLocation);
         filterDoc.append("uploadId", uploadID);
 
-        Document plantOID;
-        Iterator<Document> itr = plantCollection.find(filterDoc).iterator();
-        if(itr.hasNext()) {
-            plantOID = itr.next();
-        }
-        else
+        //Count the rating on the plant, and get its _id, in one call. No plant means nothing is counted.
+        Document plant = context.plantCollection.findOneAndUpdate(filterDoc, FeedbackCounters.ratingIncrement(like),
+                new FindOneAndUpdateOptions().projection(include("_id")));
+        if (plant == null)
         {
             System.err.println("Plant not found with plantId " + plantId + " for uploadId " + uploadID);
             return false;
         }
 
-        //Push a new {like : bool, date : Date, ratingOnObjectOfId : ObjectId} to metadata.ratings for this plant
-        Document rating = new Document();
-        rating.append("like", like);
-        rating.append("date", new Date());
-        rating.append("ratingOnObjectOfId", new ObjectId(plantOID.get("_id").toString()));
-
-        return null != plantCollection.findOneAndUpdate(filterDoc, push("metadata.ratings", rating));
+        //Push a new {like : bool, date : Date, ratingOnObjectOfId : ObjectId} to this hour's rating bucket
+        Date now = new Date();
+        recordEvent(PlantEventStore.ratingWrite(uploadID, plantId, gardenLocation, like,
+                plant.getObjectId("_id"), now));
+        trendingPlants.record(uploadID, plantId, gardenLocation,
+                like ? TrendingPlants.LIKE_WEIGHT : TrendingPlants.DISLIKE_WEIGHT, now.getTime());
+        return true;
     }
 
     /**
@@ -548,8 +911,18 @@ public class PlantController {
      * @return true iff the operation succeeded.
      */
     public boolean addFlowerRating(String json, String uploadID){
+        return addFlowerRating(json, RequestContext.forUploadId(db, uploadID));
+    }
+
+    /**
+     * Same as addFlowerRating(String, String) but for a request that already validated its uploadId.
+     * @param json string representation of a JSON object
+     * @param context the request's validated dataset, null if the uploadId was invalid
+     * @return true iff the operation succeeded.
+     */
+    public boolean addFlowerRating(String json, RequestContext context){
 
-        if (!ExcelParser.isValidUploadId(db, uploadID))
+        if (context == null)
             return false;
 
         boolean like;
@@ -581,7 +954,7 @@ public class PlantController {
             return false;
         }
 
-        return addFlowerRating(id, bed, like, uploadID);
+        return addFlowerRating(id, bed, like, context);
     }
 
 
@@ -595,13 +968,14 @@ public class PlantController {
      */
     public boolean writeFeedback(OutputStream outputStream, String uploadId) throws IOException {
 
-        if (!ExcelParser.isValidUploadId(db, uploadId))
+        RequestContext context = RequestContext.forUploadId(db, uploadId);
+        if (context == null)
             return false;
 
         FeedbackWriter feedbackWriter = new FeedbackWriter(outputStream);
-        writeToCommentSheet(feedbackWriter, uploadId);
-        writeToPlantMetadataSheet(feedbackWriter, uploadId);
-        writeToBedMetadataSheet(feedbackWriter, uploadId);
+        writeToCommentSheet(feedbackWriter, context);
+        writeToPlantMetadataSheet(feedbackWriter, context);
+        writeToBedMetadataSheet(feedbackWriter, context);
 
         feedbackWriter.complete();
         return true;
@@ -615,11 +989,17 @@ public class PlantController {
      */
     public boolean writeToCommentSheet(FeedbackWriter feedbackWriter, String uploadId)
     {
-        if (!ExcelParser.isValidUploadId(db, uploadId))
+        return writeToCommentSheet(feedbackWriter, RequestContext.forUploadId(db, uploadId));
+    }
+
+    private boolean writeToCommentSheet(FeedbackWriter feedbackWriter, RequestContext context)
+    {
+        if (context == null)
             return false;
+        String uploadId = context.uploadId;
 
         //Find all comments of this uploadId
-        FindIterable iter = commentCollection.find(
+        FindIterable iter = context.commentCollection.find(
                 and(
                         exists("commentOnPlant"),
                         exists("commentInBed"),
@@ -632,7 +1012,7 @@ public class PlantController {
             Document comment = (Document) iterator.next();
 
             //Get the plant that this comment was for
-            Iterator<Document> onPlantItr = plantCollection.find(and(eq("id", comment.getString("commentOnPlant")),eq("gardenLocation", comment.getString("commentInBed")), eq("uploadId", uploadId))).iterator();
+            Iterator<Document> onPlantItr = context.plantCollection.find(and(eq("id", comment.getString("commentOnPlant")),eq("gardenLocation", comment.getString("commentInBed")), eq("uploadId", uploadId))).iterator();
 
             Document onPlant;
             onPlant = onPlantItr.next(); //NOTE: this should _not_ create an exception, and if it does, the database is corrupt
@@ -663,11 +1043,19 @@ public class PlantController {
      */
     public boolean writeToPlantMetadataSheet(FeedbackWriter feedbackWriter, String uploadId)
     {
-        if (!ExcelParser.isValidUploadId(db, uploadId))
+        return writeToPlantMetadataSheet(feedbackWriter, RequestContext.forUploadId(db, uploadId));
+    }
+
+    private boolean writeToPlantMetadataSheet(FeedbackWriter feedbackWriter, RequestContext context)
+    {
+        if (context == null)
             return false;
+        String uploadId = context.uploadId;
+
+        Map<String, Long> uniqueVisitors = visitorSketches.getUniqueVisitors(uploadId, VisitorSketches.KIND_PLANT);
 
         //Loop through all plants
-        FindIterable iter = plantCollection.find(
+        FindIterable iter = context.plantCollection.find(
                 eq("uploadId", uploadId)
 
         );
@@ -679,12 +1067,13 @@ public class PlantController {
             try {
                 String[] dataToWrite = new String[COL_PLANT_FIELDS];
                 Document metadata = (Document) onPlant.get("metadata");
-                Document feedback = Document.parse(getPlantFeedbackByPlantIdJSON(onPlant.getString("id"), onPlant.getString("gardenLocation"), uploadId));
+                //The plant in hand carries its counters, in the same order as PLANT_FEEDBACK_*
+                long[] feedback = FeedbackCounters.read(onPlant);
 
 
-                Integer likeCount = feedback.getInteger("likeCount");
-                Integer dislikeCount = feedback.getInteger("dislikeCount");
-                Integer commentCount = feedback.getInteger("commentCount");
+                Long likeCount = feedback[PLANT_FEEDBACK_LIKES];
+                Long dislikeCount = feedback[PLANT_FEEDBACK_DISLIKES];
+                Long commentCount = feedback[PLANT_FEEDBACK_COMMENTS];
                 Integer pageViews = metadata.getInteger("pageViews");
 
                 dataToWrite[COL_PLANT_PLANTID] = onPlant.getString("id");
@@ -697,6 +1086,8 @@ public class PlantController {
                 dataToWrite[COL_PLANT_DISLIKES] = dislikeCount.toString();
                 dataToWrite[COL_PLANT_COMMENTS] = commentCount.toString();
                 dataToWrite[COL_PLANT_PAGEVIEWS] = pageViews.toString();
+                dataToWrite[COL_PLANT_VISITORS] = uniqueVisitors.getOrDefault(
+                        VisitorSketches.key(onPlant.getString("id"), onPlant.getString("gardenLocation")), 0L).toString();
 
                 feedbackWriter.writeToSheet(dataToWrite, FeedbackWriter.SHEET_METADATA);
             }
@@ -717,11 +1108,18 @@ public class PlantController {
      */
     public boolean writeToBedMetadataSheet(FeedbackWriter feedbackWriter, String uploadId)
     {
-        if (!ExcelParser.isValidUploadId(db, uploadId))
+        return writeToBedMetadataSheet(feedbackWriter, RequestContext.forUploadId(db, uploadId));
+    }
+
+    private boolean writeToBedMetadataSheet(FeedbackWriter feedbackWriter, RequestContext context)
+    {
+        if (context == null)
             return false;
 
-        FindIterable iter = bedCollection.find(
-                eq("uploadId", uploadId)
+        Map<String, Long> uniqueVisitors = visitorSketches.getUniqueVisitors(context.uploadId, VisitorSketches.KIND_BED);
+
+        FindIterable iter = context.bedCollection.find(
+                eq("uploadId", context.uploadId)
 
         );
         Iterator iterator = iter.iterator();
@@ -741,6 +1139,8 @@ public class PlantController {
                 dataToWrite[COL_BED_GRDNLOC] = onBed.getString("gardenLocation");
                 dataToWrite[COL_BED_PAGEVIEWS] = pageViews.toString();
                 dataToWrite[COL_BED_QRSCANS] = qrScans.toString();
+                dataToWrite[COL_BED_VISITORS] = uniqueVisitors.getOrDefault(
+                        VisitorSketches.key(null, onBed.getString("gardenLocation")), 0L).toString();
 
                 feedbackWriter.writeToSheet(dataToWrite, FeedbackWriter.SHEET_BEDMETADATA);
             }
@@ -775,6 +1175,7 @@ public class PlantController {
         if (ExcelParser.getLiveUploadId(db).equals(uploadID)) {
             throw new IllegalStateException("The uploadID cannot be deleted because it is the liveUploadID");
         }
+        flushTelemetry();
         Document filterDoc = new Document();
         Document returnDoc = new Document();
 
@@ -782,6 +1183,14 @@ public class PlantController {
         boolean deleted = plantCollection.deleteMany(filterDoc).getDeletedCount() > 0;
         deleted = deleted && (bedCollection.deleteMany(filterDoc).getDeletedCount() > 0);
         commentCollection.deleteMany(filterDoc);
+        eventStore.deleteUpload(uploadID);
+        visitorSketches.deleteUpload(uploadID);
+        visitRollups.deleteUpload(uploadID);
+        new ChartState(db).deleteUpload(uploadID);
+        trendingPlants.deleteUpload(uploadID);
+        UploadRegistry.of(db).unregister(uploadID);
+        BedRegistry.of(db).forget(uploadID);
+        DataVersion.bump(db);
 
         returnDoc.append("success", deleted);
         returnDoc.append("uploadIDs", ExcelParser.listUploadIds(db));
@@ -0,0 +1,312 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.push;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+
+/**
+ * Stores plant visits and ratings in the plantEvents collection instead of in
+ * ever-growing arrays on the plant documents.
+ *
+ * Events are bucketed: one document per plant, event type and hour, of the form
+ * <code>
+ *     {
+ *         uploadId: String,
+ *         id: String,
+ *         gardenLocation: String,
+ *         type: "visit" | "rating",
+ *         hour: Date,
+ *         count: number,
+ *         likes: number,        (ratings only)
+ *         dislikes: number,     (ratings only)
+ *         events: [ {visit: Date} | {like: bool, date: Date, ratingOnObjectOfId: ObjectId} ],
+ *         migratedFrom: ObjectId  (only buckets moved out of a plant's metadata by migrateFromPlantMetadata)
+ *     }
+ * </code>
+ * A bucket holds at most MAX_BUCKET_EVENTS events, after which a new bucket for the same hour is started.
+ * Every event is an upsert, so recording one never has to read anything first.
+ */
+public class PlantEventStore {
+
+    public static final String TYPE_VISIT = "visit";
+
+    public static final String TYPE_RATING = "rating";
+
+    /* Keeps a single bucket well under the 16MB document limit even for a very busy hour */
+    public static final int MAX_BUCKET_EVENTS = 1000;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private final MongoCollection<Document> eventCollection;
+
+    private final MongoCollection<Document> plantCollection;
+
+    public PlantEventStore(MongoDatabase database) {
+        eventCollection = database.getCollection("plantEvents");
+        plantCollection = database.getCollection("plants");
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return eventCollection;
+    }
+
+    /**
+     * The start of the hour that date falls in, or null for events without a date.
+     */
+    public static Date bucketHour(Date date) {
+        if (date == null)
+            return null;
+        return new Date(date.getTime() - Math.floorMod(date.getTime(), HOUR_MILLIS));
+    }
+
+    private static Bson bucketFilter(String uploadId, String plantId, String gardenLocation, String type, Date hour) {
+        return and(eq("uploadId", uploadId), eq("id", plantId), eq("gardenLocation", gardenLocation),
+                eq("type", type), eq("hour", hour), lt("count", MAX_BUCKET_EVENTS));
+    }
+
+    /**
+     * The same write in a bucket of its own, tagged with the plant it was migrated from.
+     */
+    private static UpdateOneModel<Document> migratedWrite(UpdateOneModel<Document> write, ObjectId plantObjectId) {
+        return new UpdateOneModel<>(and(write.getFilter(), eq("migratedFrom", plantObjectId)), write.getUpdate(), write.getOptions());
+    }
+
+    /**
+     * The write that records a visit to a plant at the given time.
+     * @param uploadId
+     * @param plantId
+     * @param gardenLocation
+     * @param date
+     * @return an upsert, for PlantEventStore.getCollection()
+     */
+    public static UpdateOneModel<Document> visitWrite(String uploadId, String plantId, String gardenLocation, Date date) {
+        return new UpdateOneModel<>(
+                bucketFilter(uploadId, plantId, gardenLocation, TYPE_VISIT, bucketHour(date)),
+                combine(inc("count", 1), push("events", new Document("visit", date))),
+                new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * The write that records a like or dislike of a plant at the given time.
+     * @param uploadId
+     * @param plantId
+     * @param gardenLocation
+     * @param like true for a like, false for a dislike
+     * @param plantObjectId the _id of the plant document that was rated
+     * @param date
+     * @return an upsert, for PlantEventStore.getCollection()
+     */
+    public static UpdateOneModel<Document> ratingWrite(String uploadId, String plantId, String gardenLocation,
+                                                       boolean like, ObjectId plantObjectId, Date date) {
+        Document rating = new Document();
+        rating.append("like", like);
+        rating.append("date", date);
+        rating.append("ratingOnObjectOfId", plantObjectId);
+
+        return new UpdateOneModel<>(
+                bucketFilter(uploadId, plantId, gardenLocation, TYPE_RATING, bucketHour(date)),
+                combine(inc("count", 1), inc(like ? "likes" : "dislikes", 1), push("events", rating)),
+                new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Writes an event built by visitWrite or ratingWrite right away.
+     * @param write
+     */
+    public void record(UpdateOneModel<Document> write) {
+        eventCollection.updateOne(write.getFilter(), write.getUpdate(), write.getOptions());
+    }
+
+    /**
+     * Counts the likes and dislikes of a plant.
+     * @param uploadId
+     * @param plantId
+     * @param gardenLocation
+     * @return {likes, dislikes}
+     */
+    public long[] getRatingCounts(String uploadId, String plantId, String gardenLocation) {
+        long likes = 0;
+        long dislikes = 0;
+        for (Document bucket : eventCollection.find(and(eq("uploadId", uploadId), eq("id", plantId),
+                eq("gardenLocation", gardenLocation), eq("type", TYPE_RATING)))
+                .projection(new Document("likes", 1).append("dislikes", 1))) {
+            likes += countOf(bucket, "likes");
+            dislikes += countOf(bucket, "dislikes");
+        }
+        return new long[] {likes, dislikes};
+    }
+
+    static long countOf(Document bucket, String field) {
+        Number count = bucket.get(field, Number.class);
+        return count == null ? 0 : count.longValue();
+    }
+
+    /**
+     * All events of one type for one plant, oldest bucket first.
+     * @param uploadId
+     * @param plantId
+     * @param gardenLocation
+     * @param type TYPE_VISIT or TYPE_RATING
+     * @return the event documents, as they were stored in the buckets' events arrays
+     */
+    public List<Document> getEvents(String uploadId, String plantId, String gardenLocation, String type) {
+        List<Document> events = new ArrayList<>();
+        for (Document bucket : eventCollection.find(and(eq("uploadId", uploadId), eq("id", plantId),
+                eq("gardenLocation", gardenLocation), eq("type", type))).sort(new Document("hour", 1))) {
+            for (Object event : eventsOf(bucket)) {
+                if (event instanceof Document)
+                    events.add((Document) event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * The events array of a bucket, empty if it has none.
+     */
+    static List<?> eventsOf(Document bucket) {
+        List<?> events = bucket.get("events", List.class);
+        return events == null ? new ArrayList<>() : events;
+    }
+
+    /**
+     * The date of every plant visit in an upload.
+     * @param uploadId
+     * @return
+     */
+    public ArrayList<Date> getVisitDates(String uploadId) {
+        ArrayList<Date> dates = new ArrayList<>();
+        for (Document bucket : eventCollection.find(and(eq("uploadId", uploadId), eq("type", TYPE_VISIT)))
+                .projection(new Document("events", 1))) {
+            for (Object visit : eventsOf(bucket)) {
+                Object date = visit instanceof Document ? ((Document) visit).get("visit") : null;
+                if (date instanceof Date)
+                    dates.add((Date) date);
+            }
+        }
+        return dates;
+    }
+
+    /**
+     * The number of plant visits of an upload in each hour bucket of a range that had visits.
+     * Only the bucket counts are read, not the visits themselves.
+     * @param uploadId
+     * @param start the first instant to include, null for no limit
+     * @param end the instant after the last one to include, null for no limit
+     * @return visits by the start of their hour in epoch millis, in order
+     */
+    public SortedMap<Long, Integer> getHourlyVisitCounts(String uploadId, Date start, Date end) {
+        List<Bson> filter = new ArrayList<>();
+        filter.add(eq("uploadId", uploadId));
+        filter.add(eq("type", TYPE_VISIT));
+        if (start != null)
+            filter.add(gte("hour", start));
+        if (end != null)
+            filter.add(lt("hour", end));
+
+        SortedMap<Long, Integer> counts = new TreeMap<>();
+        for (Document bucket : eventCollection.find(and(filter)).projection(new Document("hour", 1).append("count", 1))) {
+            Date hour = bucket.getDate("hour");
+            if (hour != null)
+                counts.merge(hour.getTime(), (int) countOf(bucket, "count"), Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Moves the events of oldUploadId over to newUploadId, used when an upload is patched.
+     * @param oldUploadId
+     * @param newUploadId
+     */
+    public void renameUpload(String oldUploadId, String newUploadId) {
+        eventCollection.updateMany(eq("uploadId", oldUploadId), set("uploadId", newUploadId));
+    }
+
+    /**
+     * Deletes every event of an upload.
+     * @param uploadId
+     */
+    public void deleteUpload(String uploadId) {
+        eventCollection.deleteMany(eq("uploadId", uploadId));
+    }
+
+    /**
+     * Moves the visits and ratings arrays that older versions kept in plant metadata into
+     * plantEvents, and removes the arrays from the plants. Plants that don't have the arrays
+     * anymore are skipped, so this can be run at every startup.
+     *
+     * A plant is marked with metadata.eventsMigrating while its events are written, into buckets
+     * tagged with migratedFrom. If the server dies before the arrays are removed, the next run
+     * finds the mark and deletes the tagged buckets before writing them again, so no event is
+     * moved twice. Only then is plantEvents searched by migratedFrom, which has no index.
+     * @return the number of plants that were migrated
+     */
+    public int migrateFromPlantMetadata() {
+        int migrated = 0;
+        for (Document plant : plantCollection.find(or(exists("metadata.visits"), exists("metadata.ratings")))) {
+            Document metadata = (Document) plant.get("metadata");
+            ObjectId plantObjectId = plant.getObjectId("_id");
+            String uploadId = plant.getString("uploadId");
+            String plantId = plant.getString("id");
+            String gardenLocation = plant.getString("gardenLocation");
+
+            List<WriteModel<Document>> writes = new ArrayList<>();
+            Object visits = metadata.get("visits");
+            if (visits instanceof List) {
+                for (Object visit : (List) visits) {
+                    if (visit instanceof Document && ((Document) visit).get("visit") instanceof Date)
+                        writes.add(migratedWrite(visitWrite(uploadId, plantId, gardenLocation, ((Document) visit).getDate("visit")), plantObjectId));
+                }
+            }
+            Object ratings = metadata.get("ratings");
+            if (ratings instanceof List) {
+                for (Object rating : (List) ratings) {
+                    if (!(rating instanceof Document) || !(((Document) rating).get("like") instanceof Boolean))
+                        continue;
+                    Document r = (Document) rating;
+                    Object ratedId = r.containsKey("ratingOnObjectOfId") ? r.get("ratingOnObjectOfId") : r.get("ratingOnObjectId");
+                    writes.add(migratedWrite(ratingWrite(uploadId, plantId, gardenLocation, r.getBoolean("like"),
+                            ratedId instanceof ObjectId ? (ObjectId) ratedId : plantObjectId,
+                            r.get("date") instanceof Date ? r.getDate("date") : null), plantObjectId));
+                }
+            }
+
+            //An earlier run died half way through this plant, undo what it wrote
+            if (Boolean.TRUE.equals(metadata.get("eventsMigrating")))
+                eventCollection.deleteMany(eq("migratedFrom", plantObjectId));
+            else
+                plantCollection.updateOne(eq("_id", plantObjectId), set("metadata.eventsMigrating", true));
+
+            //Buckets are built in order, so a bucket never exceeds MAX_BUCKET_EVENTS
+            if (!writes.isEmpty())
+                eventCollection.bulkWrite(writes);
+            plantCollection.updateOne(eq("_id", plantObjectId),
+                    combine(unset("metadata.visits"), unset("metadata.ratings"), unset("metadata.eventsMigrating")));
+            migrated++;
+        }
+        return migrated;
+    }
+}
@@ -0,0 +1,124 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * The QR scan counters kept in each bed's metadata, one per hour of the day.
+ *
+ * metadata.qrScansByHour is {"0" : number, ..., "23" : number}, the scans of the bed's QR code
+ * in each hour of the day in the server's time zone. Hours without scans may be missing.
+ * The counter of a scan's hour is incremented in the same update that pushes the scan to
+ * metadata.qrVisits, so the QR scan heatmap reads one small document per bed instead of
+ * going through every scan. backfill() computes the counters from the qrVisits arrays.
+ */
+public class QRScanCounters {
+
+    public static final String QR_SCANS_BY_HOUR = "metadata.qrScansByHour";
+
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    /**
+     * The update that counts one more scan of a bed's QR code at the given time.
+     * @param scan
+     * @return
+     */
+    public static Bson scanIncrement(Date scan) {
+        int hour = LocalDateTime.ofInstant(scan.toInstant(), ZoneId.systemDefault()).getHour();
+        return inc(QR_SCANS_BY_HOUR + "." + hour, 1);
+    }
+
+    /**
+     * The counters for a bed that was never scanned, for new beds.
+     * @return
+     */
+    public static Document empty() {
+        return new Document();
+    }
+
+    /**
+     * Reads the counters out of a bed (or its metadata projected with projection()).
+     * Counters that were never set count as 0.
+     * @param bed
+     * @return the scans in each hour of the day, from 0 to 23
+     */
+    public static int[] read(Document bed) {
+        int[] scans = new int[24];
+        Document metadata = bed == null ? null : (Document) bed.get("metadata");
+        Object byHour = metadata == null ? null : metadata.get("qrScansByHour");
+        if (!(byHour instanceof Document))
+            return scans;
+        for (int hour = 0; hour < 24; hour++) {
+            Object count = ((Document) byHour).get(Integer.toString(hour));
+            if (count instanceof Number)
+                scans[hour] = ((Number) count).intValue();
+        }
+        return scans;
+    }
+
+    /**
+     * The projection that read() needs.
+     * @return
+     */
+    public static Bson projection() {
+        return include(QR_SCANS_BY_HOUR);
+    }
+
+    /**
+     * Recomputes the counters of beds from their metadata.qrVisits.
+     * @param database
+     * @param onlyMissing when true only beds that don't have counters yet are updated, otherwise every bed is
+     * @return the number of beds that were updated
+     */
+    public static int backfill(MongoDatabase database, boolean onlyMissing) {
+        MongoCollection<Document> bedCollection = database.getCollection("beds");
+
+        Bson bedFilter = onlyMissing ? eq(QR_SCANS_BY_HOUR, null) : exists("_id");
+        if (bedCollection.find(bedFilter).first() == null)
+            return 0;
+
+        //Only the local hour of each scan matters, see VisitHistogram
+        VisitHistogram localTime = new VisitHistogram();
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for (Document bed : bedCollection.find(bedFilter).projection(include("metadata.qrVisits"))) {
+            int[] scans = new int[24];
+            Document metadata = (Document) bed.get("metadata");
+            Object qrVisits = metadata == null ? null : metadata.get("qrVisits");
+            if (qrVisits instanceof List) {
+                for (Object qrVisit : (List) qrVisits) {
+                    Object scan = qrVisit instanceof Document ? ((Document) qrVisit).get("scan") : null;
+                    if (scan instanceof Date) {
+                        long localMillis = localTime.toLocalMillis(((Date) scan).getTime());
+                        scans[(int) Math.floorMod(Math.floorDiv(localMillis, MILLIS_PER_HOUR), 24L)]++;
+                    }
+                }
+            }
+
+            Document byHour = new Document();
+            for (int hour = 0; hour < 24; hour++) {
+                if (scans[hour] > 0)
+                    byHour.append(Integer.toString(hour), scans[hour]);
+            }
+            writes.add(new UpdateOneModel<>(eq("_id", bed.get("_id")), set(QR_SCANS_BY_HOUR, byHour)));
+        }
+        if (!writes.isEmpty())
+            bedCollection.bulkWrite(writes);
+        return writes.size();
+    }
+}
@@ -0,0 +1,52 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+
+/**
+ * Everything a single request needs to know about the dataset it works on:
+ * an uploadId that has already been checked to be valid, and the collections to use.
+ *
+ * Build one per request with forUploadId or forLiveUpload and hand it to the controllers,
+ * so that the uploadId is validated once no matter how many controller methods the request calls.
+ * Both factory methods return null when the uploadId isn't valid.
+ */
+public class RequestContext {
+
+    public final String uploadId;
+
+    public final MongoCollection<Document> plantCollection;
+
+    public final MongoCollection<Document> commentCollection;
+
+    public final MongoCollection<Document> bedCollection;
+
+    private RequestContext(MongoDatabase database, String uploadId) {
+        this.uploadId = uploadId;
+        plantCollection = database.getCollection("plants");
+        commentCollection = database.getCollection("comments");
+        bedCollection = database.getCollection("beds");
+    }
+
+    /**
+     * Validates the uploadId and builds a context for it.
+     * @param database
+     * @param uploadId
+     * @return a context for the uploadId, or null if the uploadId is not valid
+     */
+    public static RequestContext forUploadId(MongoDatabase database, String uploadId) {
+        if (!ExcelParser.isValidUploadId(database, uploadId))
+            return null;
+        return new RequestContext(database, uploadId);
+    }
+
+    /**
+     * Builds a context for the liveUploadId, read from the LiveUploadIdCache.
+     * @param database
+     * @return a context for the liveUploadId, or null if there is no valid liveUploadId
+     */
+    public static RequestContext forLiveUpload(MongoDatabase database) {
+        return forUploadId(database, LiveUploadIdCache.of(database).get());
+    }
+}
@@ -0,0 +1,171 @@
+package umm3601.digitalDisplayGarden;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps rendered responses of the visitor catalog endpoints (api/plants, api/gardenLocations,
+ * api/commonNames), which are the same for every visitor until the catalog changes.
+ * Only responses without visit, rating or comment counters may be cached, since those change
+ * with every visitor but don't change the DataVersion. See PlantController.isCatalogOnly.
+ *
+ * Entries are keyed by route, the query params the route reads, liveUploadId and DataVersion,
+ * and hold the response both as plain and as gzipped bytes, along with a strong ETag for each.
+ * Only the most recently used MAX_ENTRIES entries are kept. A cached response is rendered into
+ * memory once instead of streamed, which is fine for the small catalog responses it holds.
+ */
+public class ResponseCache {
+
+    /**
+     * Writes a response body. Called when a response isn't cached yet.
+     */
+    public interface Renderer {
+        void render(Writer out) throws IOException;
+    }
+
+    /**
+     * A cached response.
+     */
+    public static class Entry {
+        public final byte[] body;
+        public final byte[] gzipped;
+        public final String etag;
+        public final String gzippedEtag;
+
+        Entry(byte[] body, byte[] gzipped, String etag, String gzippedEtag) {
+            this.body = body;
+            this.gzipped = gzipped;
+            this.etag = etag;
+            this.gzippedEtag = gzippedEtag;
+        }
+    }
+
+    public static final int MAX_ENTRIES = 256;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The key of a response.
+     * @param route
+     * @param queryParams the request's query params, in any order
+     * @param routeParams the params the route reads, the others don't change the response and are left out
+     * @param uploadId the liveUploadId the response is for
+     * @param dataVersion DataVersion.get() when the response is requested
+     * @return
+     */
+    public static String key(String route, Map<String, String[]> queryParams, String[] routeParams, String uploadId, long dataVersion) {
+        StringBuilder key = new StringBuilder(route);
+        //Sort so that ?a=1&b=2 and ?b=2&a=1 share an entry
+        Map<String, String[]> sorted = new TreeMap<>(queryParams);
+        sorted.keySet().retainAll(Arrays.asList(routeParams));
+        for (Map.Entry<String, String[]> param : sorted.entrySet()) {
+            key.append('&').append(param.getKey()).append('=').append(Arrays.toString(param.getValue()));
+        }
+        key.append('|').append(uploadId).append('|').append(dataVersion);
+        return key.toString();
+    }
+
+    /**
+     * Get the cached response for a key, rendering and caching it first if needed.
+     * @param key from ResponseCache.key
+     * @param renderer writes the response if it isn't cached
+     * @return
+     * @throws IOException if the renderer fails
+     */
+    public Entry get(String key, Renderer renderer) throws IOException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+
+        //Two requests may render the same response at once, both results are the same
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+        renderer.render(out);
+        out.flush();
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+            body.writeTo(gzip);
+        }
+
+        String hash = sha256(body.toByteArray());
+        entry = new Entry(body.toByteArray(), gzipped.toByteArray(), "\"" + hash + "\"", "\"" + hash + "-gzip\"");
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Whether an If-None-Match header matches an ETag, meaning the client already has the response.
+     * @param ifNoneMatch the header, may be null
+     * @param etag
+     * @return
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            //If-None-Match uses the weak comparison
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            //Half of the hash is plenty to tell responses apart
+            return hex.substring(0, 32);
+        } catch (NoSuchAlgorithmException e) {
+            //Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
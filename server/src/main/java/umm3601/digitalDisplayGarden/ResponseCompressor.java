@@ -0,0 +1,343 @@
+package umm3601.digitalDisplayGarden;
+
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses text responses (the JSON of the API routes, mostly) with gzip or deflate,
+ * whichever the client's Accept-Encoding prefers, as a Spark after filter:
+ *
+ *     after(compressor::compress);
+ *
+ * Responses smaller than minBytes are sent as they are, since compressing them saves
+ * next to nothing. Responses a route already wrote itself (photos, exports, the cached
+ * catalog responses, which are precompressed) are left alone. Routes that stream their
+ * JSON as they read it (the plant listing) compress it themselves by writing to open().
+ *
+ * Deflaters hold native memory and are expensive to create, so a few are kept in a pool
+ * and reused. When all of them are busy another one is made, and it is thrown away
+ * afterwards if the pool is already full.
+ */
+public class ResponseCompressor {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    /* The fixed first bytes of a gzip member: magic, deflate, no flags, no mtime, no extra flags, unknown OS */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int minBytes;
+    private final int level;
+
+    /* gzip needs raw deflate data, while HTTP's deflate is the zlib format, so they can't share Deflaters */
+    private final BlockingQueue<Deflater> rawDeflaters;
+    private final BlockingQueue<Deflater> zlibDeflaters;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * @param minBytes responses shorter than this are not compressed
+     * @param level the Deflater compression level, 1 (fastest) to 9 (smallest)
+     * @param poolSize how many idle Deflaters of each kind are kept
+     */
+    public ResponseCompressor(int minBytes, int level, int poolSize) {
+        this.minBytes = minBytes;
+        this.level = level;
+        this.rawDeflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        this.zlibDeflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * The Spark after filter. Compresses the route's body if it is text, big enough,
+     * and the client accepts gzip or deflate.
+     * @param req
+     * @param res
+     * @throws IOException
+     */
+    public void compress(Request req, Response res) throws IOException {
+        HttpServletResponse raw = res.raw();
+        //The route already wrote its response, or it isn't a String we can compress
+        String body = res.body();
+        if (raw.isCommitted() || body == null || raw.getHeader("Content-Encoding") != null)
+            return;
+        if (!compressible(raw.getContentType()))
+            return;
+
+        //Whatever the size, the response depends on Accept-Encoding
+        res.header("Vary", "Accept-Encoding");
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < minBytes)
+            return;
+        String encoding = negotiate(req.headers("Accept-Encoding"));
+        if (encoding == null)
+            return;
+
+        byte[] encoded = encode(bytes, encoding);
+        if (raw.getContentType() == null) {
+            //Spark would have set this when writing the body
+            res.type("text/html; charset=utf-8");
+        }
+        res.header("Content-Encoding", encoding);
+        raw.setContentLength(encoded.length);
+        //Writing the response commits it, so Spark doesn't write the body again
+        raw.getOutputStream().write(encoded);
+        raw.getOutputStream().flush();
+    }
+
+    /**
+     * Starts a response for a route that writes its body itself, which the after filter can't compress
+     * since it is already sent by then. Negotiates the encoding and sets Content-Encoding and Vary.
+     * @param acceptEncoding the request's Accept-Encoding header, may be null
+     * @param raw
+     * @return the stream to write the body to, close it when done so the compressed data is finished
+     * @throws IOException
+     */
+    public OutputStream open(String acceptEncoding, HttpServletResponse raw) throws IOException {
+        raw.setHeader("Vary", "Accept-Encoding");
+        String encoding = negotiate(acceptEncoding);
+        if (encoding == null)
+            return raw.getOutputStream();
+        raw.setHeader("Content-Encoding", encoding);
+        return new CompressingStream(raw.getOutputStream(), GZIP.equals(encoding));
+    }
+
+    /**
+     * Compresses a body.
+     * @param body
+     * @param encoding GZIP or DEFLATE
+     * @return
+     */
+    public byte[] encode(byte[] body, String encoding) {
+        boolean gzip = GZIP.equals(encoding);
+        Deflater deflater = takeDeflater(gzip);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try {
+            if (gzip)
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(body);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            returnDeflater(deflater, gzip);
+        }
+
+        if (gzip) {
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, body.length);
+        }
+
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(body.length);
+        bytesOut.addAndGet(out.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Takes a Deflater of the right kind from its pool, or makes one when the pool is empty.
+     */
+    private Deflater takeDeflater(boolean gzip) {
+        Deflater deflater = (gzip ? rawDeflaters : zlibDeflaters).poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, gzip);
+            created.incrementAndGet();
+        }
+        return deflater;
+    }
+
+    /**
+     * Resets a Deflater and puts it back in its pool, or frees it if the pool is full.
+     */
+    private void returnDeflater(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        if (!(gzip ? rawDeflaters : zlibDeflaters).offer(deflater))
+            deflater.end();
+    }
+
+    /**
+     * Picks the encoding to send, honouring q-values: gzip or deflate, preferring gzip on a tie.
+     * @param acceptEncoding the request's Accept-Encoding header, may be null
+     * @return GZIP, DEFLATE, or null to send the response as it is
+     */
+    public static String negotiate(String acceptEncoding) {
+        double gzip = quality(acceptEncoding, GZIP);
+        double deflate = quality(acceptEncoding, DEFLATE);
+        if (gzip <= 0 && deflate <= 0)
+            return null;
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Whether the client accepts an encoding.
+     * @param acceptEncoding the request's Accept-Encoding header, may be null
+     * @param encoding
+     * @return
+     */
+    public static boolean accepts(String acceptEncoding, String encoding) {
+        return quality(acceptEncoding, encoding) > 0;
+    }
+
+    /**
+     * The q-value Accept-Encoding gives an encoding, falling back to *, or 0 if neither is listed.
+     */
+    private static double quality(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null)
+            return 0;
+        double wildcard = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(encoding))
+                return q;
+            if (name.equals("*"))
+                wildcard = q;
+        }
+        return wildcard;
+    }
+
+    /**
+     * Whether a content type is text worth compressing. Images, spreadsheets and zips already are compressed.
+     */
+    private static boolean compressible(String contentType) {
+        //Spark sends text/html when the route doesn't set a type
+        if (contentType == null)
+            return true;
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/") || type.startsWith("application/json") || type.startsWith("application/javascript");
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * How many Deflaters have been made, which stays small while the pool keeps up.
+     */
+    public long getDeflatersCreated() {
+        return created.get();
+    }
+
+    public long getResponsesCompressed() {
+        return compressed.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Compresses what is written to it with a pooled Deflater, giving the Deflater back when closed.
+     */
+    private class CompressingStream extends DeflaterOutputStream {
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private final CountingStream counted;
+        private long written;
+        private boolean closed;
+
+        CompressingStream(OutputStream out, boolean gzip) throws IOException {
+            this(new CountingStream(out), gzip);
+        }
+
+        private CompressingStream(CountingStream out, boolean gzip) throws IOException {
+            super(out, takeDeflater(gzip), 8192);
+            this.gzip = gzip;
+            this.counted = out;
+            if (gzip)
+                out.write(GZIP_HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (gzip)
+                crc.update(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                finish();
+                if (gzip) {
+                    ByteArrayOutputStream trailer = new ByteArrayOutputStream(8);
+                    writeIntLE(trailer, (int) crc.getValue());
+                    writeIntLE(trailer, (int) written);
+                    out.write(trailer.toByteArray());
+                }
+                out.close();
+            } finally {
+                returnDeflater(def, gzip);
+            }
+            compressed.incrementAndGet();
+            bytesIn.addAndGet(written);
+            bytesOut.addAndGet(counted.count);
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingStream extends FilterOutputStream {
+        private long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for visitor telemetry (page views, visits, ratings, bed visits).
+ *
+ * Instead of updating the database on the request thread, the controllers enqueue
+ * their updates here. A background thread sends them to MongoDB as bulkWrite batches,
+ * either when batchSize updates are waiting or when the oldest waiting update is
+ * flushInterval milliseconds old, whichever comes first.
+ *
+ * The queue is bounded: when it is full, enqueue returns false and the caller should
+ * write synchronously. shutdown() stops the thread after writing everything that is queued.
+ */
+public class TelemetryWriter {
+
+    /**
+     * A write waiting in the queue, along with the collection it goes to.
+     */
+    private static class PendingWrite {
+        final MongoCollection<Document> collection;
+        final WriteModel<Document> write;
+
+        PendingWrite(MongoCollection<Document> collection, WriteModel<Document> write) {
+            this.collection = collection;
+            this.write = write;
+        }
+    }
+
+    private final BlockingQueue<PendingWrite> queue;
+
+    private final int batchSize;
+
+    private final long flushIntervalMillis;
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong writesQueued = new AtomicLong();
+    private final AtomicLong writesFlushed = new AtomicLong();
+    private final AtomicLong batchesFlushed = new AtomicLong();
+    private final AtomicLong writesFailed = new AtomicLong();
+
+    /**
+     * @param capacity the most updates that can wait in the queue
+     * @param batchSize flush as soon as this many updates are waiting
+     * @param flushIntervalMillis flush when the oldest waiting update is this old
+     */
+    public TelemetryWriter(int capacity, int batchSize, long flushIntervalMillis) {
+        if (capacity < 1 || batchSize < 1 || flushIntervalMillis < 1)
+            throw new IllegalArgumentException("TelemetryWriter needs a positive capacity, batchSize and flushInterval");
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        flusher = new Thread(this::run, "telemetry-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queue an update to the single document matching filter.
+     * @param collection
+     * @param filter
+     * @param update
+     * @return true if the update was queued, false if the queue is full or shut down
+     */
+    public boolean enqueue(MongoCollection<Document> collection, Bson filter, Bson update) {
+        return enqueue(collection, new UpdateOneModel<>(filter, update));
+    }
+
+    /**
+     * Queue a write.
+     * @param collection
+     * @param write
+     * @return true if the write was queued, false if the queue is full or shut down
+     */
+    public boolean enqueue(MongoCollection<Document> collection, WriteModel<Document> write) {
+        if (!running || !queue.offer(new PendingWrite(collection, write)))
+            return false;
+        writesQueued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Background thread: collect a batch and write it, until shut down and the queue is empty.
+     */
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                //Keep collecting until the batch is full or the first write has waited long enough
+                long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                while (batch.size() < batchSize && running) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || remaining <= 0)
+                        break;
+                    PendingWrite next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                queue.drainTo(batch, batchSize - batch.size());
+            } catch (InterruptedException e) {
+                //Nothing interrupts this thread on purpose, write what we have and keep going
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Send a batch to the database with one bulkWrite per collection.
+     */
+    private void write(List<PendingWrite> batch) {
+        if (batch.isEmpty())
+            return;
+
+        //Each request gets its own MongoCollection object, so group them by namespace
+        Map<MongoNamespace, MongoCollection<Document>> collections = new LinkedHashMap<>();
+        Map<MongoNamespace, List<WriteModel<Document>>> byCollection = new LinkedHashMap<>();
+        for (PendingWrite pending : batch) {
+            MongoNamespace namespace = pending.collection.getNamespace();
+            collections.putIfAbsent(namespace, pending.collection);
+            byCollection.computeIfAbsent(namespace, c -> new ArrayList<>()).add(pending.write);
+        }
+
+        for (Map.Entry<MongoNamespace, List<WriteModel<Document>>> entry : byCollection.entrySet()) {
+            try {
+                collections.get(entry.getKey()).bulkWrite(entry.getValue(), new BulkWriteOptions().ordered(false));
+                writesFlushed.addAndGet(entry.getValue().size());
+                batchesFlushed.incrementAndGet();
+            } catch (RuntimeException e) {
+                writesFailed.addAndGet(entry.getValue().size());
+                System.err.println("Failed to write " + entry.getValue().size() + " telemetry updates to "
+                        + entry.getKey());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Blocks until everything that was queued before this call has been written.
+     * @param timeoutMillis the longest to wait
+     * @return true if the queue was emptied in time
+     */
+    public boolean awaitFlushed(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long target = writesQueued.get();
+        while (writesFlushed.get() + writesFailed.get() < target) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(Math.min(10, flushIntervalMillis));
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting writes, write everything that is still queued, then stop the background thread.
+     * @param timeoutMillis the longest to wait for the queue to drain
+     */
+    public void shutdown(long timeoutMillis) {
+        //Don't interrupt the flusher, that could abort a bulkWrite half way.
+        //It notices within flushIntervalMillis that it should stop.
+        running = false;
+        try {
+            flusher.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            System.err.println("TelemetryWriter shut down with " + queue.size() + " updates still queued");
+        }
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    public long getWritesFlushed() {
+        return writesFlushed.get();
+    }
+
+    public long getBatchesFlushed() {
+        return batchesFlushed.get();
+    }
+
+    public long getWritesFailed() {
+        return writesFailed.get();
+    }
+}
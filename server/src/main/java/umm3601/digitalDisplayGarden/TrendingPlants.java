@@ -0,0 +1,436 @@
+package umm3601.digitalDisplayGarden;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Ranks the plants of each upload by recent visits, ratings and comments, in memory.
+ *
+ * Every event adds its weight to the plant's score, decayed exponentially with the
+ * given half-life, so this week's favorites rise above plants that were popular in May.
+ * Scores use forward decay: an event at time t adds weight * e^((t - landmark) / tau)
+ * and the current score is that sum times e^((landmark - now) / tau). Recording an
+ * event is O(1) besides keeping the top plants, because the other scores don't change.
+ * The landmark moves forward (and every score is scaled down) before the numbers get too big.
+ *
+ * The best capacity plants of each upload are kept sorted in a bounded TreeSet. Since a
+ * score only goes up when its own plant gets an event, a plant outside the set can only
+ * enter it by an event of its own, so the set stays exact at O(log capacity) per event.
+ *
+ * The scores are saved to the trendingSnapshots collection every so often and loaded from
+ * there when the server starts, one document per upload:
+ * <code>
+ *     {
+ *         uploadId: String,
+ *         landmark: Date,
+ *         savedAt: Date,
+ *         plants: [ {id: String, gardenLocation: String, score: number}, ... ]   (at the landmark)
+ *     }
+ * </code>
+ * Events between the last snapshot and a crash are lost, which only matters for a few minutes.
+ */
+public class TrendingPlants {
+
+    public static final double VISIT_WEIGHT = 1;
+
+    public static final double LIKE_WEIGHT = 3;
+
+    /* A dislike is still someone paying attention to the plant */
+    public static final double DISLIKE_WEIGHT = 1;
+
+    public static final double COMMENT_WEIGHT = 4;
+
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 3 * 24 * 60 * 60 * 1000L;
+
+    public static final int DEFAULT_CAPACITY = 50;
+
+    /* Scores are rescaled once the newest events weigh e^40 times an event at the landmark */
+    private static final double MAX_EXPONENT = 40;
+
+    /* Plants whose current score dropped below this are forgotten when a snapshot is saved */
+    private static final double FORGET_BELOW = 0.01;
+
+    /* One instance per database name */
+    private static final Map<String, TrendingPlants> instances = new ConcurrentHashMap<>();
+
+    private static volatile long halfLifeMillis = DEFAULT_HALF_LIFE_MILLIS;
+
+    private final MongoCollection<Document> snapshotCollection;
+
+    private final MongoCollection<Document> plantCollection;
+
+    /* The decay's time constant: a score falls to 1/e in tau */
+    private final double tauMillis;
+
+    private final int capacity;
+
+    private final Map<String, UploadScores> uploads = new ConcurrentHashMap<>();
+
+    private volatile Thread snapshotter;
+
+    private volatile boolean running;
+
+    /**
+     * A plant's score at its upload's landmark.
+     */
+    private static class Score {
+        final String id;
+        final String gardenLocation;
+        double value;
+
+        Score(String id, String gardenLocation) {
+            this.id = id;
+            this.gardenLocation = gardenLocation;
+        }
+    }
+
+    /* Highest score first, then by gardenLocation and id so that no two plants are equal */
+    private static final Comparator<Score> BY_SCORE = Comparator.<Score>comparingDouble(score -> -score.value)
+            .thenComparing(score -> score.gardenLocation).thenComparing(score -> score.id);
+
+    /**
+     * The scores of one upload. Guarded by its own lock.
+     */
+    private static class UploadScores {
+        long landmark;
+        final Map<String, Score> scores = new HashMap<>();
+        final TreeSet<Score> top = new TreeSet<>(BY_SCORE);
+        boolean changed;
+
+        UploadScores(long landmark) {
+            this.landmark = landmark;
+        }
+    }
+
+    /**
+     * @param database
+     * @param halfLifeMillis how long it takes an event's weight to halve
+     * @param capacity how many plants of each upload are kept ranked, the most getTop returns
+     */
+    public TrendingPlants(MongoDatabase database, long halfLifeMillis, int capacity) {
+        if (halfLifeMillis < 1 || capacity < 1)
+            throw new IllegalArgumentException("TrendingPlants needs a positive half-life and capacity");
+        snapshotCollection = database.getCollection("trendingSnapshots");
+        plantCollection = database.getCollection("plants");
+        tauMillis = halfLifeMillis / Math.log(2);
+        this.capacity = capacity;
+        load();
+    }
+
+    /**
+     * Get the trending plants of the given database, creating them from the last snapshot if needed.
+     * @param database
+     * @return
+     */
+    public static TrendingPlants of(MongoDatabase database) {
+        return instances.computeIfAbsent(database.getName(),
+                name -> new TrendingPlants(database, halfLifeMillis, DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Sets the half-life of the trending plants that of() creates from now on.
+     * @param millis
+     */
+    public static void setHalfLife(long millis) {
+        if (millis < 1)
+            throw new IllegalArgumentException("Half-life must be positive: " + millis);
+        halfLifeMillis = millis;
+    }
+
+    private static String key(String id, String gardenLocation) {
+        return gardenLocation + "\u0000" + id;
+    }
+
+    /**
+     * Counts an event of a plant.
+     * @param uploadId
+     * @param id the plant's id
+     * @param gardenLocation
+     * @param weight one of the _WEIGHT constants
+     * @param time when it happened, in epoch millis
+     */
+    public void record(String uploadId, String id, String gardenLocation, double weight, long time) {
+        if (uploadId == null || id == null || gardenLocation == null)
+            return;
+        UploadScores upload = uploads.computeIfAbsent(uploadId, u -> new UploadScores(time));
+        synchronized (upload) {
+            if ((time - upload.landmark) / tauMillis > MAX_EXPONENT)
+                moveLandmark(upload, time);
+
+            Score score = upload.scores.computeIfAbsent(key(id, gardenLocation), k -> new Score(id, gardenLocation));
+            boolean wasTop = upload.top.remove(score);
+            score.value += weight * Math.exp((time - upload.landmark) / tauMillis);
+            if (wasTop || upload.top.size() < capacity) {
+                upload.top.add(score);
+            } else if (BY_SCORE.compare(score, upload.top.last()) < 0) {
+                upload.top.pollLast();
+                upload.top.add(score);
+            }
+            upload.changed = true;
+        }
+    }
+
+    /**
+     * Scales every score of an upload to a later landmark. The order doesn't change.
+     */
+    private void moveLandmark(UploadScores upload, long landmark) {
+        double scale = Math.exp((upload.landmark - landmark) / tauMillis);
+        upload.top.clear();
+        for (Score score : upload.scores.values()) {
+            score.value *= scale;
+        }
+        upload.landmark = landmark;
+        rebuildTop(upload);
+    }
+
+    private void rebuildTop(UploadScores upload) {
+        upload.top.clear();
+        for (Score score : upload.scores.values()) {
+            upload.top.add(score);
+            if (upload.top.size() > capacity)
+                upload.top.pollLast();
+        }
+    }
+
+    /**
+     * A plant's place in the ranking.
+     */
+    public static class Trending {
+        public final String id;
+        public final String gardenLocation;
+        public final double score;
+
+        Trending(String id, String gardenLocation, double score) {
+            this.id = id;
+            this.gardenLocation = gardenLocation;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The n plants of an upload with the highest scores at time now, highest first.
+     * @param uploadId
+     * @param n at most the capacity
+     * @param now epoch millis
+     * @return
+     */
+    public List<Trending> getTop(String uploadId, int n, long now) {
+        List<Trending> top = new ArrayList<>();
+        UploadScores upload = uploads.get(uploadId);
+        if (upload == null)
+            return top;
+        synchronized (upload) {
+            double decay = Math.exp((upload.landmark - now) / tauMillis);
+            for (Score score : upload.top) {
+                if (top.size() >= n)
+                    break;
+                top.add(new Trending(score.id, score.gardenLocation, score.value * decay));
+            }
+        }
+        return top;
+    }
+
+    /**
+     * The n trending plants of an upload as a JSON array, highest score first,
+     * {id : string, gardenLocation : string, commonName : string, cultivar : string, score : number}
+     * with the names read from the plants in one query. Plants that don't exist anymore are left out.
+     * @param uploadId
+     * @param n
+     * @return
+     */
+    public String getTopJSON(String uploadId, int n) {
+        List<Trending> top = getTop(uploadId, Math.min(n, capacity), System.currentTimeMillis());
+
+        Set<String> ids = new HashSet<>();
+        for (Trending trending : top) {
+            ids.add(trending.id);
+        }
+        Map<String, Document> plants = new HashMap<>();
+        for (Document plant : plantCollection.find(and(eq("uploadId", uploadId), in("id", ids)))
+                .projection(fields(include("id", "gardenLocation", "commonName", "cultivar")))) {
+            plants.put(key(plant.getString("id"), plant.getString("gardenLocation")), plant);
+        }
+
+        JsonArray out = new JsonArray();
+        for (Trending trending : top) {
+            Document plant = plants.get(key(trending.id, trending.gardenLocation));
+            if (plant == null)
+                continue;
+            JsonObject entry = new JsonObject();
+            entry.addProperty("id", trending.id);
+            entry.addProperty("gardenLocation", trending.gardenLocation);
+            entry.addProperty("commonName", plant.getString("commonName"));
+            entry.addProperty("cultivar", plant.getString("cultivar"));
+            entry.addProperty("score", Math.round(trending.score * 100) / 100.0);
+            out.add(entry);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Forgets the scores in memory and reads them from the last snapshots again,
+     * used when the snapshots were changed behind our back.
+     */
+    public void reload() {
+        uploads.clear();
+        load();
+    }
+
+    /**
+     * Reads the last snapshot of every upload.
+     */
+    private void load() {
+        for (Document saved : snapshotCollection.find()) {
+            String uploadId = saved.getString("uploadId");
+            Date landmark = saved.getDate("landmark");
+            Object plants = saved.get("plants");
+            if (uploadId == null || landmark == null || !(plants instanceof List)) {
+                System.err.println("Ignoring a malformed trending snapshot: " + saved.get("_id"));
+                continue;
+            }
+            UploadScores upload = new UploadScores(landmark.getTime());
+            for (Object plant : (List) plants) {
+                Document p = (Document) plant;
+                Score score = new Score(p.getString("id"), p.getString("gardenLocation"));
+                score.value = ((Number) p.get("score")).doubleValue();
+                upload.scores.put(key(score.id, score.gardenLocation), score);
+            }
+            rebuildTop(upload);
+            uploads.put(uploadId, upload);
+        }
+    }
+
+    /**
+     * Saves the scores of every upload that changed since the last snapshot, and forgets
+     * the plants whose score has decayed to almost nothing.
+     * @return how many uploads were saved
+     */
+    public int snapshot() {
+        long now = System.currentTimeMillis();
+        int saved = 0;
+        for (Map.Entry<String, UploadScores> entry : uploads.entrySet()) {
+            UploadScores upload = entry.getValue();
+            Document snapshot;
+            synchronized (upload) {
+                if (!upload.changed)
+                    continue;
+                double forgetAtLandmark = FORGET_BELOW / Math.exp((upload.landmark - now) / tauMillis);
+                List<Document> plants = new ArrayList<>();
+                for (Iterator<Score> scores = upload.scores.values().iterator(); scores.hasNext(); ) {
+                    Score score = scores.next();
+                    if (score.value < forgetAtLandmark && !upload.top.contains(score)) {
+                        scores.remove();
+                        continue;
+                    }
+                    plants.add(new Document("id", score.id).append("gardenLocation", score.gardenLocation)
+                            .append("score", score.value));
+                }
+                snapshot = new Document("uploadId", entry.getKey())
+                        .append("landmark", new Date(upload.landmark))
+                        .append("savedAt", new Date(now))
+                        .append("plants", plants);
+                upload.changed = false;
+            }
+            try {
+                snapshotCollection.replaceOne(eq("uploadId", entry.getKey()), snapshot, new UpdateOptions().upsert(true));
+                saved++;
+            } catch (MongoException e) {
+                System.err.println("Could not save the trending plants of " + entry.getKey() + ": " + e.getMessage());
+                synchronized (upload) {
+                    upload.changed = true;
+                }
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Saves a snapshot every intervalMillis on a background thread, until shutdown().
+     * @param intervalMillis
+     */
+    public synchronized void startSnapshots(long intervalMillis) {
+        if (snapshotter != null || intervalMillis < 1)
+            return;
+        running = true;
+        snapshotter = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    snapshot();
+                } catch (RuntimeException e) {
+                    //Try again next time, the scores are still in memory
+                    System.err.println("Could not save the trending plants");
+                    e.printStackTrace();
+                }
+            }
+        }, "trending-snapshots");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * Stops the snapshots and saves a last one.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (snapshotter != null) {
+            snapshotter.interrupt();
+            snapshotter = null;
+        }
+        snapshot();
+    }
+
+    /**
+     * Moves the scores of oldUploadId over to newUploadId, used when an upload is patched.
+     * @param oldUploadId
+     * @param newUploadId
+     */
+    public void renameUpload(String oldUploadId, String newUploadId) {
+        UploadScores upload = uploads.remove(oldUploadId);
+        if (upload != null) {
+            synchronized (upload) {
+                upload.changed = true;
+            }
+            uploads.put(newUploadId, upload);
+        }
+        snapshotCollection.deleteMany(eq("uploadId", newUploadId));
+        snapshotCollection.updateMany(eq("uploadId", oldUploadId), set("uploadId", newUploadId));
+    }
+
+    /**
+     * Forgets the scores of an upload.
+     * @param uploadId
+     */
+    public void deleteUpload(String uploadId) {
+        uploads.remove(uploadId);
+        snapshotCollection.deleteMany(eq("uploadId", uploadId));
+    }
+}
@@ -0,0 +1,114 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoDatabase;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory set of the uploadIds that exist in a database, so that checking
+ * whether an uploadId is valid doesn't have to group the whole plants collection.
+ *
+ * The set is loaded from the plants collection the first time it is used and is then
+ * kept in sync by ExcelParser.populateDatabase, ExcelParser.clearUpload (used by patchDatabase)
+ * and PlantController.deleteUploadID. An uploadId that isn't in the set causes a reload
+ * at most once per refresh interval, in case another process imported it.
+ */
+public class UploadRegistry {
+
+    /* One registry per database name */
+    private static final Map<String, UploadRegistry> registries = new ConcurrentHashMap<>();
+
+    /* Minimum time between two reloads caused by looking up an unknown uploadId */
+    private static volatile long refreshIntervalMillis = 30 * 1000;
+
+    private final MongoDatabase database;
+
+    private final Set<String> uploadIds = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean loaded = false;
+
+    /* System.currentTimeMillis() of the last reload */
+    private volatile long lastReloaded;
+
+    private UploadRegistry(MongoDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Get the registry for the given database, creating it if needed.
+     * @param database
+     * @return
+     */
+    public static UploadRegistry of(MongoDatabase database) {
+        return registries.computeIfAbsent(database.getName(), name -> new UploadRegistry(database));
+    }
+
+    /**
+     * Sets the minimum time (in milliseconds) between reloads caused by unknown uploadIds.
+     * @param millis
+     */
+    public static void setRefreshInterval(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Refresh interval cannot be negative: " + millis);
+        refreshIntervalMillis = millis;
+    }
+
+    /**
+     * Checks whether the uploadId is known, without going to the database unless
+     * the registry hasn't been loaded or the uploadId is unknown and the registry is stale.
+     * @param uploadId
+     * @return
+     */
+    public boolean contains(String uploadId) {
+        if (uploadId == null)
+            return false;
+        if (!loaded)
+            reload();
+        if (uploadIds.contains(uploadId))
+            return true;
+
+        if (System.currentTimeMillis() - lastReloaded >= refreshIntervalMillis) {
+            reload();
+            return uploadIds.contains(uploadId);
+        }
+        return false;
+    }
+
+    /**
+     * Rebuild the registry from the uploadIds of the plants collection.
+     */
+    public synchronized void reload() {
+        Set<String> current = new HashSet<>(ExcelParser.listUploadIds(database));
+        uploadIds.retainAll(current);
+        uploadIds.addAll(current);
+        lastReloaded = System.currentTimeMillis();
+        loaded = true;
+    }
+
+    /**
+     * Records that plants with this uploadId have been added to the database.
+     * @param uploadId
+     */
+    public void register(String uploadId) {
+        uploadIds.add(uploadId);
+    }
+
+    /**
+     * Records that all plants with this uploadId have been removed from the database.
+     * @param uploadId
+     */
+    public void unregister(String uploadId) {
+        uploadIds.remove(uploadId);
+    }
+
+    /**
+     * The number of uploadIds currently known.
+     * @return
+     */
+    public int size() {
+        return uploadIds.size();
+    }
+}
@@ -0,0 +1,155 @@
+package umm3601.digitalDisplayGarden;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Counts visits by hour of the day, day of the week and month, as int[hour][dayOfWeek][month]
+ * with the same numbering as Date.getHours(), getDay() and getMonth().
+ *
+ * Counting a visit is arithmetic on its epoch millis and allocates nothing. The time zone's
+ * UTC offset is looked up once per offset change (daylight saving time and such) rather than
+ * per visit: the periods between changes that were looked up are remembered, so visits in any
+ * order only consult the ZoneRules a few times a year of visits.
+ */
+public class VisitHistogram {
+
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    private final int[][][] counts = new int[24][7][12];
+
+    private final ZoneRules rules;
+
+    /* How many offset windows are remembered, a few years' worth of daylight saving changes */
+    private static final int WINDOWS = 32;
+
+    /* offsetMillis[i] applies to every instant in [offsetFrom[i], offsetUntil[i]) */
+    private final long[] offsetMillis = new long[WINDOWS];
+    private final long[] offsetFrom = new long[WINDOWS];
+    private final long[] offsetUntil = new long[WINDOWS];
+    /* How many windows were ever looked up */
+    private int windows;
+    private int lastWindow;
+
+    /* The month of the most recent day counted, since consecutive visits are mostly on the same day */
+    private long lastDay = Long.MIN_VALUE;
+    private int lastMonth;
+
+    /**
+     * Counts in the server's default time zone, like the Date getters.
+     */
+    public VisitHistogram() {
+        this(ZoneId.systemDefault());
+    }
+
+    public VisitHistogram(ZoneId zone) {
+        this.rules = zone.getRules();
+    }
+
+    /**
+     * Counts one visit.
+     * @param epochMillis
+     */
+    public void add(long epochMillis) {
+        add(epochMillis, 1);
+    }
+
+    /**
+     * Counts several visits at the same instant, or in the same local hour.
+     * @param epochMillis
+     * @param count
+     */
+    public void add(long epochMillis, int count) {
+        long local = epochMillis + offsetAt(epochMillis);
+        long day = Math.floorDiv(local, MILLIS_PER_DAY);
+        int hour = (int) (Math.floorMod(local, MILLIS_PER_DAY) / MILLIS_PER_HOUR);
+        //1970-01-01 was a Thursday, and Sunday is 0
+        int dayOfWeek = (int) Math.floorMod(day + 4, 7L);
+        if (day != lastDay) {
+            lastDay = day;
+            lastMonth = monthOfEpochDay(day);
+        }
+        counts[hour][dayOfWeek][lastMonth] += count;
+    }
+
+    /**
+     * Counts one visit.
+     * @param date
+     */
+    public void add(Date date) {
+        add(date.getTime());
+    }
+
+    /**
+     * Counts every visit.
+     * @param dates
+     */
+    public void addAll(Collection<Date> dates) {
+        for (Date date : dates) {
+            add(date.getTime());
+        }
+    }
+
+    /**
+     * The counts so far as int[hour][dayOfWeek][month]. This is the histogram's own array, not a copy.
+     * @return
+     */
+    public int[][][] getCounts() {
+        return counts;
+    }
+
+    /**
+     * The local time of an instant as millis since the local epoch, e.g. for truncating it to the local hour.
+     * @param epochMillis
+     * @return
+     */
+    public long toLocalMillis(long epochMillis) {
+        return epochMillis + offsetAt(epochMillis);
+    }
+
+    /**
+     * The zone's UTC offset in millis at an instant, from a remembered window when one covers the instant.
+     */
+    private long offsetAt(long epochMillis) {
+        if (epochMillis >= offsetFrom[lastWindow] && epochMillis < offsetUntil[lastWindow])
+            return offsetMillis[lastWindow];
+        for (int i = 0; i < Math.min(windows, WINDOWS); i++) {
+            if (epochMillis >= offsetFrom[i] && epochMillis < offsetUntil[i]) {
+                lastWindow = i;
+                return offsetMillis[i];
+            }
+        }
+
+        //Past WINDOWS windows, the oldest remembered one is replaced
+        int window = windows < WINDOWS ? windows : windows % WINDOWS;
+        windows++;
+        Instant instant = Instant.ofEpochMilli(epochMillis);
+        ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        offsetMillis[window] = rules.getOffset(instant).getTotalSeconds() * 1000L;
+        offsetFrom[window] = previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000;
+        offsetUntil[window] = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+        lastWindow = window;
+        return offsetMillis[window];
+    }
+
+    /**
+     * The month (0 is January) of a day counted from 1970-01-01, from Howard Hinnant's civil_from_days.
+     */
+    static int monthOfEpochDay(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        //shiftedMonth counts from March
+        return (int) (shiftedMonth < 10 ? shiftedMonth + 2 : shiftedMonth - 10);
+    }
+}
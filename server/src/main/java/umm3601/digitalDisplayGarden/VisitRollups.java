@@ -0,0 +1,219 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Counts plant visits by hour of the day, day of the week and month in the visitRollups
+ * collection, so the visit charts don't have to load every visit.
+ *
+ * There is one document per upload and day with visits, of the form
+ * <code>
+ *     {
+ *         uploadId: String,
+ *         day: "yyyy-MM-dd",
+ *         dayOfWeek: number,   (0 is Sunday, like Date.getDay())
+ *         month: number,       (0 is January, like Date.getMonth())
+ *         count: number,
+ *         hours: { "0": number, ..., "23": number }
+ *     }
+ * </code>
+ * Days, hours and so on are in the server's time zone when the visit is recorded, the same
+ * as the charts used to compute from the visit Dates. A visit is an upsert with $inc, so
+ * recording one never reads anything, and a season is a few hundred small documents.
+ */
+public class VisitRollups {
+
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    private final MongoCollection<Document> rollupCollection;
+
+    public VisitRollups(MongoDatabase database) {
+        rollupCollection = database.getCollection("visitRollups");
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return rollupCollection;
+    }
+
+    private static LocalDateTime local(Date date) {
+        return LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
+    }
+
+    /**
+     * The write that counts count visits of an upload in the hour of date.
+     * @param uploadId
+     * @param date
+     * @param count
+     * @return
+     */
+    public static UpdateOneModel<Document> visitWrite(String uploadId, Date date, int count) {
+        LocalDateTime time = local(date);
+        Bson filter = and(eq("uploadId", uploadId), eq("day", time.toLocalDate().toString()));
+        Bson update = combine(
+                set("dayOfWeek", time.getDayOfWeek().getValue() % 7),
+                set("month", time.getMonthValue() - 1),
+                inc("count", count),
+                inc("hours." + time.getHour(), count));
+        return new UpdateOneModel<>(filter, update, new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * The write that counts one visit of an upload at date.
+     * @param uploadId
+     * @param date
+     * @return
+     */
+    public static UpdateOneModel<Document> visitWrite(String uploadId, Date date) {
+        return visitWrite(uploadId, date, 1);
+    }
+
+    /**
+     * Writes a visit from visitWrite now.
+     * @param write
+     */
+    public void record(UpdateOneModel<Document> write) {
+        rollupCollection.updateOne(write.getFilter(), write.getUpdate(), write.getOptions());
+    }
+
+    /**
+     * The visits of an upload as int[hour][dayOfWeek][month].
+     * @param uploadId
+     * @return
+     */
+    public int[][][] getVisitCounts(String uploadId) {
+        return getVisitCounts(uploadId, null, null);
+    }
+
+    /**
+     * The visits of an upload on a range of days as int[hour][dayOfWeek][month].
+     * Only the rollups of those days are read.
+     * @param uploadId
+     * @param fromDay the first day to include as "yyyy-MM-dd", null for no limit
+     * @param toDay the last day to include as "yyyy-MM-dd", null for no limit
+     * @return
+     */
+    public int[][][] getVisitCounts(String uploadId, String fromDay, String toDay) {
+        int[][][] counts = new int[24][7][12];
+        for (Document day : rollupCollection.find(dayRange(uploadId, fromDay, toDay))
+                .projection(fields(include("dayOfWeek", "month", "hours"), excludeId()))) {
+            int dayOfWeek = day.getInteger("dayOfWeek");
+            int month = day.getInteger("month");
+            Document hours = (Document) day.get("hours");
+            for (Map.Entry<String, Object> hour : hours.entrySet()) {
+                counts[Integer.parseInt(hour.getKey())][dayOfWeek][month] += ((Number) hour.getValue()).intValue();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The number of visits of an upload on each day of a range that had visits.
+     * @param uploadId
+     * @param fromDay the first day to include as "yyyy-MM-dd", null for no limit
+     * @param toDay the last day to include as "yyyy-MM-dd", null for no limit
+     * @return visits by day, in order
+     */
+    public SortedMap<String, Integer> getDailyCounts(String uploadId, String fromDay, String toDay) {
+        SortedMap<String, Integer> counts = new TreeMap<>();
+        for (Document day : rollupCollection.find(dayRange(uploadId, fromDay, toDay))
+                .projection(fields(include("day", "count"), excludeId()))) {
+            counts.merge(day.getString("day"), ((Number) day.get("count")).intValue(), Integer::sum);
+        }
+        return counts;
+    }
+
+    private static Bson dayRange(String uploadId, String fromDay, String toDay) {
+        List<Bson> filter = new ArrayList<>();
+        filter.add(eq("uploadId", uploadId));
+        if (fromDay != null)
+            filter.add(gte("day", fromDay));
+        if (toDay != null)
+            filter.add(lte("day", toDay));
+        return and(filter);
+    }
+
+    /**
+     * Moves the rollups of oldUploadId over to newUploadId, used when an upload is patched.
+     * @param oldUploadId
+     * @param newUploadId
+     */
+    public void renameUpload(String oldUploadId, String newUploadId) {
+        rollupCollection.updateMany(eq("uploadId", oldUploadId), set("uploadId", newUploadId));
+    }
+
+    /**
+     * Deletes every rollup of an upload.
+     * @param uploadId
+     */
+    public void deleteUpload(String uploadId) {
+        rollupCollection.deleteMany(eq("uploadId", uploadId));
+    }
+
+    /**
+     * Computes the rollups of uploads from the visit buckets in plantEvents, which is where
+     * PlantEventStore.migrateFromPlantMetadata moved the visits older versions kept in metadata.visits.
+     * @param database
+     * @param onlyMissing when true only uploads that have no rollups yet are computed, otherwise every upload is recomputed
+     * @return the number of visits that were counted
+     */
+    public static int backfill(MongoDatabase database, boolean onlyMissing) {
+        MongoCollection<Document> eventCollection = database.getCollection("plantEvents");
+        MongoCollection<Document> rollupCollection = database.getCollection("visitRollups");
+
+        Set<String> uploadIds = new HashSet<>();
+        for (String uploadId : eventCollection.distinct("uploadId", eq("type", PlantEventStore.TYPE_VISIT), String.class)) {
+            if (!onlyMissing || rollupCollection.find(eq("uploadId", uploadId)).first() == null)
+                uploadIds.add(uploadId);
+        }
+
+        int visits = 0;
+        for (String uploadId : uploadIds) {
+            //Count each upload's visits by local hour first, then write them all at once
+            VisitHistogram zone = new VisitHistogram();
+            Map<Long, Integer> byHour = new HashMap<>();
+            for (Date date : new PlantEventStore(database).getVisitDates(uploadId)) {
+                long intoHour = Math.floorMod(zone.toLocalMillis(date.getTime()), MILLIS_PER_HOUR);
+                byHour.merge(date.getTime() - intoHour, 1, Integer::sum);
+                visits++;
+            }
+
+            List<WriteModel<Document>> writes = new ArrayList<>();
+            for (Map.Entry<Long, Integer> hour : byHour.entrySet()) {
+                writes.add(visitWrite(uploadId, new Date(hour.getKey()), hour.getValue()));
+            }
+            rollupCollection.deleteMany(eq("uploadId", uploadId));
+            if (!writes.isEmpty())
+                rollupCollection.bulkWrite(writes);
+        }
+        return visits;
+    }
+}
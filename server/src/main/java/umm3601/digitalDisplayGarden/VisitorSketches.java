@@ -0,0 +1,192 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.max;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Counts unique visitors of plants and beds with HyperLogLog sketches, kept in the
+ * visitorSketches collection next to the raw pageViews and qrScans counters.
+ *
+ * There is one sketch per plant or bed and day, of the form
+ * <code>
+ *     {
+ *         uploadId: String,
+ *         kind: "plant" | "bed",
+ *         gardenLocation: String,
+ *         id: String,           (plants only)
+ *         day: "yyyy-MM-dd",    (in the server's time zone)
+ *         registers: { "17": 3, "530": 1, ... }
+ *     }
+ * </code>
+ * Only the registers that were set are stored, at most HyperLogLog.REGISTERS of them.
+ * A visit is an upsert that raises one register with $max, so recording one never reads
+ * anything, and sketches of any range of days are merged when they are read.
+ */
+public class VisitorSketches {
+
+    public static final String KIND_PLANT = "plant";
+
+    public static final String KIND_BED = "bed";
+
+    private final MongoCollection<Document> sketchCollection;
+
+    public VisitorSketches(MongoDatabase database) {
+        sketchCollection = database.getCollection("visitorSketches");
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return sketchCollection;
+    }
+
+    /**
+     * The day a date falls on in the server's time zone, as stored in a sketch.
+     */
+    public static String day(Date date) {
+        return LocalDate.from(Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault())).toString();
+    }
+
+    private static Bson sketchFilter(String uploadId, String kind, String id, String gardenLocation) {
+        List<Bson> filter = new ArrayList<>();
+        filter.add(eq("uploadId", uploadId));
+        filter.add(eq("kind", kind));
+        filter.add(eq("gardenLocation", gardenLocation));
+        if (id != null)
+            filter.add(eq("id", id));
+        return and(filter);
+    }
+
+    /**
+     * The write that counts a visitor of a plant or bed on the day of date.
+     * @param uploadId
+     * @param kind KIND_PLANT or KIND_BED
+     * @param id the plant's id, null for a bed
+     * @param gardenLocation
+     * @param visitorToken the visitor's anonymous token
+     * @param date
+     * @return
+     */
+    public static UpdateOneModel<Document> visitWrite(String uploadId, String kind, String id, String gardenLocation,
+                                                      String visitorToken, Date date) {
+        long hash = HyperLogLog.hash(visitorToken);
+        Bson filter = and(sketchFilter(uploadId, kind, id, gardenLocation), eq("day", day(date)));
+        Bson update = max("registers." + HyperLogLog.registerIndex(hash), HyperLogLog.registerValue(hash));
+        return new UpdateOneModel<>(filter, update, new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Writes a visit from visitWrite now.
+     * @param write
+     */
+    public void record(UpdateOneModel<Document> write) {
+        sketchCollection.updateOne(write.getFilter(), write.getUpdate(), write.getOptions());
+    }
+
+    /**
+     * The merged sketch of a plant or bed over a range of days.
+     * @param uploadId
+     * @param kind KIND_PLANT or KIND_BED
+     * @param id the plant's id, null for a bed
+     * @param gardenLocation
+     * @param fromDay the first day to include as "yyyy-MM-dd", null for no limit
+     * @param toDay the last day to include as "yyyy-MM-dd", null for no limit
+     * @return
+     */
+    public HyperLogLog getSketch(String uploadId, String kind, String id, String gardenLocation, String fromDay, String toDay) {
+        List<Bson> filter = new ArrayList<>();
+        filter.add(sketchFilter(uploadId, kind, id, gardenLocation));
+        if (fromDay != null)
+            filter.add(gte("day", fromDay));
+        if (toDay != null)
+            filter.add(lte("day", toDay));
+
+        HyperLogLog sketch = new HyperLogLog();
+        for (Document day : sketchCollection.find(and(filter)).projection(fields(include("registers"), excludeId()))) {
+            sketch.merge((Document) day.get("registers"));
+        }
+        return sketch;
+    }
+
+    /**
+     * The estimated number of unique visitors of a plant or bed over all days.
+     * @param uploadId
+     * @param kind KIND_PLANT or KIND_BED
+     * @param id the plant's id, null for a bed
+     * @param gardenLocation
+     * @return
+     */
+    public long getUniqueVisitors(String uploadId, String kind, String id, String gardenLocation) {
+        return getSketch(uploadId, kind, id, gardenLocation, null, null).estimate();
+    }
+
+    /**
+     * The estimated number of unique visitors of every plant or every bed of an upload over all days,
+     * read in one query. Plants and beds without visitors are left out.
+     * @param uploadId
+     * @param kind KIND_PLANT or KIND_BED
+     * @return unique visitors by key(id, gardenLocation)
+     */
+    public Map<String, Long> getUniqueVisitors(String uploadId, String kind) {
+        Map<String, HyperLogLog> sketches = new HashMap<>();
+        for (Document day : sketchCollection.find(and(eq("uploadId", uploadId), eq("kind", kind)))
+                .projection(fields(include("id", "gardenLocation", "registers"), excludeId()))) {
+            String key = key(day.getString("id"), day.getString("gardenLocation"));
+            sketches.computeIfAbsent(key, k -> new HyperLogLog()).merge((Document) day.get("registers"));
+        }
+
+        Map<String, Long> uniqueVisitors = new HashMap<>();
+        for (Map.Entry<String, HyperLogLog> sketch : sketches.entrySet()) {
+            uniqueVisitors.put(sketch.getKey(), sketch.getValue().estimate());
+        }
+        return uniqueVisitors;
+    }
+
+    /**
+     * The key of a plant or bed in getUniqueVisitors(uploadId, kind).
+     * @param id the plant's id, null for a bed
+     * @param gardenLocation
+     * @return
+     */
+    public static String key(String id, String gardenLocation) {
+        return id == null ? gardenLocation : id + "@" + gardenLocation;
+    }
+
+    /**
+     * Moves every sketch of an upload to another uploadId, as when a spreadsheet is patched.
+     * @param oldUploadId
+     * @param newUploadId
+     */
+    public void renameUpload(String oldUploadId, String newUploadId) {
+        sketchCollection.updateMany(eq("uploadId", oldUploadId), set("uploadId", newUploadId));
+    }
+
+    /**
+     * Deletes every sketch of an upload.
+     * @param uploadId
+     */
+    public void deleteUpload(String uploadId) {
+        sketchCollection.deleteMany(eq("uploadId", uploadId));
+    }
+}
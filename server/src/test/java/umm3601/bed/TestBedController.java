@@ -11,14 +11,23 @@ import org.junit.Before;
 import org.junit.Test;
 import umm3601.digitalDisplayGarden.BedController;
 import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.QRScanCounters;
+import umm3601.digitalDisplayGarden.TelemetryWriter;
 import umm3601.plant.PopulateMockDatabase;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by Brian on 4/11/2017.
@@ -120,6 +129,56 @@ public class TestBedController {
 
     }
 
+    @Test
+    public void TestConcurrentQRVisitsLoseNothing() throws Exception {
+        int scans = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < scans; i++) {
+            results.add(pool.submit(() -> bedController.addBedQRVisit("7.0", "second uploadId")));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        pool.shutdown();
+
+        Document metadata = (Document) testDB.getCollection("beds")
+                .find(new Document("_id", new ObjectId("58d1c36efb0cac4e15afd302"))).first().get("metadata");
+
+        assertEquals("every scan should count as a page view", scans, (int) metadata.getInteger("pageViews"));
+        assertEquals("every scan should be counted", scans, (int) metadata.getInteger("qrScans"));
+        assertEquals("every scan should be a bed visit", scans, ((List<Document>) metadata.get("bedVisits")).size());
+        assertEquals("every scan should be recorded", scans, ((List<Document>) metadata.get("qrVisits")).size());
+        assertEquals("every scan should count in its hour", scans,
+                Arrays.stream(QRScanCounters.read(new Document("metadata", metadata))).sum());
+    }
+
+    @Test
+    public void TestVisitToMissingBedFails(){
+        assertFalse(bedController.addBedVisit("7.0", "no such uploadId"));
+        assertFalse(bedController.addBedQRVisit("no such bed", "second uploadId"));
+    }
+
+    @Test
+    public void TestQueuedVisitToMissingBedWritesNothing() throws InterruptedException {
+        TelemetryWriter writer = new TelemetryWriter(100, 100, 50);
+        bedController.setTelemetryWriter(writer);
+        try {
+            assertFalse(bedController.addBedVisit("no such bed", "second uploadId", "visitor token"));
+            assertFalse(bedController.addBedQRVisit("no such bed", "second uploadId", "visitor token"));
+            assertTrue(bedController.addBedQRVisit("7.0", "second uploadId", "visitor token"));
+            assertTrue(writer.awaitFlushed(10000));
+        } finally {
+            writer.shutdown(10000);
+        }
+
+        assertEquals("no sketch should be made for a bed that doesn't exist", 0,
+                testDB.getCollection("visitorSketches").count(new Document("gardenLocation", "no such bed")));
+        assertEquals(0, bedController.getUniqueVisitors("no such bed", "second uploadId"));
+        assertEquals(1, bedController.getUniqueVisitors("7.0", "second uploadId"));
+        assertEquals(1, bedController.getPageViews("7.0", "second uploadId"));
+    }
+
     @Test
     public void TestGetPageViews()
     {
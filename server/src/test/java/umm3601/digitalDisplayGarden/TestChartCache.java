@@ -0,0 +1,111 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestChartCache {
+
+    private final static String databaseName = "data-for-testing-only";
+
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private GardenCharts gardenCharts;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        gardenCharts = new GardenCharts(testDB);
+    }
+
+    @Test
+    public void testComputesOnceUntilExpired() throws InterruptedException {
+        ChartCache cache = new ChartCache(200);
+        String key = ChartCache.key("comboChart", "googleCharts uploadId", DataVersion.get(testDB));
+
+        String first = cache.get(key, () -> gardenCharts.getComboChart("googleCharts uploadId"));
+        String second = cache.get(key, () -> { throw new AssertionError("cached chart was computed again"); });
+        assertTrue(first == second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        Thread.sleep(300);
+        assertEquals(first, cache.get(key, () -> gardenCharts.getComboChart("googleCharts uploadId")));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testKeyIncludesTheDataVersion() {
+        assertNotEquals(ChartCache.key("top20Likes", "first uploadId", 1), ChartCache.key("top20Likes", "first uploadId", 2));
+        assertNotEquals(ChartCache.key("top20Likes", "first uploadId", 1), ChartCache.key("top20Likes", "second uploadId", 1));
+        assertNotEquals(ChartCache.key("top20Likes", "first uploadId", 1), ChartCache.key("top20Comments", "first uploadId", 1));
+    }
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        ChartCache cache = new ChartCache(0);
+        String key = ChartCache.key("plantMetadataMap", "first uploadId", DataVersion.get(testDB));
+        AtomicInteger computations = new AtomicInteger();
+        CountDownLatch waiting = new CountDownLatch(1);
+
+        ExecutorService admins = Executors.newFixedThreadPool(8);
+        List<Future<String>> charts = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            charts.add(admins.submit(() -> cache.get(key, () -> {
+                computations.incrementAndGet();
+                try {
+                    //Hold the computation until every other admin is waiting for it
+                    waiting.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return gardenCharts.getBedMetadataForMap(null, "first uploadId");
+            })));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getCoalesced() < 7 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        waiting.countDown();
+
+        String expected = gardenCharts.getBedMetadataForMap(null, "first uploadId");
+        for (Future<String> chart : charts) {
+            assertEquals(expected, chart.get());
+        }
+        admins.shutdown();
+        assertEquals(1, computations.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(7, cache.getCoalesced());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        ChartCache cache = new ChartCache(60 * 1000);
+        String key = ChartCache.key("viewsPerHour", "first uploadId", 0);
+        try {
+            cache.get(key, () -> { throw new IllegalStateException("database is down"); });
+            fail("the computation's exception should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("database is down", e.getMessage());
+        }
+        assertEquals("[]", cache.get(key, () -> "[]"));
+        assertEquals(2, cache.getMisses());
+        assertTrue(cache.getStatsJSON().contains("\"misses\":2"));
+    }
+}
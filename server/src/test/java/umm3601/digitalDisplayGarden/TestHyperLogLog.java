@@ -0,0 +1,67 @@
+package umm3601.digitalDisplayGarden;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestHyperLogLog {
+
+    private static void assertClose(long expected, long estimate) {
+        //The standard error with 1024 registers is about 3.25%, allow three of them
+        assertTrue("estimated " + estimate + " for " + expected, Math.abs(estimate - expected) <= Math.max(2, expected * 0.1));
+    }
+
+    @Test
+    public void testEmptySketch() {
+        assertEquals(0, new HyperLogLog().estimate());
+        assertEquals(0, new HyperLogLog().toDocument().size());
+    }
+
+    @Test
+    public void testRepeatsCountOnce() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("visitor " + (i % 10));
+        }
+        assertEquals(10, sketch.estimate());
+    }
+
+    @Test
+    public void testEstimates() {
+        for (int visitors : new int[]{100, 1000, 10000, 200000}) {
+            HyperLogLog sketch = new HyperLogLog();
+            for (int i = 0; i < visitors; i++) {
+                sketch.add("visitor " + i);
+            }
+            assertClose(visitors, sketch.estimate());
+        }
+    }
+
+    @Test
+    public void testMergeIsUnion() {
+        HyperLogLog monday = new HyperLogLog();
+        HyperLogLog tuesday = new HyperLogLog();
+        for (int i = 0; i < 6000; i++) {
+            monday.add("visitor " + i);
+        }
+        //Half of Tuesday's visitors already came on Monday
+        for (int i = 3000; i < 9000; i++) {
+            tuesday.add("visitor " + i);
+        }
+
+        HyperLogLog both = new HyperLogLog();
+        both.merge(monday);
+        both.merge(tuesday.toDocument());
+        assertClose(9000, both.estimate());
+        assertEquals("merging is the same as seeing every visitor", both.toDocument(), union(0, 9000).toDocument());
+    }
+
+    private static HyperLogLog union(int from, int to) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = from; i < to; i++) {
+            sketch.add("visitor " + i);
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,57 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+public class TestIndexManager {
+
+    private final static String databaseName = "data-for-testing-only";
+
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB;
+
+    @Before
+    public void clearDatabase() {
+        mongoClient.dropDatabase(databaseName);
+        testDB = mongoClient.getDatabase(databaseName);
+    }
+
+    private List<String> indexNames(String collection) {
+        List<String> names = new ArrayList<>();
+        for (Document index : testDB.getCollection(collection).listIndexes()) {
+            names.add(index.getString("name"));
+        }
+        return names;
+    }
+
+    @Test
+    public void testEnsureIndexes() {
+        IndexManager indexManager = new IndexManager(testDB);
+        indexManager.ensureIndexes();
+        //Running it twice should not fail
+        indexManager.ensureIndexes();
+
+        assertTrue(indexNames("plants").contains("uploadId_id_gardenLocation"));
+        assertTrue(indexNames("plants").contains("uploadId_gardenLocation"));
+        assertTrue(indexNames("plants").contains("uploadId_commonName_cultivar__id"));
+        assertTrue(indexNames("comments").contains("uploadId_commentOnPlant_commentInBed"));
+        assertTrue(indexNames("beds").contains("uploadId_gardenLocation"));
+    }
+
+    @Test
+    public void testHotQueriesUseIndexes() {
+        IndexManager indexManager = new IndexManager(testDB);
+        indexManager.ensureIndexes();
+
+        List<String> scans = indexManager.verifyHotQueries();
+        assertTrue("Hot queries scan their collection: " + scans, scans.isEmpty());
+    }
+}
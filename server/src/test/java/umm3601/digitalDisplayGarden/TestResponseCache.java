@@ -0,0 +1,123 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestResponseCache {
+
+    private final static String databaseName = "data-for-testing-only";
+
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private PlantController plantController;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+    }
+
+    @Test
+    public void testKeyIgnoresParamOrder() {
+        Map<String, String[]> ab = new LinkedHashMap<>();
+        ab.put("gardenLocation", new String[]{"10.0"});
+        ab.put("fields", new String[]{"catalog"});
+        Map<String, String[]> ba = new LinkedHashMap<>();
+        ba.put("fields", new String[]{"catalog"});
+        ba.put("gardenLocation", new String[]{"10.0"});
+        String[] params = PlantController.LIST_PARAMS;
+
+        assertEquals(ResponseCache.key("api/plants", ab, params, "first uploadId", 1), ResponseCache.key("api/plants", ba, params, "first uploadId", 1));
+        assertNotEquals(ResponseCache.key("api/plants", ab, params, "first uploadId", 1), ResponseCache.key("api/plants", ab, params, "first uploadId", 2));
+        assertNotEquals(ResponseCache.key("api/plants", ab, params, "first uploadId", 1), ResponseCache.key("api/plants", ab, params, "second uploadId", 1));
+    }
+
+    @Test
+    public void testKeyIgnoresParamsTheRouteDoesNotRead() {
+        Map<String, String[]> params = new HashMap<>();
+        params.put("fields", new String[]{"catalog"});
+        Map<String, String[]> withNoise = new HashMap<>(params);
+        withNoise.put("x", new String[]{"a random cache buster"});
+
+        assertEquals(ResponseCache.key("api/plants", params, PlantController.LIST_PARAMS, "first uploadId", 1),
+                ResponseCache.key("api/plants", withNoise, PlantController.LIST_PARAMS, "first uploadId", 1));
+        assertEquals(ResponseCache.key("api/commonNames", new HashMap<>(), new String[0], "first uploadId", 1),
+                ResponseCache.key("api/commonNames", withNoise, new String[0], "first uploadId", 1));
+    }
+
+    @Test
+    public void testOnlyListingsWithoutCountersAreCatalogOnly() {
+        Map<String, String[]> params = new HashMap<>();
+        assertFalse("whole plants have counters", PlantController.isCatalogOnly(params));
+        params.put("fields", new String[]{"catalog"});
+        assertTrue(PlantController.isCatalogOnly(params));
+        params.put("fields", new String[]{"commonName, cultivar"});
+        assertTrue(PlantController.isCatalogOnly(params));
+        params.put("fields", new String[]{"catalog,metadata.likeCount"});
+        assertFalse(PlantController.isCatalogOnly(params));
+        params.put("fields", new String[]{"metadata"});
+        assertFalse(PlantController.isCatalogOnly(params));
+    }
+
+    @Test
+    public void testRendersOnceAndGzips() throws IOException {
+        ResponseCache cache = new ResponseCache();
+        RequestContext context = RequestContext.forUploadId(testDB, "first uploadId");
+        Map<String, String[]> catalog = new HashMap<>();
+        catalog.put("fields", new String[]{"catalog"});
+        String key = ResponseCache.key("api/plants", catalog, PlantController.LIST_PARAMS, "first uploadId", DataVersion.get(testDB));
+
+        ResponseCache.Entry first = cache.get(key, out -> plantController.writePlants(catalog, context, out));
+        ResponseCache.Entry second = cache.get(key, out -> { throw new AssertionError("cached response was rendered again"); });
+        assertTrue(first == second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        String json = new String(first.body, StandardCharsets.UTF_8);
+        assertEquals(plantController.listPlants(catalog, "first uploadId"), json);
+
+        ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(first.gzipped))) {
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) > 0; )
+                unzipped.write(buffer, 0, read);
+        }
+        assertEquals(json, new String(unzipped.toByteArray(), StandardCharsets.UTF_8));
+        assertNotEquals("gzipped response needs its own strong ETag", first.etag, first.gzippedEtag);
+    }
+
+    @Test
+    public void testEtagMatching() {
+        String etag = "\"abc\"";
+        assertTrue(ResponseCache.matches("\"abc\"", etag));
+        assertTrue(ResponseCache.matches("\"xyz\", W/\"abc\"", etag));
+        assertTrue(ResponseCache.matches("*", etag));
+        assertFalse(ResponseCache.matches("\"abcd\"", etag));
+        assertFalse(ResponseCache.matches(null, etag));
+    }
+
+    @Test
+    public void testCatalogChangesBumpTheVersion() {
+        long version = DataVersion.get(testDB);
+        ExcelParser.setLiveUploadId("first uploadId", testDB);
+        plantController.deleteUploadID("second uploadId");
+        assertTrue("deleting an upload should bump the data version", DataVersion.get(testDB) > version);
+    }
+}
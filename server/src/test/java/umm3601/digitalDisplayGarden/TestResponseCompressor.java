@@ -0,0 +1,184 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Test;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestResponseCompressor {
+
+    private static byte[] sampleJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 500; i++) {
+            if (i > 0)
+                json.append(" , ");
+            json.append("{ \"id\" : \"").append(16000 + i).append(".0\" , \"commonName\" : \"Begonia\" , \"gardenLocation\" : \"10.0\"}");
+        }
+        return json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testNegotiate() {
+        assertEquals("gzip", ResponseCompressor.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", ResponseCompressor.negotiate("deflate"));
+        assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", ResponseCompressor.negotiate("*"));
+        assertNull(ResponseCompressor.negotiate("gzip;q=0, deflate;q=0"));
+        assertNull(ResponseCompressor.negotiate("identity"));
+        assertNull(ResponseCompressor.negotiate(null));
+
+        assertTrue(ResponseCompressor.accepts("GZIP", "gzip"));
+        assertFalse(ResponseCompressor.accepts("*, gzip;q=0", "gzip"));
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        ResponseCompressor compressor = new ResponseCompressor(1024, 6, 2);
+        byte[] body = sampleJson();
+        byte[] gzipped = compressor.encode(body, ResponseCompressor.GZIP);
+
+        assertTrue("JSON should compress well", gzipped.length * 5 < body.length);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(gzipped))));
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException {
+        ResponseCompressor compressor = new ResponseCompressor(1024, 6, 2);
+        byte[] body = sampleJson();
+        byte[] deflated = compressor.encode(body, ResponseCompressor.DEFLATE);
+
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(deflated))));
+        assertEquals(body.length, compressor.getBytesIn());
+        assertEquals(deflated.length, compressor.getBytesOut());
+    }
+
+    @Test
+    public void testDeflatersAreReused() throws Exception {
+        ResponseCompressor compressor = new ResponseCompressor(1024, 6, 4);
+        byte[] body = sampleJson();
+        for (int i = 0; i < 100; i++) {
+            compressor.encode(body, ResponseCompressor.GZIP);
+        }
+        assertEquals("one Deflater should serve every sequential response", 1, compressor.getDeflatersCreated());
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Callable<byte[]>> tasks = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            tasks.add(() -> compressor.encode(body, ResponseCompressor.GZIP));
+        }
+        for (Future<byte[]> result : pool.invokeAll(tasks)) {
+            assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(result.get()))));
+        }
+        pool.shutdown();
+        assertTrue("Deflaters should be pooled rather than made per response", compressor.getDeflatersCreated() < 50);
+        assertEquals(500, compressor.getResponsesCompressed());
+    }
+
+    /*
+    An HttpServletResponse that keeps its headers and body, the only parts open() uses
+     */
+    private static HttpServletResponse fakeResponse(Map<String, String> headers, ByteArrayOutputStream body) {
+        ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setHeader":
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        case "getOutputStream":
+                            return stream;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void testStreamedPlantListingIsGzipped() throws IOException {
+        MongoDatabase testDB = new MongoClient().getDatabase("data-for-testing-only");
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        PlantController plantController = new PlantController(testDB);
+        RequestContext context = RequestContext.forUploadId(testDB, "first uploadId");
+
+        StringWriter plain = new StringWriter();
+        plantController.writePlants(new HashMap<>(), context, plain);
+
+        ResponseCompressor compressor = new ResponseCompressor(1024, 6, 2);
+        Map<String, String> headers = new HashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        OutputStream out = compressor.open("gzip, deflate", fakeResponse(headers, body));
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        plantController.writePlants(new HashMap<>(), context, writer);
+        writer.close();
+
+        assertEquals("gzip", headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", headers.get("Vary"));
+        byte[] listing = plain.toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(listing, readAll(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()))));
+        assertEquals(listing.length, compressor.getBytesIn());
+        assertEquals(body.size(), compressor.getBytesOut());
+
+        headers.clear();
+        body.reset();
+        out = compressor.open("identity", fakeResponse(headers, body));
+        out.write(listing);
+        out.close();
+        assertNull(headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", headers.get("Vary"));
+        assertArrayEquals(listing, body.toByteArray());
+    }
+}
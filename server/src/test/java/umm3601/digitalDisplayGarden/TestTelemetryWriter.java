@@ -0,0 +1,102 @@
+package umm3601.digitalDisplayGarden;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.inc;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTelemetryWriter {
+
+    private final static String databaseName = "data-for-testing-only";
+
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+    }
+
+    private int pageViews(String id) {
+        Document plant = testDB.getCollection("plants")
+                .find(new Document("id", id).append("uploadId", "first uploadId")).first();
+        return ((Document) plant.get("metadata")).getInteger("pageViews");
+    }
+
+    @Test
+    public void testUpdatesAreBatched() throws InterruptedException {
+        TelemetryWriter writer = new TelemetryWriter(10000, 100, 50);
+        PlantController plantController = new PlantController(testDB);
+        plantController.setTelemetryWriter(writer);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(plantController.incrementMetadata("16001.0", "pageViews", "first uploadId"));
+        }
+        assertTrue("Writer did not flush in time", writer.awaitFlushed(10 * 1000));
+
+        assertEquals(1000, writer.getWritesFlushed());
+        assertEquals(0, writer.getWritesFailed());
+        assertTrue("1000 updates took " + writer.getBatchesFlushed() + " batches", writer.getBatchesFlushed() <= 100);
+        assertEquals(1000, pageViews("16001.0"));
+        writer.shutdown(1000);
+    }
+
+    @Test
+    public void testShutdownWritesQueuedUpdates() {
+        //A long flush interval so nothing is written until shutdown
+        TelemetryWriter writer = new TelemetryWriter(100, 100, 60 * 1000);
+        MongoCollection<Document> plants = testDB.getCollection("plants");
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.enqueue(plants, eq("_id", new ObjectId("58d1c36efb0cac4e15afd202")), inc("metadata.pageViews", 1)));
+        }
+        writer.shutdown(70 * 1000);
+
+        assertEquals(0, writer.queued());
+        assertEquals(10, pageViews("16001.0"));
+        assertFalse("Writer accepted an update after shutdown",
+                writer.enqueue(plants, eq("id", "16001.0"), inc("metadata.pageViews", 1)));
+    }
+
+    @Test
+    public void testDeletingAnUploadWritesItsQueuedTelemetryFirst() throws InterruptedException {
+        TelemetryWriter writer = new TelemetryWriter(100, 100, 500);
+        PlantController plantController = new PlantController(testDB);
+        plantController.setTelemetryWriter(writer);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(plantController.addVisit("16040.0", "7.0", "second uploadId"));
+        }
+        plantController.deleteUploadID("second uploadId");
+        assertTrue("Writer did not flush in time", writer.awaitFlushed(10 * 1000));
+
+        assertEquals("queued visits recreated plant events of the deleted upload",
+                0, testDB.getCollection("plantEvents").count(eq("uploadId", "second uploadId")));
+        assertEquals("queued visits recreated visit rollups of the deleted upload",
+                0, testDB.getCollection("visitRollups").count(eq("uploadId", "second uploadId")));
+        writer.shutdown(1000);
+    }
+
+    @Test
+    public void testFullQueueFallsBackToSynchronousWrites() {
+        TelemetryWriter writer = new TelemetryWriter(1, 100, 60 * 1000);
+        writer.shutdown(1000);
+        PlantController plantController = new PlantController(testDB);
+        plantController.setTelemetryWriter(writer);
+
+        assertTrue(plantController.incrementMetadata("16001.0", "pageViews", "first uploadId"));
+        assertEquals(1, pageViews("16001.0"));
+    }
+}
@@ -0,0 +1,144 @@
+package umm3601.digitalDisplayGarden;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTrendingPlants {
+
+    private final static String databaseName = "data-for-testing-only";
+
+    private final static long HOUR = 60 * 60 * 1000L;
+
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+    }
+
+    @Test
+    public void testRecentEventsOutweighOldOnes() {
+        TrendingPlants trending = new TrendingPlants(testDB, 24 * HOUR, 10);
+        long start = 1491000000000L;
+        //Ten visits to the first plant, then three to the second four days later
+        for (int i = 0; i < 10; i++) {
+            trending.record("first uploadId", "16001.0", "10.0", TrendingPlants.VISIT_WEIGHT, start + i);
+        }
+        for (int i = 0; i < 3; i++) {
+            trending.record("first uploadId", "16008.0", "10.0", TrendingPlants.VISIT_WEIGHT, start + 96 * HOUR + i);
+        }
+
+        List<TrendingPlants.Trending> top = trending.getTop("first uploadId", 5, start + 96 * HOUR);
+        assertEquals(2, top.size());
+        assertEquals("16008.0", top.get(0).id);
+        assertEquals(3, top.get(0).score, 1e-6);
+        //Four half-lives later the ten visits count as 10/16
+        assertEquals(10 / 16.0, top.get(1).score, 1e-6);
+
+        //A day later everything has halved
+        top = trending.getTop("first uploadId", 5, start + 120 * HOUR);
+        assertEquals(1.5, top.get(0).score, 1e-6);
+        assertTrue(trending.getTop("second uploadId", 5, start).isEmpty());
+    }
+
+    @Test
+    public void testTopIsExactOverManyHalfLives() {
+        int capacity = 8;
+        long halfLife = HOUR;
+        TrendingPlants trending = new TrendingPlants(testDB, halfLife, capacity);
+        Map<String, Double> expected = new HashMap<>();
+        Random random = new Random(42);
+        double[] weights = {TrendingPlants.VISIT_WEIGHT, TrendingPlants.LIKE_WEIGHT,
+                TrendingPlants.DISLIKE_WEIGHT, TrendingPlants.COMMENT_WEIGHT};
+
+        //Two hundred half-lives, so the landmark has to move several times
+        long time = 0;
+        for (int i = 0; i < 20000; i++) {
+            time += random.nextInt((int) (halfLife / 50));
+            String id = Integer.toString(random.nextInt(40));
+            double weight = weights[random.nextInt(weights.length)];
+            //Scores relative to time 0, so an event's weight doubles every half-life
+            expected.merge(id, weight * Math.pow(2, (double) time / halfLife), Double::sum);
+            trending.record("first uploadId", id, "1S", weight, time);
+        }
+
+        List<Map.Entry<String, Double>> sorted = new ArrayList<>(expected.entrySet());
+        Collections.sort(sorted, (a, b) -> Double.compare(b.getValue(), a.getValue()));
+        List<TrendingPlants.Trending> top = trending.getTop("first uploadId", capacity, time);
+        assertEquals(capacity, top.size());
+        double now = Math.pow(2, (double) time / halfLife);
+        for (int i = 0; i < capacity; i++) {
+            assertEquals(sorted.get(i).getKey(), top.get(i).id);
+            assertEquals(1, top.get(i).score / (sorted.get(i).getValue() / now), 1e-6);
+        }
+    }
+
+    @Test
+    public void testSnapshotIsRestored() {
+        TrendingPlants trending = new TrendingPlants(testDB, 24 * HOUR, 10);
+        long now = System.currentTimeMillis();
+        trending.record("first uploadId", "16001.0", "10.0", TrendingPlants.COMMENT_WEIGHT, now);
+        trending.record("first uploadId", "16008.0", "10.0", TrendingPlants.LIKE_WEIGHT, now);
+        trending.record("second uploadId", "16001.0", "10.0", TrendingPlants.VISIT_WEIGHT, now);
+        assertEquals(2, trending.snapshot());
+        //Nothing changed since
+        assertEquals(0, trending.snapshot());
+
+        TrendingPlants restored = new TrendingPlants(testDB, 24 * HOUR, 10);
+        List<TrendingPlants.Trending> top = restored.getTop("first uploadId", 10, now);
+        assertEquals(2, top.size());
+        assertEquals("16001.0", top.get(0).id);
+        assertEquals(TrendingPlants.COMMENT_WEIGHT, top.get(0).score, 1e-6);
+        assertEquals(TrendingPlants.LIKE_WEIGHT, top.get(1).score, 1e-6);
+
+        restored.renameUpload("second uploadId", "renamed uploadId");
+        restored.deleteUpload("first uploadId");
+        restored.snapshot();
+        TrendingPlants again = new TrendingPlants(testDB, 24 * HOUR, 10);
+        assertTrue(again.getTop("first uploadId", 10, now).isEmpty());
+        assertTrue(again.getTop("second uploadId", 10, now).isEmpty());
+        assertEquals("16001.0", again.getTop("renamed uploadId", 10, now).get(0).id);
+    }
+
+    @Test
+    public void testPlantControllerRecordsFeedback() {
+        PlantController plantController = new PlantController(testDB);
+        plantController.addVisit("16001.0", "10.0", "first uploadId");
+        plantController.addFlowerRating("16008.0", "10.0", true, "first uploadId");
+        plantController.storePlantComment("{ plantId: \"16008.0\", gardenLocation: \"10.0\", comment: \"Nice\" }", "first uploadId");
+        plantController.addFlowerRating("no such plant", "10.0", true, "first uploadId");
+        plantController.storePlantComment("{ plantId: \"16040.0\", gardenLocation: \"7.0\", comment: \"Nice\" }", "second uploadId");
+
+        JsonArray top = new JsonParser().parse(TrendingPlants.of(testDB).getTopJSON("first uploadId", 20)).getAsJsonArray();
+        assertEquals(2, top.size());
+        JsonObject first = top.get(0).getAsJsonObject();
+        assertEquals("16008.0", first.get("id").getAsString());
+        assertEquals("10.0", first.get("gardenLocation").getAsString());
+        assertTrue(first.has("commonName"));
+        assertTrue(first.has("cultivar"));
+        assertEquals(TrendingPlants.LIKE_WEIGHT + TrendingPlants.COMMENT_WEIGHT, first.get("score").getAsDouble(), 0.01);
+        assertEquals("16001.0", top.get(1).getAsJsonObject().get("id").getAsString());
+
+        assertEquals("16040.0", TrendingPlants.of(testDB).getTop("second uploadId", 1, System.currentTimeMillis()).get(0).id);
+        plantController.deleteUploadID("second uploadId");
+        assertEquals("[]", TrendingPlants.of(testDB).getTopJSON("second uploadId", 20));
+    }
+}
@@ -0,0 +1,155 @@
+package umm3601.gardenCharts;
+
+import com.google.gson.JsonArray;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.ChartRange;
+import umm3601.digitalDisplayGarden.GardenCharts;
+import umm3601.digitalDisplayGarden.PlantEventStore;
+import umm3601.digitalDisplayGarden.VisitRollups;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class TestChartRange {
+    private final static String databaseName = "data-for-testing-only";
+    //No mock visits, so that every visit is one of the test's
+    private final static String uploadId = "chartRange uploadId";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private GardenCharts gardenCharts;
+    private List<Date> visits;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        gardenCharts = new GardenCharts(testDB);
+
+        //Three visits a day at 9:15, 13:40 and 13:50 from 2017-04-01 through 2017-04-20, except on the 5th
+        PlantEventStore eventStore = new PlantEventStore(testDB);
+        visits = new ArrayList<>();
+        for (LocalDate day = LocalDate.of(2017, 4, 1); !day.isAfter(LocalDate.of(2017, 4, 20)); day = day.plusDays(1)) {
+            if (day.getDayOfMonth() == 5)
+                continue;
+            for (LocalDateTime time : new LocalDateTime[]{day.atTime(9, 15), day.atTime(13, 40), day.atTime(13, 50)}) {
+                Date date = Date.from(time.atZone(ZoneId.systemDefault()).toInstant());
+                visits.add(date);
+                eventStore.record(PlantEventStore.visitWrite(uploadId, "16037.0", "2S", date));
+            }
+        }
+        VisitRollups.backfill(testDB, false);
+    }
+
+    private List<Date> visitsBetween(LocalDate from, LocalDate to) {
+        List<Date> between = new ArrayList<>();
+        for (Date visit : visits) {
+            LocalDate day = LocalDateTime.ofInstant(visit.toInstant(), ZoneId.systemDefault()).toLocalDate();
+            if (!day.isBefore(from) && !day.isAfter(to))
+                between.add(visit);
+        }
+        return between;
+    }
+
+    private static void assertRow(JsonArray chart, int row, String time, int views) {
+        assertEquals(time, chart.get(row).getAsJsonArray().get(0).getAsString());
+        assertEquals(views, chart.get(row).getAsJsonArray().get(1).getAsInt());
+    }
+
+    @Test
+    public void testParse() {
+        ChartRange range = ChartRange.parse("2017-04-01", "2017-04-07", "week");
+        assertEquals(LocalDate.of(2017, 4, 1), range.getFrom());
+        assertEquals("2017-04-07", range.getToDay());
+        assertEquals(ChartRange.WEEK, range.getGranularity());
+        assertTrue(ChartRange.parse(null, "", null).isAllTime());
+        assertEquals(ChartRange.DAY, ChartRange.parse(null, null, null).getGranularity());
+
+        for (String[] invalid : new String[][]{{"April 1st", null, null}, {"2017-04-07", "2017-04-01", null}, {null, null, "month"}}) {
+            try {
+                ChartRange.parse(invalid[0], invalid[1], invalid[2]);
+                fail("should not parse " + String.join(", ", invalid[0], invalid[1], invalid[2]));
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().length() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testViewsPerHourOfARange() {
+        ChartRange range = ChartRange.parse("2017-04-03", "2017-04-09", null);
+        int[][] fromDates = gardenCharts.averageViewsPerDayOfWeek(
+                gardenCharts.countVisits(visitsBetween(LocalDate.of(2017, 4, 3), LocalDate.of(2017, 4, 9))));
+        JsonArray combo = new testUtils().stringToJSONArray(gardenCharts.getComboChart(uploadId, range));
+        for (int hour = 0; hour < 24; hour++) {
+            for (int dayOfWeek = 0; dayOfWeek < 7; dayOfWeek++) {
+                assertEquals(fromDates[hour][dayOfWeek], combo.get(hour + 1).getAsJsonArray().get(dayOfWeek + 1).getAsInt());
+            }
+        }
+        //13:00 has two visits a day, every day of the week once
+        assertEquals(2, combo.get(14).getAsJsonArray().get(1).getAsInt());
+
+        //All time is the same as without a range
+        assertEquals(gardenCharts.getPlantViewsPerHour(uploadId), gardenCharts.getPlantViewsPerHour(uploadId, ChartRange.ALL_TIME));
+    }
+
+    @Test
+    public void testVisitsPerDay() {
+        JsonArray chart = new testUtils().stringToJSONArray(
+                gardenCharts.getVisitsOverTime(uploadId, ChartRange.parse("2017-03-31", "2017-04-06", "day")));
+        assertEquals(1 + 7, chart.size());
+        assertEquals("Time", chart.get(0).getAsJsonArray().get(0).getAsString());
+        assertEquals("Views", chart.get(0).getAsJsonArray().get(1).getAsString());
+        assertRow(chart, 1, "2017-03-31", 0);
+        assertRow(chart, 2, "2017-04-01", 3);
+        assertRow(chart, 6, "2017-04-05", 0);
+        assertRow(chart, 7, "2017-04-06", 3);
+
+        //Without limits, from the first visit to the last
+        chart = new testUtils().stringToJSONArray(gardenCharts.getVisitsOverTime(uploadId, ChartRange.ALL_TIME));
+        assertEquals(1 + 20, chart.size());
+        assertRow(chart, 1, "2017-04-01", 3);
+        assertRow(chart, 20, "2017-04-20", 3);
+    }
+
+    @Test
+    public void testVisitsPerWeek() {
+        JsonArray chart = new testUtils().stringToJSONArray(
+                gardenCharts.getVisitsOverTime(uploadId, ChartRange.parse("2017-04-01", "2017-04-20", "week")));
+        //2017-04-01 is a Saturday, in the week of Sunday 2017-03-26
+        assertEquals(1 + 4, chart.size());
+        assertRow(chart, 1, "2017-03-26", 3);
+        assertRow(chart, 2, "2017-04-02", 6 * 3);
+        assertRow(chart, 3, "2017-04-09", 7 * 3);
+        assertRow(chart, 4, "2017-04-16", 5 * 3);
+    }
+
+    @Test
+    public void testVisitsPerHour() {
+        JsonArray chart = new testUtils().stringToJSONArray(
+                gardenCharts.getVisitsOverTime(uploadId, ChartRange.parse("2017-04-02", "2017-04-02", "hour")));
+        assertEquals(1 + 24, chart.size());
+        assertRow(chart, 1, "2017-04-02 00:00", 0);
+        assertRow(chart, 10, "2017-04-02 09:00", 1);
+        assertRow(chart, 14, "2017-04-02 13:00", 2);
+        assertRow(chart, 24, "2017-04-02 23:00", 0);
+
+        try {
+            gardenCharts.getVisitsOverTime(uploadId, ChartRange.parse("2015-01-01", "2017-04-02", "hour"));
+            fail("two years of hours is too many points");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains(Integer.toString(GardenCharts.MAX_SERIES_POINTS)));
+        }
+    }
+}
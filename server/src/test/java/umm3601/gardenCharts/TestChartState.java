@@ -0,0 +1,126 @@
+package umm3601.gardenCharts;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.ChartState;
+import umm3601.digitalDisplayGarden.GardenCharts;
+import umm3601.digitalDisplayGarden.PlantEventStore;
+import umm3601.digitalDisplayGarden.VisitRollups;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestChartState {
+    private final static String databaseName = "data-for-testing-only";
+    //No mock visits, so that every visit is one of the test's
+    private final static String uploadId = "chartState uploadId";
+    private final static long HOUR = 60 * 60 * 1000;
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private PlantEventStore eventStore;
+    private GardenCharts gardenCharts;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        eventStore = new PlantEventStore(testDB);
+        gardenCharts = new GardenCharts(testDB);
+    }
+
+    private void visit(long time) {
+        eventStore.record(PlantEventStore.visitWrite(uploadId, "16037.0", "2S", new Date(time)));
+        new VisitRollups(testDB).record(VisitRollups.visitWrite(uploadId, new Date(time)));
+    }
+
+    private int[][][] recount() {
+        return gardenCharts.countVisits(gardenCharts.getDatesFromDB(uploadId));
+    }
+
+    @Test
+    public void testRefreshesOnlyReadNewVisits() {
+        //Visits every 3 hours and 11 minutes for about a month
+        long start = 1490000000000L;
+        long now = start;
+        for (int i = 0; i < 240; i++) {
+            now = start + i * (3 * 60 + 11) * 60 * 1000L;
+            visit(now);
+        }
+        now += 2 * HOUR;
+
+        ChartState chartState = new ChartState(testDB);
+        assertTrue(Arrays.deepEquals(recount(), chartState.getVisitCounts(uploadId, now)));
+        long firstRead = chartState.getBucketsRead();
+        assertEquals("the first refresh reads every bucket, one per visit here", 240, firstRead);
+
+        //Nothing new, nothing read
+        assertTrue(Arrays.deepEquals(recount(), chartState.getVisitCounts(uploadId, now)));
+        assertEquals(firstRead, chartState.getBucketsRead());
+
+        //A visit in the current hour shows up right away, and is read again until its hour has settled
+        visit(now);
+        assertTrue(Arrays.deepEquals(recount(), chartState.getVisitCounts(uploadId, now)));
+        assertTrue(Arrays.deepEquals(recount(), chartState.getVisitCounts(uploadId, now)));
+        assertEquals(firstRead + 2, chartState.getBucketsRead());
+
+        now += HOUR + ChartState.DEFAULT_SETTLE_MILLIS;
+        assertTrue(Arrays.deepEquals(recount(), chartState.getVisitCounts(uploadId, now)));
+        assertTrue(Arrays.deepEquals(recount(), chartState.getVisitCounts(uploadId, now)));
+        assertEquals(firstRead + 3, chartState.getBucketsRead());
+    }
+
+    @Test
+    public void testStateSurvivesARestart() {
+        long now = 1490000000000L;
+        for (int i = 0; i < 50; i++) {
+            visit(now - i * 37 * 60 * 1000L);
+        }
+        now += 2 * HOUR;
+        int[][][] counts = new ChartState(testDB).getVisitCounts(uploadId, now);
+
+        ChartState restarted = new ChartState(testDB);
+        assertTrue(Arrays.deepEquals(counts, restarted.getVisitCounts(uploadId, now)));
+        assertEquals(0, restarted.getBucketsRead());
+    }
+
+    @Test
+    public void testStateStartsOverWhenTheUploadIsDeleted() {
+        long now = 1490000000000L;
+        visit(now);
+        ChartState chartState = new ChartState(testDB);
+        chartState.getVisitCounts(uploadId, now + 2 * HOUR);
+
+        //Deleted by something else, as ExcelParser does
+        new ChartState(testDB).deleteUpload(uploadId);
+        eventStore.deleteUpload(uploadId);
+        assertTrue(Arrays.deepEquals(new int[24][7][12], chartState.getVisitCounts(uploadId, now + 2 * HOUR)));
+    }
+
+    @Test
+    public void testMockVisitsAreCounted() {
+        String mockUploadId = "googleCharts uploadId";
+        int[][][] expected = gardenCharts.countVisits(gardenCharts.getDatesFromDB(mockUploadId));
+        assertTrue(Arrays.deepEquals(expected, new ChartState(testDB).getVisitCounts(mockUploadId)));
+    }
+
+    @Test
+    public void testFirstRefreshMatchesTheRollups() {
+        //Several visits in most hours, so buckets hold more than one visit
+        long now = 1490000000000L;
+        for (int i = 0; i < 300; i++) {
+            visit(now - i * 13 * 60 * 1000L);
+        }
+        now += 2 * HOUR;
+
+        ChartState chartState = new ChartState(testDB);
+        int[][][] counts = chartState.getVisitCounts(uploadId, now);
+        assertTrue(Arrays.deepEquals(new VisitRollups(testDB).getVisitCounts(uploadId), counts));
+        assertTrue("buckets are counted without reading each visit", chartState.getBucketsRead() < 300);
+    }
+}
@@ -0,0 +1,67 @@
+package umm3601.gardenCharts;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.BedController;
+import umm3601.digitalDisplayGarden.GardenCharts;
+import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class TestDashboard {
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private PlantController plantController;
+    private BedController bedController;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+        bedController = new BedController(testDB);
+    }
+
+    private void assertSameAsEachChart(String uploadId) throws IOException {
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        JsonParser parser = new JsonParser();
+        JsonObject dashboard = parser.parse(gardenCharts.getDashboard(uploadId)).getAsJsonObject();
+
+        assertEquals(8, dashboard.size());
+        assertEquals(parser.parse(gardenCharts.getPlantViewsPerHour(uploadId)), dashboard.get("viewsPerHour"));
+        assertEquals(parser.parse(gardenCharts.getComboChart(uploadId)), dashboard.get("comboChart"));
+        assertEquals(parser.parse(gardenCharts.getBedMetadataForMap(plantController, uploadId)), dashboard.get("plantMetadataMap"));
+        assertEquals(parser.parse(gardenCharts.getBedMetadataForBubbleMap(plantController, bedController, uploadId)),
+                dashboard.get("plantMetadataBubbleMap"));
+        assertEquals(parser.parse(gardenCharts.getQRScanHeatmap(uploadId)), dashboard.get("qrScanHeatmap"));
+        assertEquals(parser.parse(gardenCharts.top20Charts(plantController, uploadId, "likes")), dashboard.get("top20Likes"));
+        assertEquals(parser.parse(gardenCharts.top20Charts(plantController, uploadId, "dislikes")), dashboard.get("top20disLikes"));
+        assertEquals(parser.parse(gardenCharts.top20Charts(plantController, uploadId, "comments")), dashboard.get("top20Comments"));
+    }
+
+    @Test
+    public void TestDashboardHasEveryChart() throws IOException {
+        assertSameAsEachChart("googleCharts uploadId");
+        assertSameAsEachChart("first uploadId");
+    }
+
+    @Test
+    public void TestDashboardAfterFeedback() throws IOException {
+        plantController.addFlowerRating("16001.0", "10.0", true, "first uploadId");
+        plantController.addFlowerRating("16008.0", "10.0", false, "first uploadId");
+        bedController.addBedVisit("10.0", "first uploadId", "a visitor");
+        assertSameAsEachChart("first uploadId");
+    }
+
+    @Test
+    public void TestDashboardOfAnEmptyUpload() throws IOException {
+        assertSameAsEachChart("no such uploadId");
+    }
+}
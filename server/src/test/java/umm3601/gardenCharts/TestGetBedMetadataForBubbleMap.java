@@ -3,6 +3,7 @@ package umm3601.gardenCharts;
 import com.google.gson.JsonArray;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
 import org.junit.Before;
 import org.junit.Test;
 import umm3601.digitalDisplayGarden.BedController;
@@ -52,12 +53,26 @@ public class TestGetBedMetadataForBubbleMap {
         String arraySub0 = array.get(0).toString();
         String arraySub1 = array.get(1).toString();
         String arraySub3 = array3.get(0).toString();
-        String arraySub01 = "{\"gardenLocation\":\"2S\",\"likes\":2,\"pageViews\":10}";
-        String arraySub02 = "{\"gardenLocation\":\"5.0\",\"likes\":1,\"pageViews\":10}";
-        String arraySub03 = "{\"gardenLocation\":\"20\",\"likes\":0,\"pageViews\":10}";
+        String arraySub01 = "{\"gardenLocation\":\"2S\",\"likes\":2,\"pageViews\":10,\"uniqueVisitors\":0}";
+        String arraySub02 = "{\"gardenLocation\":\"5.0\",\"likes\":1,\"pageViews\":10,\"uniqueVisitors\":0}";
+        String arraySub03 = "{\"gardenLocation\":\"20\",\"likes\":0,\"pageViews\":10,\"uniqueVisitors\":0}";
 
         assertEquals("Should have the same likes, pageviews and bed 1", arraySub01, arraySub0);
         assertEquals("Should have the same likes, pageviews and bed 2", arraySub02, arraySub1);
         assertEquals("Should have the same likes, pageviews and bed 3", arraySub03, arraySub3);
     }
+
+    @Test
+    public void TestPageViewsComeFromTheSameUpload() throws IOException{
+        //Another upload with a bed in the same gardenLocation
+        testDB.getCollection("beds").insertOne(new Document("gardenLocation", "5.0").append("uploadId", "other uploadId")
+                .append("metadata", new Document("pageViews", 99).append("qrScans", 0)));
+        bedController.addBedVisit("5.0", "googleCharts uploadId", "visitor A");
+
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        String string = gardenCharts.getBedMetadataForBubbleMap(this.plantController, this.bedController, "googleCharts uploadId");
+
+        assertEquals("[{\"gardenLocation\":\"2S\",\"likes\":2,\"pageViews\":10,\"uniqueVisitors\":0}," +
+                "{\"gardenLocation\":\"5.0\",\"likes\":1,\"pageViews\":11,\"uniqueVisitors\":1}]", string);
+    }
 }
@@ -0,0 +1,111 @@
+package umm3601.gardenCharts;
+
+import com.google.gson.JsonArray;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.BedController;
+import umm3601.digitalDisplayGarden.GardenCharts;
+import umm3601.digitalDisplayGarden.QRScanCounters;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+import static junit.framework.TestCase.assertEquals;
+
+public class TestQRScanHeatmap {
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private GardenCharts gardenCharts;
+    private BedController bedController;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        gardenCharts = new GardenCharts(testDB);
+        bedController = new BedController(testDB);
+    }
+
+    private static Date at(int day, int hour, int minute) {
+        return Date.from(LocalDateTime.of(2017, 4, day, hour, minute).atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    @Test
+    public void testScansAreCountedByBedAndHour() {
+        int hour = LocalDateTime.now().getHour();
+        bedController.addBedQRVisit("7.0", "second uploadId");
+        bedController.addBedQRVisit("7.0", "second uploadId");
+        bedController.addBedQRVisit("12", "second uploadId");
+        bedController.addBedVisit("12", "second uploadId");
+
+        JsonArray heatmap = new testUtils().stringToJSONArray(gardenCharts.getQRScanHeatmap("second uploadId"));
+        assertEquals(1 + 2, heatmap.size());
+        assertEquals("Bed", heatmap.get(0).getAsJsonArray().get(0).getAsString());
+        assertEquals("23", heatmap.get(0).getAsJsonArray().get(24).getAsString());
+        //Sorted by the BedComparator
+        assertEquals("7.0", heatmap.get(1).getAsJsonArray().get(0).getAsString());
+        assertEquals("12", heatmap.get(2).getAsJsonArray().get(0).getAsString());
+
+        int[] scansOf7 = new int[24];
+        for (int h = 0; h < 24; h++) {
+            scansOf7[h] = heatmap.get(1).getAsJsonArray().get(h + 1).getAsInt();
+        }
+        //The hour may have just changed between the scans and now
+        assertEquals(2, scansOf7[hour] + scansOf7[(hour + 1) % 24]);
+        int scansOf12 = 0;
+        for (int h = 0; h < 24; h++) {
+            scansOf12 += heatmap.get(2).getAsJsonArray().get(h + 1).getAsInt();
+        }
+        assertEquals(1, scansOf12);
+
+        assertEquals("[[\"Bed\",\"0\",\"1\",\"2\",\"3\",\"4\",\"5\",\"6\",\"7\",\"8\",\"9\",\"10\",\"11\",\"12\",\"13\",\"14\","
+                        + "\"15\",\"16\",\"17\",\"18\",\"19\",\"20\",\"21\",\"22\",\"23\"]]",
+                gardenCharts.getQRScanHeatmap("no such uploadId"));
+    }
+
+    @Test
+    public void testBackfillFromQRVisits() {
+        MongoCollection<Document> beds = testDB.getCollection("beds");
+        List<Document> qrVisits = new ArrayList<>();
+        qrVisits.add(new Document("scan", at(1, 9, 15)));
+        qrVisits.add(new Document("scan", at(2, 9, 59)));
+        qrVisits.add(new Document("scan", at(2, 13, 0)));
+        //After the switch to daylight saving time
+        qrVisits.add(new Document("scan", at(12, 0, 30)));
+        beds.updateOne(and(eq("gardenLocation", "10.0"), eq("uploadId", "first uploadId")), set("metadata.qrVisits", qrVisits));
+        beds.updateMany(eq("uploadId", "first uploadId"), unset(QRScanCounters.QR_SCANS_BY_HOUR));
+
+        assertEquals(1, QRScanCounters.backfill(testDB, true));
+        assertEquals(0, QRScanCounters.backfill(testDB, true));
+
+        JsonArray heatmap = new testUtils().stringToJSONArray(gardenCharts.getQRScanHeatmap("first uploadId"));
+        JsonArray bed10 = heatmap.get(1).getAsJsonArray();
+        assertEquals("10.0", bed10.get(0).getAsString());
+        assertEquals(1, bed10.get(0 + 1).getAsInt());
+        assertEquals(2, bed10.get(9 + 1).getAsInt());
+        assertEquals(1, bed10.get(13 + 1).getAsInt());
+        assertEquals(0, bed10.get(14 + 1).getAsInt());
+
+        //New scans are counted on top of the backfilled ones, and a full backfill agrees with them
+        bedController.addBedQRVisit("10.0", "first uploadId");
+        int[] counted = QRScanCounters.read(beds.find(and(eq("gardenLocation", "10.0"), eq("uploadId", "first uploadId"))).first());
+        QRScanCounters.backfill(testDB, false);
+        int[] backfilled = QRScanCounters.read(beds.find(and(eq("gardenLocation", "10.0"), eq("uploadId", "first uploadId"))).first());
+        for (int hour = 0; hour < 24; hour++) {
+            assertEquals(backfilled[hour], counted[hour]);
+        }
+    }
+}
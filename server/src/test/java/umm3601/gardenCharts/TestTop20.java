@@ -79,4 +79,58 @@ public class TestTop20 {
         assertEquals("there should be zero likes and no cultivar indicated", arraySub05, arraySub5);
     }
 
+    @Test
+    public void TestTopCultivarsComments() throws IOException{
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        plantController.storePlantComment("{ plantId: \"16053.0\", gardenLocation: \"5.0\", comment : \"one\" }", "googleCharts uploadId");
+        plantController.storePlantComment("{ plantId: \"16053.0\", gardenLocation: \"5.0\", comment : \"two\" }", "googleCharts uploadId");
+        plantController.storePlantComment("{ plantId: \"16037.0\", gardenLocation: \"2S\", comment : \"three\" }", "googleCharts uploadId");
+
+        assertEquals("[{\"cultivarName\":\"Fireball\",\"likes\":2},{\"cultivarName\":\"Sun Kiss\",\"likes\":1}]",
+                gardenCharts.top20Charts(plantController, "googleCharts uploadId", "comments"));
+        assertEquals("only the top cultivar should be kept", "[{\"cultivarName\":\"Fireball\",\"likes\":2}]",
+                gardenCharts.topCultivarsChart("googleCharts uploadId", "comments", 1));
+    }
+
+    /*
+    Inserts plants with made up ratings, spread evenly over the cultivars
+     */
+    static List<Document> insertPlants(MongoDatabase testDB, String uploadId, int count, int cultivars) {
+        List<Document> plants = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Document metadata = new Document("pageViews", 0)
+                    .append("likeCount", i % 97).append("dislikeCount", i % 13).append("commentCount", 0);
+            plants.add(new Document("uploadId", uploadId).append("id", i + ".0")
+                    .append("cultivar", "Cultivar " + (i % cultivars)).append("gardenLocation", "1").append("metadata", metadata));
+        }
+        testDB.getCollection("plants").insertMany(plants);
+        return plants;
+    }
+
+    /*
+    Checks a top 20 likes chart against the one computed the slow way
+     */
+    static void assertTopLikes(List<Document> plants, String top) {
+        Map<String, Integer> likes = new HashMap<>();
+        for (Document plant : plants) {
+            likes.merge(plant.getString("cultivar"), ((Document) plant.get("metadata")).getInteger("likeCount"), Integer::sum);
+        }
+        List<Map.Entry<String, Integer>> expected = new ArrayList<>(likes.entrySet());
+        expected.sort(new GardenCharts.RatingsComparator());
+
+        JsonArray json = new testUtils().stringToJSONArray(top);
+        assertEquals(20, json.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(expected.get(i).getKey(), json.get(i).getAsJsonObject().get("cultivarName").getAsString());
+            assertEquals((int) expected.get(i).getValue(), json.get(i).getAsJsonObject().get("likes").getAsInt());
+        }
+    }
+
+    @Test
+    public void TestTopCultivarsOfManyPlants() throws IOException{
+        List<Document> plants = insertPlants(testDB, "many plants uploadId", 1000, 200);
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        assertTopLikes(plants, gardenCharts.top20Charts(plantController, "many plants uploadId", "likes"));
+    }
+
 }
@@ -0,0 +1,136 @@
+package umm3601.gardenCharts;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.GardenCharts;
+import umm3601.digitalDisplayGarden.VisitHistogram;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestVisitHistogram {
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    /*
+    How the views per hour chart used to partition the visit Dates, kept here to compare against
+     */
+    static int[][] partitionTheOldWay(GardenCharts gardenCharts, List<Date> dates) {
+        List<Date>[] byHour = new ArrayList[24];
+        for (Date date : dates) {
+            if (byHour[date.getHours()] == null)
+                byHour[date.getHours()] = new ArrayList<>();
+            byHour[date.getHours()].add(date);
+        }
+
+        int[][] viewsPerHourPerDayOfWeek = new int[24][7];
+        for (int hour = 0; hour < 24; hour++) {
+            if (byHour[hour] == null)
+                continue;
+            List<Date>[] byMonth = new ArrayList[12];
+            for (Date date : byHour[hour]) {
+                if (byMonth[date.getMonth()] == null)
+                    byMonth[date.getMonth()] = new ArrayList<>();
+                byMonth[date.getMonth()].add(date);
+            }
+            List<Date>[][] byDayAndMonth = new ArrayList[7][12];
+            for (int month = 0; month < 12; month++) {
+                if (byMonth[month] == null)
+                    continue;
+                for (Date date : byMonth[month]) {
+                    if (byDayAndMonth[date.getDay()][month] == null)
+                        byDayAndMonth[date.getDay()][month] = new ArrayList<>();
+                    byDayAndMonth[date.getDay()][month].add(date);
+                }
+            }
+            int[][] views = new int[7][12];
+            for (int day = 0; day < 7; day++) {
+                for (int month = 0; month < 12; month++) {
+                    if (byDayAndMonth[day][month] != null)
+                        views[day][month] = byDayAndMonth[day][month].size();
+                }
+            }
+            viewsPerHourPerDayOfWeek[hour] = gardenCharts.flaten_AverageByMonth(views);
+        }
+        return viewsPerHourPerDayOfWeek;
+    }
+
+    static List<Date> randomVisits(int count, long seed) {
+        Random random = new Random(seed);
+        //A few years around now, crossing plenty of daylight saving changes
+        long start = 1400000000000L;
+        long span = 5L * 365 * 24 * 60 * 60 * 1000;
+        List<Date> dates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            dates.add(new Date(start + (long) (random.nextDouble() * span)));
+        }
+        return dates;
+    }
+
+    @Test
+    public void testCountsMatchTheDateGetters() {
+        VisitHistogram histogram = new VisitHistogram();
+        int[][][] expected = new int[24][7][12];
+        for (Date date : randomVisits(20000, 19)) {
+            histogram.add(date);
+            expected[date.getHours()][date.getDay()][date.getMonth()]++;
+        }
+        assertTrue(Arrays.deepEquals(expected, histogram.getCounts()));
+    }
+
+    @Test
+    public void testCountsAcrossDaylightSavingInOtherZones() {
+        for (String zoneId : new String[]{"America/Chicago", "Australia/Lord_Howe", "Asia/Kolkata", "UTC"}) {
+            ZoneId zone = ZoneId.of(zoneId);
+            VisitHistogram histogram = new VisitHistogram(zone);
+            int[][][] expected = new int[24][7][12];
+            //Every 7 minutes for two years, in time order and then backwards
+            long start = 1483228800000L;
+            List<Long> visits = new ArrayList<>();
+            for (long t = start; t < start + 2L * 365 * 24 * 60 * 60 * 1000; t += 7 * 60 * 1000)
+                visits.add(t);
+            for (int i = visits.size() - 1; i >= 0; i -= 3)
+                visits.add(visits.get(i));
+            for (long t : visits) {
+                histogram.add(t);
+                ZonedDateTime time = Instant.ofEpochMilli(t).atZone(zone);
+                expected[time.getHour()][time.getDayOfWeek().getValue() % 7][time.getMonthValue() - 1]++;
+            }
+            assertTrue(zoneId, Arrays.deepEquals(expected, histogram.getCounts()));
+        }
+    }
+
+    @Test
+    public void testMonthOfEarlyAndLateDates() {
+        VisitHistogram histogram = new VisitHistogram(ZoneId.of("UTC"));
+        //1969-12-31 23:30, 2000-02-29 12:00 and 2100-03-01 00:00 UTC
+        histogram.add(-30 * 60 * 1000L);
+        histogram.add(951825600000L);
+        histogram.add(4107542400000L);
+        int[][][] counts = histogram.getCounts();
+        assertEquals(1, counts[23][3][11]);
+        assertEquals(1, counts[12][2][1]);
+        assertEquals(1, counts[0][1][2]);
+    }
+
+    @Test
+    public void testViewsPerHourMatchTheOldPartitions() throws IOException {
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        List<Date> dates = randomVisits(20000, 2017);
+        int[][] old = partitionTheOldWay(gardenCharts, dates);
+        int[][] counted = gardenCharts.averageViewsPerDayOfWeek(gardenCharts.countVisits(dates));
+        assertTrue(Arrays.deepEquals(old, counted));
+    }
+}
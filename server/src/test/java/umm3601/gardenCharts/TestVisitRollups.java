@@ -0,0 +1,74 @@
+package umm3601.gardenCharts;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.GardenCharts;
+import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.PlantEventStore;
+import umm3601.digitalDisplayGarden.VisitRollups;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestVisitRollups {
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private PlantController plantController;
+    private VisitRollups visitRollups;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+        visitRollups = new VisitRollups(testDB);
+    }
+
+    @Test
+    public void testVisitsAreCounted() {
+        Date now = new Date();
+        int[][][] before = visitRollups.getVisitCounts("first uploadId");
+        plantController.addVisit("16001.0", "10.0", "first uploadId");
+        plantController.addVisit("16008.0", "10.0", "first uploadId");
+        int[][][] after = visitRollups.getVisitCounts("first uploadId");
+
+        int hour = now.getHours(), dayOfWeek = now.getDay(), month = now.getMonth();
+        assertEquals(before[hour][dayOfWeek][month] + 2, after[hour][dayOfWeek][month]);
+    }
+
+    @Test
+    public void testRollupsMatchTheVisitDates() throws IOException {
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        PlantEventStore eventStore = new PlantEventStore(testDB);
+        //A week of visits every 5 hours and 7 minutes, spread over a few months
+        long start = 1490000000000L;
+        for (int i = 0; i < 500; i++) {
+            Date date = new Date(start + i * (5 * 60 + 7) * 60 * 1000L);
+            eventStore.record(PlantEventStore.visitWrite("googleCharts uploadId", "16037.0", "2S", date));
+        }
+        VisitRollups.backfill(testDB, false);
+
+        //What the charts used to compute from every visit Date
+        ArrayList<Date> dates = gardenCharts.getDatesFromDB("googleCharts uploadId");
+        int[][] fromDates = gardenCharts.averageViewsPerDayOfWeek(gardenCharts.countVisits(dates));
+        int[][] fromRollups = gardenCharts.averageViewsPerDayOfWeek(visitRollups.getVisitCounts("googleCharts uploadId"));
+        for (int hour = 0; hour < 24; hour++) {
+            for (int dayOfWeek = 0; dayOfWeek < 7; dayOfWeek++) {
+                assertEquals("hour " + hour + " day " + dayOfWeek, fromDates[hour][dayOfWeek], fromRollups[hour][dayOfWeek]);
+            }
+        }
+
+        //Backfilling again doesn't count anything twice
+        assertEquals(0, VisitRollups.backfill(testDB, true));
+        int[][] again = gardenCharts.averageViewsPerDayOfWeek(visitRollups.getVisitCounts("googleCharts uploadId"));
+        assertTrue(Arrays.deepEquals(fromRollups, again));
+    }
+}
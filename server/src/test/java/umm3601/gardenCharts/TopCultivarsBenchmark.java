@@ -0,0 +1,45 @@
+package umm3601.gardenCharts;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.GardenCharts;
+import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.plant.PopulateMockDatabase;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Not part of the unit tests, run it with gradle benchmark.
+ */
+public class TopCultivarsBenchmark {
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private PlantController plantController;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+    }
+
+    /**
+     * The top 20 of 10,000 plants spread over 2,000 cultivars.
+     */
+    @Test
+    public void topCultivarsOf10kPlants() throws IOException{
+        List<Document> plants = TestTop20.insertPlants(testDB, "benchmark uploadId", 10000, 2000);
+
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        long start = System.nanoTime();
+        String top = gardenCharts.top20Charts(plantController, "benchmark uploadId", "likes");
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("top 20 cultivars of 10000 plants | " + millis + " ms");
+
+        TestTop20.assertTopLikes(plants, top);
+    }
+}
@@ -0,0 +1,48 @@
+package umm3601.gardenCharts;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.GardenCharts;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Not part of the unit tests, run it with gradle benchmark.
+ */
+public class VisitHistogramBenchmark {
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    /**
+     * One million visits, counted by VisitHistogram and by the old ArrayList partitions.
+     */
+    @Test
+    public void viewsPerHourOf1MVisits() throws IOException {
+        GardenCharts gardenCharts = new GardenCharts(testDB);
+        List<Date> dates = TestVisitHistogram.randomVisits(1000000, 2017);
+
+        //Warm both up a little first
+        for (int i = 0; i < 3; i++) {
+            gardenCharts.averageViewsPerDayOfWeek(gardenCharts.countVisits(dates.subList(0, 100000)));
+            TestVisitHistogram.partitionTheOldWay(gardenCharts, dates.subList(0, 100000));
+        }
+
+        long start = System.nanoTime();
+        int[][] old = TestVisitHistogram.partitionTheOldWay(gardenCharts, dates);
+        long oldMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        int[][] counted = gardenCharts.averageViewsPerDayOfWeek(gardenCharts.countVisits(dates));
+        long countedMillis = (System.nanoTime() - start) / 1000000;
+
+        System.out.println("views per hour of 1000000 visits | partitions " + oldMillis + " ms | histogram " + countedMillis + " ms");
+        assertTrue(Arrays.deepEquals(old, counted));
+    }
+}
@@ -1,21 +1,19 @@
 package umm3601.plant;
 
 import com.mongodb.MongoClient;
-import com.mongodb.client.FindIterable;
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.PlantEventStore;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.List;
 
 public class FlowerRating {
@@ -35,13 +33,7 @@ public class FlowerRating {
     public void AddFlowerRatingReturnsTrueWithValidInput() throws IOException{
 
         assertTrue(plantController.addFlowerRating("16001.0", "10.0", true, "first uploadId"));
-        MongoCollection plants = testDB.getCollection("plants");
-
-        FindIterable doc = plants.find(new Document().append("_id", new ObjectId("58d1c36efb0cac4e15afd202")));
-        Iterator iterator = doc.iterator();
-        Document result = (Document) iterator.next();
-
-        List<Document> ratings = (List<Document>) ((Document) result.get("metadata")).get("ratings");
+        List<Document> ratings = new PlantEventStore(testDB).getEvents("first uploadId", "16001.0", "10.0", PlantEventStore.TYPE_RATING);
         assertEquals(1, ratings.size());
 
         Document rating = ratings.get(0);
@@ -64,6 +56,17 @@ public class FlowerRating {
         assertFalse(plantController.addFlowerRating("16001.0", "10.0", true, "anything"));
     }
 
+    @Test
+    public void AddFlowerRatingToMissingPlantRecordsNothing() throws IOException {
+
+        assertFalse(plantController.addFlowerRating("16001.0", "5.0", true, "first uploadId"));
+        assertEquals(0, testDB.getCollection("plantEvents").count(new Document("uploadId", "first uploadId")));
+
+        assertTrue(plantController.addFlowerRating("16001.0", "10.0", false, "first uploadId"));
+        assertEquals("{ \"likeCount\" : 0 , \"dislikeCount\" : 1 , \"commentCount\" : 0}",
+                plantController.getPlantFeedbackByPlantIdJSON("16001.0", "10.0", "first uploadId"));
+    }
+
 
     @Test
     public void AddFlowerRatingReturnsTrueWithValidJsonInput() throws IOException{
@@ -72,13 +75,7 @@ public class FlowerRating {
 
         assertTrue(plantController.addFlowerRating(json, "first uploadId"));
 
-        MongoCollection plants = testDB.getCollection("plants");
-
-        FindIterable doc = plants.find(new Document().append("_id", new ObjectId("58d1c36efb0cac4e15afd202")));
-        Iterator iterator = doc.iterator();
-        Document result = (Document) iterator.next();
-
-        List<Document> ratings = (List<Document>) ((Document) result.get("metadata")).get("ratings");
+        List<Document> ratings = new PlantEventStore(testDB).getEvents("first uploadId", "16001.0", "10.0", PlantEventStore.TYPE_RATING);
         assertEquals(1, ratings.size());
 
         Document rating = ratings.get(0);
@@ -13,7 +13,14 @@ import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.joda.time.DateTimeZone;
 import org.junit.Before;
+import umm3601.digitalDisplayGarden.BedRegistry;
 import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.FeedbackCounters;
+import umm3601.digitalDisplayGarden.PlantEventStore;
+import umm3601.digitalDisplayGarden.QRScanCounters;
+import umm3601.digitalDisplayGarden.TrendingPlants;
+import umm3601.digitalDisplayGarden.UploadRegistry;
+import umm3601.digitalDisplayGarden.VisitRollups;
 
 import javax.print.Doc;
 import java.io.IOException;
@@ -43,6 +50,15 @@ public class PopulateMockDatabase {
         addThirdUploadId(plants,beds,config);
         addGoogleChartsUploadId(plants,beds,config);
 
+        //The plants were inserted directly, so the registry has to be told about them
+        UploadRegistry.of(testDB).reload();
+        BedRegistry.of(testDB).clear();
+        TrendingPlants.of(testDB).reload();
+        //The mock plants are written the old way, with visits and ratings in their metadata
+        new PlantEventStore(testDB).migrateFromPlantMetadata();
+        FeedbackCounters.backfill(testDB, true);
+        QRScanCounters.backfill(testDB, true);
+        VisitRollups.backfill(testDB, true);
     }
 
     public static void addFirstUploadId(MongoCollection plants, MongoCollection beds, MongoCollection config)
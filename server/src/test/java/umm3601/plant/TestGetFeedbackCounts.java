@@ -2,8 +2,10 @@ package umm3601.plant;
 
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
 import org.junit.Before;
 import org.junit.Test;
+import umm3601.digitalDisplayGarden.FeedbackCounters;
 import umm3601.digitalDisplayGarden.PlantController;
 
 import java.io.IOException;
@@ -56,4 +58,19 @@ public class TestGetFeedbackCounts {
         assertEquals("this should return \"null\"", "null", counts);
     }
 
+    @Test
+    public void TestBackfillRecomputesCounters(){
+        String json = "{ plantId: \"16037.0\", gardenLocation: \"2S\", comment : \"A comment before backfill\" }";
+        plantController.storePlantComment(json, "googleCharts uploadId");
+
+        //Throw the counters off, then recompute them from plantEvents and comments
+        testDB.getCollection("plants").updateMany(new Document("uploadId", "googleCharts uploadId"),
+                new Document("$set", new Document("metadata.likeCount", 100).append("metadata.dislikeCount", 100)));
+        assertEquals("only plants without counters should be backfilled", 0, FeedbackCounters.backfill(testDB, true));
+        FeedbackCounters.backfill(testDB, false);
+
+        String counts = plantController.getPlantFeedbackByPlantIdJSON("16037.0", "2S", "googleCharts uploadId");
+        assertEquals("{ \"likeCount\" : 2 , \"dislikeCount\" : 1 , \"commentCount\" : 1}", counts);
+    }
+
 }
@@ -3,6 +3,7 @@ package umm3601.plant;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.Before;
@@ -14,6 +15,8 @@ import java.time.Instant;
 import java.util.Date;
 import java.util.Iterator;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
 import static org.junit.Assert.*;
 
 public class TestPlantComment {
@@ -87,4 +90,19 @@ public class TestPlantComment {
         assertFalse( "Added a comment with empty json", plantController.storePlantComment(json, "second uploadId"));
         assertEquals("Added a comment with empty json", 0, commentDocuments.count());
     }
+
+    @Test
+    public void failedInsertDoesNotCountTheComment() throws IOException {
+        MongoCollection<Document> commentDocuments = testDB.getCollection("comments");
+        //Make the second identical comment fail to insert
+        commentDocuments.createIndex(new Document("comment", 1), new IndexOptions().unique(true));
+
+        String json = "{ plantId: \"16040.0\", gardenLocation:\"7.0\", comment : \"Here is our comment for this test\" }";
+        assertTrue(plantController.storePlantComment(json, "second uploadId"));
+        assertFalse("Stored a comment that could not be inserted", plantController.storePlantComment(json, "second uploadId"));
+
+        assertEquals(1, commentDocuments.count());
+        Document plant = testDB.getCollection("plants").find(and(eq("id", "16040.0"), eq("uploadId", "second uploadId"))).first();
+        assertEquals("the failed comment was still counted", 1, ((Number) ((Document) plant.get("metadata")).get("commentCount")).intValue());
+    }
 }
@@ -3,19 +3,27 @@ package umm3601.plant;
 import com.google.gson.Gson;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.util.JSON;
 import org.junit.Before;
 import org.junit.Test;
 //import sun.text.normalizer.UTF16;
 import umm3601.digitalDisplayGarden.Plant;
 import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.PlantEventStore;
+import umm3601.digitalDisplayGarden.RequestContext;
+import org.bson.Document;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertNotNull;
 
 public class TestPlantController {
 
@@ -115,6 +123,66 @@ public class TestPlantController {
         assertEquals(2, filteredPlants.length);
     }
 
+    @Test
+    public void listPlantsWritesSameJsonAsSerialize() throws IOException{
+        //The listing is streamed one plant at a time, but the JSON should be what JSON.serialize made of the whole list
+        String expected = JSON.serialize(testDB.getCollection("plants").find(new Document("uploadId", "second uploadId"))
+                .sort(new Document("commonName", 1).append("cultivar", 1).append("_id", 1)));
+        assertEquals(expected, plantController.listPlants(new HashMap<>(), "second uploadId"));
+
+        StringWriter out = new StringWriter();
+        plantController.writePlants(new HashMap<>(), RequestContext.forUploadId(testDB, "second uploadId"), out);
+        assertEquals(expected, out.toString());
+
+        Map<String, String[]> queryParams = new HashMap<>();
+        queryParams.put("commonName", new String[]{"Bob"});
+        assertEquals("[ ]", plantController.listPlants(queryParams, "second uploadId"));
+    }
+
+    @Test
+    public void listPlantsProjectsFields() throws IOException{
+        Map<String, String[]> queryParams = new HashMap<>();
+        queryParams.put("fields", new String[]{"catalog"});
+        List<Document> plants = (List<Document>) Document.parse("{plants: " + plantController.listPlants(queryParams, "first uploadId") + "}").get("plants");
+
+        assertEquals(2, plants.size());
+        for (Document plant : plants) {
+            assertFalse("catalog listing should not include metadata", plant.containsKey("metadata"));
+            assertFalse("catalog listing should not include uploadId", plant.containsKey("uploadId"));
+            assertNotNull(plant.getString("commonName"));
+        }
+    }
+
+    @Test
+    public void listPlantsPagesThroughEveryPlant() throws IOException{
+        Map<String, String[]> queryParams = new HashMap<>();
+        List<Document> all = (List<Document>) Document.parse("{plants: " + plantController.listPlants(queryParams, "first uploadId") + "}").get("plants");
+
+        List<Object> paged = new ArrayList<>();
+        queryParams.put("limit", new String[]{"1"});
+        queryParams.put("fields", new String[]{"id"});
+        String next;
+        do {
+            Document page = Document.parse(plantController.listPlants(queryParams, "first uploadId"));
+            List<Document> plants = (List<Document>) page.get("plants");
+            assertEquals("a page should hold at most limit plants", 1, plants.size());
+            paged.add(plants.get(0).get("_id"));
+            next = page.getString("next");
+            queryParams.put("after", new String[]{next});
+        } while (next != null);
+
+        assertEquals(all.size(), paged.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals("pages should follow the listing's order", all.get(i).get("_id"), paged.get(i));
+        }
+
+        queryParams.put("after", new String[]{"not a cursor"});
+        assertEquals("null", plantController.listPlants(queryParams, "first uploadId"));
+        queryParams.remove("after");
+        queryParams.put("limit", new String[]{"0"});
+        assertEquals("null", plantController.listPlants(queryParams, "first uploadId"));
+    }
+
     @Test
     public void TestGetPlantsByPlantID(){
 
@@ -130,6 +198,25 @@ public class TestPlantController {
     }
 
 
+    @Test
+    public void TestRequestContext(){
+        assertNull("invalid uploadId should not get a context", RequestContext.forUploadId(testDB, "invalid uploadId"));
+        assertEquals("null context should be treated as an invalid uploadId", "null",
+                plantController.getPlantByPlantID("16001.0", "10.0", false, (RequestContext) null));
+
+        RequestContext context = RequestContext.forUploadId(testDB, "first uploadId");
+        assertNotNull(context);
+        assertEquals("first uploadId", context.uploadId);
+
+        //A visitor view through the context records the page view and the visit
+        plantController.getPlantByPlantID("16001.0", "10.0", false, context);
+        Document plant = testDB.getCollection("plants").find(new Document("id", "16001.0")).first();
+        Document metadata = (Document) plant.get("metadata");
+        assertEquals("visitor view should increment pageViews", 1, (int) metadata.getInteger("pageViews"));
+        assertEquals("visitor view should add a visit", 1,
+                new PlantEventStore(testDB).getEvents("first uploadId", "16001.0", "10.0", PlantEventStore.TYPE_VISIT).size());
+    }
+
     @Test
     public void TestGetCultivars(){
         String cultivar[] = new String[3];
@@ -0,0 +1,108 @@
+package umm3601.plant;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.PlantEventStore;
+
+import java.io.IOException;
+import java.util.Date;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+
+public class TestPlantEventStore {
+
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private PlantEventStore eventStore;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        eventStore = new PlantEventStore(testDB);
+    }
+
+    @Test
+    public void TestMigrationEmptiesPlantMetadata() {
+        for (Document plant : testDB.getCollection("plants").find()) {
+            Document metadata = (Document) plant.get("metadata");
+            assertFalse("plant still has visits " + plant.get("id"), metadata.containsKey("visits"));
+            assertFalse("plant still has ratings " + plant.get("id"), metadata.containsKey("ratings"));
+        }
+
+        long[] ratings = eventStore.getRatingCounts("googleCharts uploadId", "16037.0", "2S");
+        assertEquals("likes", 2, ratings[0]);
+        assertEquals("dislikes", 1, ratings[1]);
+        assertEquals(4, eventStore.getVisitDates("googleCharts uploadId").size());
+
+        //Running it again doesn't count anything twice
+        assertEquals(0, eventStore.migrateFromPlantMetadata());
+        assertEquals(4, eventStore.getVisitDates("googleCharts uploadId").size());
+    }
+
+    @Test
+    public void TestInterruptedMigrationIsNotCountedTwice() {
+        //As if the server died after writing the events of a plant but before removing its arrays
+        MongoCollection<Document> plants = testDB.getCollection("plants");
+        Document filter = new Document("id", "16037.0").append("gardenLocation", "2S").append("uploadId", "googleCharts uploadId");
+        plants.updateOne(filter, combine(
+                set("metadata.visits", eventStore.getEvents("googleCharts uploadId", "16037.0", "2S", PlantEventStore.TYPE_VISIT)),
+                set("metadata.ratings", eventStore.getEvents("googleCharts uploadId", "16037.0", "2S", PlantEventStore.TYPE_RATING)),
+                set("metadata.eventsMigrating", true)));
+
+        assertEquals(1, eventStore.migrateFromPlantMetadata());
+        assertEquals(4, eventStore.getVisitDates("googleCharts uploadId").size());
+        long[] ratings = eventStore.getRatingCounts("googleCharts uploadId", "16037.0", "2S");
+        assertEquals("likes", 2, ratings[0]);
+        assertEquals("dislikes", 1, ratings[1]);
+        assertFalse(((Document) plants.find(filter).first().get("metadata")).containsKey("eventsMigrating"));
+    }
+
+    @Test
+    public void TestVisitsAreBucketedByHour() {
+        Date tenOClock = new Date(1500000000000L - 1500000000000L % (60 * 60 * 1000));
+        eventStore.record(PlantEventStore.visitWrite("first uploadId", "16001.0", "10.0", tenOClock));
+        eventStore.record(PlantEventStore.visitWrite("first uploadId", "16001.0", "10.0", new Date(tenOClock.getTime() + 59 * 60 * 1000)));
+        eventStore.record(PlantEventStore.visitWrite("first uploadId", "16001.0", "10.0", new Date(tenOClock.getTime() + 60 * 60 * 1000)));
+
+        MongoCollection<Document> events = testDB.getCollection("plantEvents");
+        assertEquals("two visits in the same hour should share a bucket", 2,
+                events.count(and(eq("uploadId", "first uploadId"), eq("id", "16001.0"))));
+        Document first = events.find(and(eq("id", "16001.0"), eq("hour", tenOClock))).first();
+        assertEquals(2, (int) first.getInteger("count"));
+    }
+
+    @Test
+    public void TestFullBucketStartsANewOne() {
+        Date now = new Date();
+        for (int i = 0; i < PlantEventStore.MAX_BUCKET_EVENTS + 1; i++) {
+            eventStore.record(PlantEventStore.ratingWrite("first uploadId", "16001.0", "10.0", i % 2 == 0,
+                    new ObjectId("58d1c36efb0cac4e15afd202"), now));
+        }
+
+        assertEquals(2, testDB.getCollection("plantEvents").count(and(eq("uploadId", "first uploadId"), eq("id", "16001.0"))));
+        long[] ratings = eventStore.getRatingCounts("first uploadId", "16001.0", "10.0");
+        assertEquals(PlantEventStore.MAX_BUCKET_EVENTS / 2 + 1, ratings[0]);
+        assertEquals(PlantEventStore.MAX_BUCKET_EVENTS / 2, ratings[1]);
+    }
+
+    @Test
+    public void TestRenameAndDeleteUpload() {
+        eventStore.renameUpload("googleCharts uploadId", "renamed uploadId");
+        assertEquals(0, eventStore.getVisitDates("googleCharts uploadId").size());
+        assertEquals(4, eventStore.getVisitDates("renamed uploadId").size());
+
+        eventStore.deleteUpload("renamed uploadId");
+        assertEquals(0, eventStore.getVisitDates("renamed uploadId").size());
+    }
+}
@@ -5,11 +5,14 @@ import com.mongodb.client.MongoDatabase;
 import org.junit.Before;
 import org.junit.Test;
 import umm3601.digitalDisplayGarden.ExcelParser;
+import umm3601.digitalDisplayGarden.LiveUploadIdCache;
 import umm3601.digitalDisplayGarden.PlantController;
 
 import java.io.IOException;
 import java.util.Date;
 
+import org.bson.Document;
+
 import static junit.framework.TestCase.assertEquals;
 
 
@@ -48,6 +51,26 @@ public class TestUploadIdMethods {
     }
 
 
+    @Test
+    public void TestLiveUploadIdCache(){
+        LiveUploadIdCache cache = LiveUploadIdCache.of(testDB);
+        cache.invalidate();
+        assertEquals("cache should read the liveUploadId from the database", "first uploadId", cache.get());
+
+        //Setting the liveUploadId through ExcelParser should be visible right away
+        ExcelParser.setLiveUploadId("second uploadId", testDB);
+        assertEquals("cache should have the published liveUploadId", "second uploadId", cache.get());
+
+        //Another process changing the config collection is only seen after a refresh
+        testDB.getCollection("config").deleteMany(new Document());
+        testDB.getCollection("config").insertOne(new Document().append("liveUploadId", "third uploadId"));
+        LiveUploadIdCache.setRefreshInterval(60 * 1000);
+        assertEquals("cache should not have re-read the database yet", "second uploadId", cache.get());
+        cache.invalidate();
+        assertEquals("cache should re-read the database after invalidate", "third uploadId", cache.get());
+        LiveUploadIdCache.setRefreshInterval(30 * 1000);
+    }
+
     @Test
     public void TestGenerateNewLiveUploadId(){
 
@@ -0,0 +1,90 @@
+package umm3601.plant;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.ExcelParser;
+import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.UploadRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestUploadRegistry {
+
+    private final static String databaseName = "data-for-testing-only";
+    private PlantController plantController;
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+    }
+
+    @Test
+    public void TestRegistryMatchesDatabase() {
+        assertTrue(ExcelParser.isValidUploadId(testDB, "first uploadId"));
+        assertTrue(ExcelParser.isValidUploadId(testDB, "googleCharts uploadId"));
+        assertFalse(ExcelParser.isValidUploadId(testDB, "invalid uploadId"));
+        assertFalse(ExcelParser.isValidUploadId(testDB, null));
+        assertEquals("registry should know every uploadId in the database",
+                ExcelParser.listUploadIds(testDB).size(), UploadRegistry.of(testDB).size());
+    }
+
+    @Test
+    public void TestRegistryFollowsDeleteAndClear() {
+        ExcelParser.setLiveUploadId("first uploadId", testDB);
+
+        plantController.deleteUploadID("second uploadId");
+        assertFalse("deleted uploadId is still valid", ExcelParser.isValidUploadId(testDB, "second uploadId"));
+
+        ExcelParser.clearUpload("third uploadId", testDB);
+        assertFalse("cleared uploadId is still valid", ExcelParser.isValidUploadId(testDB, "third uploadId"));
+
+        assertTrue(ExcelParser.isValidUploadId(testDB, "first uploadId"));
+    }
+
+    @Test
+    public void TestRegistryReloadsUnknownUploadIds() {
+        UploadRegistry.setRefreshInterval(60 * 1000);
+        UploadRegistry.of(testDB).reload();
+
+        //Simulate another process importing plants
+        testDB.getCollection("plants").insertOne(new Document().append("uploadId", "other process uploadId"));
+        assertFalse("registry reloaded before the refresh interval", ExcelParser.isValidUploadId(testDB, "other process uploadId"));
+
+        UploadRegistry.setRefreshInterval(0);
+        assertTrue("registry should reload when it doesn't know an uploadId", ExcelParser.isValidUploadId(testDB, "other process uploadId"));
+        UploadRegistry.setRefreshInterval(30 * 1000);
+    }
+
+    /*
+    Adds plants from uploads "benchmark uploadId <from>" up to "benchmark uploadId <to - 1>"
+     */
+    static void insertUploads(MongoDatabase testDB, int from, int to) {
+        List<Document> docs = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            docs.add(new Document().append("uploadId", "benchmark uploadId " + i));
+        }
+        testDB.getCollection("plants").insertMany(docs);
+    }
+
+    @Test
+    public void TestRegistryWithManyUploads() {
+        insertUploads(testDB, 0, 1000);
+        UploadRegistry.of(testDB).reload();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ExcelParser.isValidUploadId(testDB, "benchmark uploadId " + i));
+        }
+        assertFalse(ExcelParser.isValidUploadId(testDB, "benchmark uploadId 1000"));
+    }
+}
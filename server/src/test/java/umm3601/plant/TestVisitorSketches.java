@@ -0,0 +1,91 @@
+package umm3601.plant;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.BedController;
+import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.RequestContext;
+import umm3601.digitalDisplayGarden.VisitorSketches;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class TestVisitorSketches {
+
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+    private PlantController plantController;
+    private BedController bedController;
+    private VisitorSketches visitorSketches;
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+        bedController = new BedController(testDB);
+        visitorSketches = new VisitorSketches(testDB);
+    }
+
+    @Test
+    public void TestRepeatViewsCountOneVisitor() {
+        RequestContext context = RequestContext.forUploadId(testDB, "first uploadId");
+        for (int i = 0; i < 5; i++) {
+            plantController.getPlantByPlantID("16001.0", "10.0", false, context, "visitor A");
+        }
+        plantController.getPlantByPlantID("16001.0", "10.0", false, context, "visitor B");
+        //Admins and visitors without a token aren't counted
+        plantController.getPlantByPlantID("16001.0", "10.0", true, context, "admin");
+        plantController.getPlantByPlantID("16001.0", "10.0", false, context);
+
+        assertEquals(2, visitorSketches.getUniqueVisitors("first uploadId", VisitorSketches.KIND_PLANT, "16001.0", "10.0"));
+        assertEquals(0, visitorSketches.getUniqueVisitors("first uploadId", VisitorSketches.KIND_PLANT, "16008.0", "10.0"));
+    }
+
+    @Test
+    public void TestBedVisitsAndScansShareASketch() {
+        bedController.addBedVisit("10.0", "first uploadId", "visitor A");
+        bedController.addBedQRVisit("10.0", "first uploadId", "visitor A");
+        bedController.addBedQRVisit("10.0", "first uploadId", "visitor B");
+        bedController.addBedVisit("no such bed", "first uploadId", "visitor C");
+
+        assertEquals(2, bedController.getUniqueVisitors("10.0", "first uploadId"));
+        assertEquals(3, bedController.getPageViews("10.0", "first uploadId"));
+        assertEquals(0, bedController.getUniqueVisitors("no such bed", "first uploadId"));
+    }
+
+    @Test
+    public void TestSketchesMergeAcrossDays() {
+        Date monday = new Date(1492000000000L);
+        Date tuesday = new Date(monday.getTime() + 24 * 60 * 60 * 1000);
+        for (int i = 0; i < 300; i++) {
+            visitorSketches.record(VisitorSketches.visitWrite("first uploadId", VisitorSketches.KIND_BED, null, "10.0", "visitor " + i, monday));
+        }
+        //Half of Tuesday's visitors came on Monday too
+        for (int i = 150; i < 450; i++) {
+            visitorSketches.record(VisitorSketches.visitWrite("first uploadId", VisitorSketches.KIND_BED, null, "10.0", "visitor " + i, tuesday));
+        }
+
+        String day1 = VisitorSketches.day(monday);
+        String day2 = VisitorSketches.day(tuesday);
+        long mondayOnly = visitorSketches.getSketch("first uploadId", VisitorSketches.KIND_BED, null, "10.0", day1, day1).estimate();
+        long tuesdayOnly = visitorSketches.getSketch("first uploadId", VisitorSketches.KIND_BED, null, "10.0", day2, day2).estimate();
+        long both = visitorSketches.getUniqueVisitors("first uploadId", VisitorSketches.KIND_BED, null, "10.0");
+
+        assertEquals(300, mondayOnly, 15);
+        assertEquals(300, tuesdayOnly, 15);
+        assertEquals(450, both, 20);
+
+        Map<String, Long> beds = visitorSketches.getUniqueVisitors("first uploadId", VisitorSketches.KIND_BED);
+        assertEquals(1, beds.size());
+        assertEquals(both, (long) beds.get(VisitorSketches.key(null, "10.0")));
+
+        visitorSketches.deleteUpload("first uploadId");
+        assertEquals(0, visitorSketches.getUniqueVisitors("first uploadId", VisitorSketches.KIND_BED, null, "10.0"));
+    }
+}
@@ -0,0 +1,89 @@
+package umm3601.plant;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.PlantEventStore;
+import umm3601.digitalDisplayGarden.RequestContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static junit.framework.TestCase.assertEquals;
+
+public class TestVisitorView {
+
+    private final static String databaseName = "data-for-testing-only";
+    private PlantController plantController;
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+    }
+
+    private int pageViews(String id, String gardenLocation) {
+        Document plant = testDB.getCollection("plants").find(and(eq("id", id), eq("gardenLocation", gardenLocation))).first();
+        return ((Document) plant.get("metadata")).getInteger("pageViews");
+    }
+
+    private int visits(String id, String gardenLocation) {
+        return new PlantEventStore(testDB).getEvents("first uploadId", id, gardenLocation, PlantEventStore.TYPE_VISIT).size();
+    }
+
+    @Test
+    public void TestVisitorViewCountsViewAndVisit() {
+        Document plant = Document.parse(plantController.getPlantByPlantID("16001.0", "10.0", false, "first uploadId"));
+        assertEquals("Alternanthera", plant.getString("commonName"));
+        assertEquals("visitor fields only", null, plant.get("metadata"));
+        assertEquals(1, pageViews("16001.0", "10.0"));
+        assertEquals(1, visits("16001.0", "10.0"));
+
+        plantController.getPlantByPlantID("16001.0", "10.0", true, "first uploadId");
+        assertEquals("admin views are not counted", 1, pageViews("16001.0", "10.0"));
+        assertEquals("admin views are not counted", 1, visits("16001.0", "10.0"));
+
+        assertEquals("null", plantController.getPlantByPlantID("16001.0", "5.0", false, "first uploadId"));
+        assertEquals("missing plants get no visit", 0, visits("16001.0", "5.0"));
+    }
+
+    @Test
+    public void TestConcurrentViewsAreAllCounted() throws Exception {
+        int threads = 4;
+        int viewsPerThread = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        runViews(pool, threads, viewsPerThread, () -> {
+            plantController.getPlantByPlantID("16008.0", "10.0", false, RequestContext.forUploadId(testDB, "first uploadId"));
+        });
+        pool.shutdown();
+        plantController.flushTelemetry();
+
+        assertEquals(threads * viewsPerThread, pageViews("16008.0", "10.0"));
+        assertEquals(threads * viewsPerThread, visits("16008.0", "10.0"));
+    }
+
+    static long runViews(ExecutorService pool, int threads, int viewsPerThread, Runnable view) throws Exception {
+        List<Future<?>> running = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            running.add(pool.submit(() -> {
+                for (int i = 0; i < viewsPerThread; i++)
+                    view.run();
+            }));
+        }
+        for (Future<?> future : running)
+            future.get();
+        return (System.nanoTime() - start) * threads;
+    }
+}
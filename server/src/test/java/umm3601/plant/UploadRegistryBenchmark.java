@@ -0,0 +1,55 @@
+package umm3601.plant;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.ExcelParser;
+import umm3601.digitalDisplayGarden.UploadRegistry;
+
+import java.io.IOException;
+
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Not part of the unit tests, run it with gradle benchmark.
+ */
+public class UploadRegistryBenchmark {
+
+    private final static String databaseName = "data-for-testing-only";
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+    }
+
+    /**
+     * Validating an uploadId should cost the same no matter how many uploads the database has seen.
+     */
+    @Test
+    public void validationWithManyUploads() {
+        int[] uploadCounts = {10, 100, 1000};
+        int lookups = 200000;
+        int inserted = 0;
+
+        System.out.println("uploads | avg ns per isValidUploadId");
+        for (int uploads : uploadCounts) {
+            TestUploadRegistry.insertUploads(testDB, inserted, uploads);
+            inserted = uploads;
+            UploadRegistry.of(testDB).reload();
+
+            //Warm up, then time
+            for (int i = 0; i < lookups; i++) {
+                ExcelParser.isValidUploadId(testDB, "benchmark uploadId " + (i % uploads));
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                assertTrue(ExcelParser.isValidUploadId(testDB, "benchmark uploadId " + (i % uploads)));
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(uploads + " | " + (elapsed / lookups));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package umm3601.plant;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import umm3601.digitalDisplayGarden.PlantController;
+import umm3601.digitalDisplayGarden.RequestContext;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * Not part of the unit tests, run it with gradle benchmark.
+ */
+public class VisitorViewBenchmark {
+
+    private final static String databaseName = "data-for-testing-only";
+    private PlantController plantController;
+    public MongoClient mongoClient = new MongoClient();
+    public MongoDatabase testDB = mongoClient.getDatabase(databaseName);
+
+    @Before
+    public void populateDB() throws IOException {
+        PopulateMockDatabase.clearAndPopulateDBAgain(testDB);
+        plantController = new PlantController(testDB);
+    }
+
+    /**
+     * 8 threads viewing plants, first the way a view used to be recorded
+     * (find, then incrementMetadata, then addVisit, each validating the uploadId),
+     * then with the single findOneAndUpdate.
+     */
+    @Test
+    public void visitorViewUnderLoad() throws Exception {
+        int threads = 8;
+        int viewsPerThread = 250;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        long before = TestVisitorView.runViews(pool, threads, viewsPerThread, () -> {
+            plantController.getPlantByPlantID("16001.0", "10.0", true, "first uploadId");
+            plantController.incrementMetadata("16001.0", "pageViews", "first uploadId");
+            plantController.addVisit("16001.0", "10.0", "first uploadId");
+        });
+        long after = TestVisitorView.runViews(pool, threads, viewsPerThread, () -> {
+            plantController.getPlantByPlantID("16001.0", "10.0", false, RequestContext.forUploadId(testDB, "first uploadId"));
+        });
+        pool.shutdown();
+
+        int views = threads * viewsPerThread;
+        System.out.println("visitor view, " + threads + " threads | avg us per view");
+        System.out.println("find + incrementMetadata + addVisit | " + (before / views / 1000));
+        System.out.println("findOneAndUpdate | " + (after / views / 1000));
+        Document plant = testDB.getCollection("plants").find(and(eq("id", "16001.0"), eq("gardenLocation", "10.0"))).first();
+        assertEquals(2 * views, (int) ((Document) plant.get("metadata")).getInteger("pageViews"));
+    }
+}